@@ -0,0 +1,130 @@
+package edu.scripps.sync;
+
+import java.util.Random;
+
+/**
+ * ArticleCorpus generates synthetic gene articles for benchmarking the rewrite rules.
+ * Articles are built from wikitext that looks like the Gene Wiki pages we sync (infobox,
+ * prose paragraphs full of wikilinks, SWL templates, citations, image captions with
+ * nested links), at a chosen size and link / SWL density. Generation is seeded, so the
+ * same parameters always produce the same text.
+ * @author eclarke
+ *
+ */
+public class ArticleCorpus {
+
+	/** Article sizes and densities modelled on real Gene Wiki pages */
+	public enum Preset {
+		/** stub article: ~5 KB, a couple dozen links */
+		STUB(5, 5, 1),
+		/** typical gene article: ~40 KB, ~250 links, a handful of SWLs */
+		TYPICAL(40, 6, 1),
+		/** large, heavily linked article (i.e. TP53, Reelin): ~120 KB, ~900 links, ~40 SWLs */
+		LARGE(120, 8, 3);
+
+		final int kilobytes;
+		final int linksPerKb;
+		final int swlPer10Kb;
+
+		Preset(int kilobytes, int linksPerKb, int swlPer10Kb) {
+			this.kilobytes = kilobytes;
+			this.linksPerKb = linksPerKb;
+			this.swlPer10Kb = swlPer10Kb;
+		}
+
+		public String generate(long seed) {
+			return ArticleCorpus.generate(seed, kilobytes, linksPerKb, swlPer10Kb);
+		}
+	}
+
+	private static final String[] WORDS = {
+		"protein", "encoded", "gene", "expression", "binding", "domain", "receptor", "kinase",
+		"pathway", "cell", "signaling", "mutation", "transcription", "factor", "the", "of", "and",
+		"in", "is", "a", "that", "with", "human", "mouse", "tissue", "activity", "regulates" };
+
+	static final String[] GENES = {
+		"TP53", "BRCA1", "EGFR", "Reelin", "Insulin", "MDM2", "CDK2", "Cyclin D1", "AKT1", "MTOR",
+		"Apoptosis", "Cell cycle", "DNA repair", "Ubiquitin", "Phosphorylation", "Nucleus",
+		"Chromosome 17", "Breast cancer", "Li-Fraumeni syndrome", "Glioblastoma" };
+
+	private static final String[] RELATIONS = { "interacts_with", "is_regulated_by", "associated_with" };
+
+	/**
+	 * Generates an article.
+	 * @param seed random seed
+	 * @param kilobytes approximate size of the article
+	 * @param linksPerKb wikilinks per kilobyte of text
+	 * @param swlPer10Kb SWL templates per 10 kilobytes of text
+	 * @return article wikitext
+	 */
+	public static String generate(long seed, int kilobytes, int linksPerKb, int swlPer10Kb) {
+		Random random = new Random(seed);
+		int size = kilobytes * 1024;
+		int swlEvery = (swlPer10Kb == 0) ? Integer.MAX_VALUE : 10 * 1024 / swlPer10Kb;
+		int linkEvery = (linksPerKb == 0) ? Integer.MAX_VALUE : 1024 / linksPerKb;
+		int nextSwl = swlEvery / 2;
+		int nextLink = linkEvery / 2;
+
+		StringBuilder sb = new StringBuilder(size + 256);
+		sb.append("{{PBB|geneid=").append(1000 + random.nextInt(9000)).append("}}\n");
+		sb.append("'''").append(pick(random, GENES)).append("''' is a [[protein]] that in humans is encoded by the ")
+			.append("[[gene]].<ref name=\"entrez\">{{cite web | title = Entrez Gene | url = http://www.ncbi.nlm.nih.gov/gene }}</ref>\n\n");
+		int section = 0;
+		while (sb.length() < size) {
+			if (random.nextInt(40) == 0) {
+				sb.append("\n\n== Section ").append(++section).append(" ==\n");
+			}
+			if (sb.length() >= nextLink) {
+				appendLink(random, sb);
+				nextLink += linkEvery;
+			} else if (sb.length() >= nextSwl) {
+				appendSwl(random, sb);
+				nextSwl += swlEvery;
+			} else {
+				sb.append(pick(random, WORDS));
+			}
+			sb.append(random.nextInt(12) == 0 ? ". " : " ");
+		}
+		sb.append("\n\n== References ==\n{{reflist}}\n[[Category:Genes on human chromosome 17]]\n");
+		return sb.toString();
+	}
+
+	private static void appendLink(Random random, StringBuilder sb) {
+		String gene = pick(random, GENES);
+		switch (random.nextInt(10)) {
+		case 0:	// image with a nested link in the caption
+			sb.append("[[File:").append(gene.replace(' ', '_')).append(".png|thumb|Structure of [[")
+				.append(pick(random, GENES)).append("]]]]");
+			break;
+		case 1:
+		case 2:
+		case 3:	// piped link
+			sb.append("[[").append(gene).append("|").append(gene.toLowerCase()).append("]]");
+			break;
+		default:
+			sb.append("[[").append(gene).append("]]");
+		}
+	}
+
+	private static void appendSwl(Random random, StringBuilder sb) {
+		String target = pick(random, GENES);
+		String type = pick(random, RELATIONS);
+		switch (random.nextInt(3)) {
+		case 0:
+			sb.append("{{SWL|target=").append(target).append("|type=").append(type).append("}}");
+			break;
+		case 1:
+			sb.append("{{SWL|type=").append(type).append("|target=").append(target)
+				.append("|label=").append(target.toLowerCase()).append("}}");
+			break;
+		default:
+			sb.append("{{SWL| label=").append(target.toLowerCase()).append("| target=").append(target)
+				.append("| type=").append(type).append("}}");
+		}
+	}
+
+	private static String pick(Random random, String[] from) {
+		return from[random.nextInt(from.length)];
+	}
+
+}
@@ -0,0 +1,736 @@
+package edu.scripps.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * FakeMediaWiki is an in-process stand-in for a MediaWiki installation, serving the parts of
+ * the web API the sync uses (format=xml only) from pages held in memory, so syncs can be run
+ * and load-tested without network access. A Wiki client reaches it as
+ * <code>new BatchWiki(server.getDomain(), "/w")</code>, which sends its requests to
+ * http://localhost:port/w/api.php and /w/index.php.
+ * <p>
+ * Served: action=login (both steps), action=logout, action=edit (POSTed, with any token ending
+ * in "+\"), action=query with meta=userinfo, meta=tokens and meta=siteinfo, list=watchlist
+ * (each watched page once, with its latest revision), list=watchlistraw, list=allpages and
+ * list=recentchanges (page creations), prop=revisions and prop=info (with intoken=edit), and
+ * index.php?action=raw. Titles are normalized (first letter capitalized, underscores to
+ * spaces) and reported in a normalized element, as MediaWiki does. Lists continue after
+ * 500 items, and multi-title queries take the first 50 titles (500 for an account with
+ * apihighlimits).
+ * <p>
+ * Every request can be delayed by a fixed latency; a fraction of requests can be answered
+ * with HTTP 503, and a fraction of those that send maxlag can be answered with a maxlag error,
+ * as a lagged replica would. Responses are gzipped for clients that accept it; gzipped request
+ * bodies are accepted unless turned off (then they get HTTP 415).
+ * @author eclarke
+ *
+ */
+public class FakeMediaWiki {
+
+	/** Script path of the API (api.php and index.php) */
+	public static final String SCRIPT_PATH = "/w";
+
+	private static final int 	LIST_LIMIT 	= 500;
+	private static final String TOKEN 		= "d41d8cd98f00b204e9800998ecf8427e+\\";
+
+	private final HttpServer 		server;
+	private final ExecutorService 	workers;
+	private final Random 			random = new Random();
+
+	private final Map<String, Revision> 		pages 		= new ConcurrentHashMap<String, Revision>();
+	private final TreeMap<Long, Revision> 		latest 		= new TreeMap<Long, Revision>();	// by revid
+	private final TreeMap<Long, Long> 			firstRevid 	= new TreeMap<Long, Long>();		// by second
+	private final TreeMap<String, Boolean> 		titles 		= new TreeMap<String, Boolean>();	// watched?
+	private final List<Revision> 				creations 	= new ArrayList<Revision>();
+	private long 	nextRevid 	= 1;
+	private int 	nextPageId 	= 1;
+	private long 	lastTime;
+
+	private final Map<String, AtomicLong> requests = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong edits = new AtomicLong();
+
+	private volatile long 		latency;
+	private volatile double 	errorRate;
+	private volatile double 	lag;
+	private volatile double 	lagRate;
+	private volatile boolean 	highLimits = true;
+	private volatile boolean 	compressedRequests = true;
+	private volatile String 	user = "";
+
+	/**
+	 * Starts serving on the loopback interface.
+	 * @param port port (0 for any free port)
+	 * @param threads number of requests served at once
+	 * @throws IOException if the port can't be bound
+	 */
+	public FakeMediaWiki(int port, int threads) throws IOException {
+		// without TCP_NODELAY, small responses wait out the client's delayed ACK (~40 ms each)
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext(SCRIPT_PATH + "/api.php", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, true);
+			}
+		});
+		server.createContext(SCRIPT_PATH + "/index.php", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, false);
+			}
+		});
+		workers = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("fake-wiki-%d").setDaemon(true).build());
+		server.setExecutor(workers);
+		server.start();
+	}
+
+	/**
+	 * @return domain to give a Wiki client (host and port)
+	 */
+	public String getDomain() {
+		return "localhost:" + server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		workers.shutdownNow();
+	}
+
+	/* ---- Content ---- */
+
+	/**
+	 * Creates or edits a page, as the specified user, at the current time.
+	 * @param title page title
+	 * @param text new text
+	 * @param user editing user
+	 * @param comment edit summary
+	 * @param watch if the page should be on the watchlist (pages stay watched once they are)
+	 * @return the new revision id
+	 */
+	public synchronized long putPage(String title, String text, String user, String comment, boolean watch) {
+		title = normalize(title);
+		Revision previous = pages.get(title);
+		long now = Math.max(System.currentTimeMillis(), lastTime);
+		lastTime = now;
+		Revision rev = new Revision(title, (previous == null) ? nextPageId++ : previous.pageId, nextRevid++,
+				(previous == null) ? 0 : previous.revid, text, user, comment, now);
+		pages.put(title, rev);
+		if (previous != null) {
+			latest.remove(previous.revid);
+		} else {
+			creations.add(rev);
+		}
+		latest.put(rev.revid, rev);
+		if (!firstRevid.containsKey(now / 1000)) {
+			firstRevid.put(now / 1000, rev.revid);
+		}
+		Boolean watched = titles.get(title);
+		titles.put(title, watch || (watched != null && watched));
+		return rev.revid;
+	}
+
+	/**
+	 * @return the page's current text, or null if there is no such page
+	 */
+	public String getText(String title) {
+		Revision rev = pages.get(normalize(title));
+		return (rev == null) ? null : rev.text;
+	}
+
+	/**
+	 * @return the page's current revision id, or 0 if there is no such page
+	 */
+	public long getRevid(String title) {
+		Revision rev = pages.get(normalize(title));
+		return (rev == null) ? 0 : rev.revid;
+	}
+
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	/* ---- Behavior ---- */
+
+	/**
+	 * @param millis time added to every request
+	 */
+	public void setLatency(long millis) {
+		this.latency = millis;
+	}
+
+	/**
+	 * @param rate fraction of requests answered with HTTP 503 (Service Unavailable)
+	 */
+	public void setErrorRate(double rate) {
+		this.errorRate = rate;
+	}
+
+	/**
+	 * Makes the wiki's replicas lag: a fraction of the requests whose maxlag is below the lag
+	 * get a maxlag error instead of an answer.
+	 * @param seconds replication lag
+	 * @param rate fraction of those requests that get the error
+	 */
+	public void setLag(double seconds, double rate) {
+		this.lag = seconds;
+		this.lagRate = rate;
+	}
+
+	/**
+	 * @param highLimits if the logged-in account has the apihighlimits right (true by default)
+	 */
+	public void setHighLimits(boolean highLimits) {
+		this.highLimits = highLimits;
+	}
+
+	/**
+	 * @param accepted if gzipped request bodies are accepted (true by default)
+	 */
+	public void setAcceptCompressedRequests(boolean accepted) {
+		this.compressedRequests = accepted;
+	}
+
+	/* ---- Statistics ---- */
+
+	/**
+	 * @return number of requests served (including errors)
+	 */
+	public long getRequestCount() {
+		return total.get();
+	}
+
+	/**
+	 * @return number of requests served of each kind (i.e. "query:revisions", "edit", "raw")
+	 */
+	public Map<String, Long> getRequestCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : requests.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * @return number of edits saved (edits that changed nothing aren't counted)
+	 */
+	public long getEditCount() {
+		return edits.get();
+	}
+
+	/* ---- Requests ---- */
+
+	private void serve(HttpExchange exchange, boolean api) throws IOException {
+		try {
+			total.incrementAndGet();
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+			if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				if (!compressedRequests) {
+					count("rejected");
+					exchange.sendResponseHeaders(415, -1);
+					return;
+				}
+				body = ByteStreams.toByteArray(new GZIPInputStream(new java.io.ByteArrayInputStream(body)));
+			}
+			if (errorRate > 0 && random.nextDouble() < errorRate) {
+				count("error");
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			Map<String, String> params = parse(exchange.getRequestURI().getRawQuery());
+			boolean posted = exchange.getRequestMethod().equals("POST");
+			if (posted) {
+				params.putAll(parse(new String(body, Charsets.UTF_8)));
+			}
+			if (!api) {
+				raw(exchange, params);
+				return;
+			}
+			String maxlag = params.get("maxlag");
+			if (maxlag != null && lag > Double.parseDouble(maxlag) && random.nextDouble() < lagRate) {
+				count("maxlag");
+				exchange.getResponseHeaders().set("Retry-After", "5");
+				exchange.getResponseHeaders().set("X-Database-Lag", String.valueOf((int) lag));
+				respond(exchange, 200, "<error code=\"maxlag\" info=\"Waiting for 127.0.0.1: " + (int) lag
+						+ " seconds lagged\" host=\"127.0.0.1\" lag=\"" + (int) lag + "\" />");
+				return;
+			}
+			respond(exchange, 200, answer(exchange, params, posted));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private String answer(HttpExchange exchange, Map<String, String> params, boolean posted) {
+		String action = params.containsKey("action") ? params.get("action") : "help";
+		if (action.equals("query")) {
+			return query(params);
+		}
+		count(action);
+		if (action.equals("login")) {
+			return login(exchange, params);
+		}
+		if (action.equals("logout")) {
+			user = "";
+			return "";
+		}
+		if (action.equals("edit")) {
+			if (!posted) {
+				return error("mustbeposted", "The edit module requires a POST request");
+			}
+			return edit(params);
+		}
+		return error("unknown_action", "Unrecognized value for parameter 'action': " + action);
+	}
+
+	private String login(HttpExchange exchange, Map<String, String> params) {
+		String name = params.get("lgname");
+		if (name == null) {
+			return "<login result=\"NoName\" />";
+		}
+		exchange.getResponseHeaders().add("Set-Cookie", "fakewiki_session=fakesession; path=/; httponly");
+		if (params.get("lgtoken") == null) {
+			return "<login result=\"NeedToken\" token=\"faketoken\" cookieprefix=\"fakewiki\" sessionid=\"fakesession\" />";
+		}
+		user = normalize(name);
+		exchange.getResponseHeaders().add("Set-Cookie", "fakewikiUserName=" + encode(user) + "; path=/");
+		exchange.getResponseHeaders().add("Set-Cookie", "fakewikiUserID=1; path=/");
+		return "<login result=\"Success\" lguserid=\"1\" lgusername=\"" + escape(user)
+				+ "\" lgtoken=\"faketoken\" cookieprefix=\"fakewiki\" sessionid=\"fakesession\" />";
+	}
+
+	private String edit(Map<String, String> params) {
+		String token = params.get("token");
+		if (token == null || !token.endsWith("+\\")) {
+			return error("badtoken", "Invalid token");
+		}
+		String title = params.get("title");
+		String text = params.get("text");
+		if (title == null || text == null) {
+			return error("notext", "One of the text, appendtext, prependtext and undo parameters must be set");
+		}
+		title = normalize(title);
+		Revision previous = pages.get(title);
+		if (previous != null && previous.text.equals(text)) {
+			return "<edit result=\"Success\" pageid=\"" + previous.pageId + "\" title=\"" + escape(title)
+					+ "\" nochange=\"\" />";
+		}
+		long revid = putPage(title, text, user, params.containsKey("summary") ? params.get("summary") : "", false);
+		edits.incrementAndGet();
+		Revision rev = pages.get(title);
+		return "<edit result=\"Success\" pageid=\"" + rev.pageId + "\" title=\"" + escape(title)
+				+ "\" contentmodel=\"wikitext\" oldrevid=\"" + rev.parentid + "\" newrevid=\"" + revid
+				+ "\" newtimestamp=\"" + timestamp(rev.timestamp) + "\" />";
+	}
+
+	private String query(Map<String, String> params) {
+		StringBuilder out = new StringBuilder();
+		StringBuilder query = new StringBuilder();
+		String meta = params.get("meta");
+		if (meta != null) {
+			for (String m : Splitter.on('|').split(meta)) {
+				count("query:" + m);
+				if (m.equals("userinfo")) {
+					query.append("<userinfo id=\"1\" name=\"").append(escape(user)).append("\">")
+							.append("<groups><g>*</g><g>user</g>").append(highLimits ? "<g>bot</g>" : "")
+							.append("</groups><rights><r>read</r><r>edit</r><r>writeapi</r>")
+							.append(highLimits ? "<r>apihighlimits</r><r>bot</r>" : "")
+							.append("</rights></userinfo>");
+				} else if (m.equals("tokens")) {
+					query.append("<tokens csrftoken=\"").append(escape(TOKEN)).append("\" edittoken=\"")
+							.append(escape(TOKEN)).append("\" />");
+				} else if (m.equals("siteinfo")) {
+					query.append("<general mainpage=\"Main Page\" sitename=\"FakeWiki\" generator=\"MediaWiki 1.19.0\" "
+							+ "case=\"first-letter\" />")
+							.append("<namespaces><ns id=\"-2\" case=\"first-letter\" canonical=\"Media\">Media</ns>"
+							+ "<ns id=\"-1\" case=\"first-letter\" canonical=\"Special\">Special</ns>"
+							+ "<ns id=\"0\" case=\"first-letter\" content=\"\" xml:space=\"preserve\" />"
+							+ "<ns id=\"1\" case=\"first-letter\" canonical=\"Talk\">Talk</ns>"
+							+ "<ns id=\"2\" case=\"first-letter\" canonical=\"User\">User</ns>"
+							+ "<ns id=\"3\" case=\"first-letter\" canonical=\"User talk\">User talk</ns>"
+							+ "<ns id=\"4\" case=\"first-letter\" canonical=\"Project\">FakeWiki</ns>"
+							+ "<ns id=\"6\" case=\"first-letter\" canonical=\"File\">File</ns>"
+							+ "<ns id=\"10\" case=\"first-letter\" canonical=\"Template\">Template</ns>"
+							+ "<ns id=\"14\" case=\"first-letter\" canonical=\"Category\">Category</ns></namespaces>");
+				}
+			}
+		}
+		String list = params.get("list");
+		String next = null;
+		if (list != null) {
+			count("query:" + list);
+			if (list.equals("watchlist")) {
+				next = watchlist(params, query);
+			} else if (list.equals("watchlistraw")) {
+				next = titleList(params.get("wrcontinue"), "wrcontinue", "watchlistraw", "wr", true, query);
+			} else if (list.equals("allpages")) {
+				String from = params.containsKey("apcontinue") ? params.get("apcontinue") : params.get("apfrom");
+				next = titleList(from, "apcontinue", "allpages", "p", false, query);
+			} else if (list.equals("recentchanges")) {
+				next = recentChanges(params, query);
+			} else {
+				return error("unknown_list", "Unrecognized value for parameter 'list': " + list);
+			}
+		}
+		String prop = params.get("prop");
+		String titleParam = params.get("titles");
+		if (titleParam != null) {
+			count("query:" + ((prop == null) ? "titles" : prop.replace('|', '+')));
+			pages(params, prop, titleParam, query, out);
+		}
+		out.append("<query>").append(query).append("</query>");
+		if (next != null) {
+			out.append(next);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Lists each watched page's latest revision made at or after wlstart, oldest first.
+	 */
+	private String watchlist(Map<String, String> params, StringBuilder query) {
+		int limit = limit(params.get("wllimit"));
+		long from;
+		String cont = params.get("wlcontinue");
+		synchronized (this) {
+			if (cont != null) {
+				from = Long.parseLong(cont.substring(cont.indexOf('|') + 1));
+			} else {
+				long start = (params.get("wlstart") == null) ? 0 : parseTimestamp(params.get("wlstart")) / 1000;
+				Map.Entry<Long, Long> first = firstRevid.ceilingEntry(start);
+				from = (first == null) ? Long.MAX_VALUE : first.getValue();
+			}
+			query.append("<watchlist>");
+			int n = 0;
+			for (Revision rev : latest.tailMap(from, true).values()) {
+				if (!titles.get(rev.title)) {
+					continue;
+				}
+				if (n == limit) {
+					query.append("</watchlist>");
+					return "<continue wlcontinue=\"" + timestamp(rev.timestamp) + "|" + rev.revid
+							+ "\" continue=\"-||\" />";
+				}
+				query.append("<item type=\"edit\" ns=\"0\" title=\"").append(escape(rev.title))
+						.append("\" pageid=\"").append(rev.pageId).append("\" revid=\"").append(rev.revid)
+						.append("\" old_revid=\"").append(rev.parentid).append("\" user=\"").append(escape(rev.user))
+						.append("\" timestamp=\"").append(timestamp(rev.timestamp)).append("\" comment=\"")
+						.append(escape(rev.comment)).append("\" />");
+				n++;
+			}
+		}
+		query.append("</watchlist>");
+		return null;
+	}
+
+	/**
+	 * Lists titles in order, all of them or the watched ones only.
+	 */
+	private synchronized String titleList(String from, String param, String element, String item,
+			boolean watchedOnly, StringBuilder query) {
+		query.append('<').append(element).append('>');
+		int n = 0;
+		Map<String, Boolean> tail = (from == null) ? titles : titles.tailMap(normalize(from), true);
+		for (Map.Entry<String, Boolean> entry : tail.entrySet()) {
+			if (watchedOnly && !entry.getValue()) {
+				continue;
+			}
+			if (n == LIST_LIMIT) {
+				query.append("</").append(element).append('>');
+				return "<continue " + param + "=\"" + escape(entry.getKey()) + "\" continue=\"-||\" />";
+			}
+			query.append('<').append(item).append(" ns=\"0\" title=\"").append(escape(entry.getKey())).append("\" />");
+			n++;
+		}
+		query.append("</").append(element).append('>');
+		return null;
+	}
+
+	/**
+	 * Lists the page creations made at or after rcstart, oldest first.
+	 */
+	private synchronized String recentChanges(Map<String, String> params, StringBuilder query) {
+		long start = (params.get("rcstart") == null) ? 0 : parseTimestamp(params.get("rcstart"));
+		int index = params.containsKey("rccontinue") ? Integer.parseInt(params.get("rccontinue")) : 0;
+		while (params.get("rccontinue") == null && index < creations.size()
+				&& creations.get(index).timestamp / 1000 < start / 1000) {
+			index++;
+		}
+		query.append("<recentchanges>");
+		int limit = limit(params.get("rclimit"));
+		for (int n = 0; index < creations.size(); index++, n++) {
+			if (n == limit) {
+				query.append("</recentchanges>");
+				return "<continue rccontinue=\"" + index + "\" continue=\"-||\" />";
+			}
+			Revision rev = creations.get(index);
+			query.append("<rc type=\"new\" ns=\"0\" title=\"").append(escape(rev.title)).append("\" timestamp=\"")
+					.append(timestamp(rev.timestamp)).append("\" />");
+		}
+		query.append("</recentchanges>");
+		return null;
+	}
+
+	/**
+	 * Answers prop=revisions and prop=info (or no prop) for the titles given.
+	 */
+	private void pages(Map<String, String> params, String prop, String titleParam, StringBuilder query,
+			StringBuilder out) {
+		int max = highLimits ? BatchWiki.HIGH_MAX : BatchWiki.SLOW_MAX;
+		List<String> requested = new ArrayList<String>();
+		for (String title : Splitter.on('|').split(titleParam)) {
+			requested.add(title);
+		}
+		if (requested.size() > max) {
+			out.append("<warnings><query xml:space=\"preserve\">Too many values supplied for parameter 'titles': the limit is ")
+					.append(max).append("</query></warnings>");
+			requested = requested.subList(0, max);
+		}
+		boolean revisions = prop != null && prop.contains("revisions");
+		boolean content = revisions && params.containsKey("rvprop") && params.get("rvprop").contains("content");
+		boolean token = "edit".equals(params.get("intoken"));
+		StringBuilder normalized = new StringBuilder();
+		StringBuilder found = new StringBuilder();
+		int missing = -1;
+		for (String title : requested) {
+			String n = normalize(title);
+			if (!n.equals(title)) {
+				normalized.append("<n from=\"").append(escape(title)).append("\" to=\"").append(escape(n)).append("\" />");
+			}
+			Revision rev = pages.get(n);
+			if (rev == null) {
+				found.append("<page ns=\"0\" title=\"").append(escape(n)).append("\" missing=\"\"");
+				if (token) {
+					found.append(" starttimestamp=\"").append(timestamp(System.currentTimeMillis()))
+							.append("\" edittoken=\"").append(escape(TOKEN)).append('"');
+				}
+				found.append(" />");
+				missing--;
+				continue;
+			}
+			found.append("<page pageid=\"").append(rev.pageId).append("\" ns=\"0\" title=\"").append(escape(rev.title))
+					.append("\" touched=\"").append(timestamp(rev.timestamp)).append("\" lastrevid=\"")
+					.append(rev.revid).append("\" length=\"").append(rev.text.length()).append('"');
+			if (token) {
+				found.append(" starttimestamp=\"").append(timestamp(System.currentTimeMillis()))
+						.append("\" edittoken=\"").append(escape(TOKEN)).append('"');
+			}
+			if (!revisions) {
+				found.append(" />");
+				continue;
+			}
+			found.append("><revisions><rev revid=\"").append(rev.revid).append("\" parentid=\"").append(rev.parentid)
+					.append("\" user=\"").append(escape(rev.user)).append("\" timestamp=\"")
+					.append(timestamp(rev.timestamp)).append("\" comment=\"").append(escape(rev.comment)).append('"');
+			if (content) {
+				found.append(" xml:space=\"preserve\">").append(escape(rev.text)).append("</rev>");
+			} else {
+				found.append(" />");
+			}
+			found.append("</revisions></page>");
+		}
+		if (normalized.length() > 0) {
+			query.append("<normalized>").append(normalized).append("</normalized>");
+		}
+		query.append("<pages>").append(found).append("</pages>");
+	}
+
+	private void raw(HttpExchange exchange, Map<String, String> params) throws IOException {
+		count("raw");
+		String title = params.get("title");
+		Revision rev = (title == null) ? null : pages.get(normalize(title));
+		if (rev == null || !"raw".equals(params.get("action"))) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		send(exchange, 200, "text/x-wiki; charset=UTF-8", rev.text);
+	}
+
+	private void respond(HttpExchange exchange, int status, String body) throws IOException {
+		send(exchange, status, "text/xml; charset=utf-8", "<?xml version=\"1.0\"?><api>" + body + "</api>");
+	}
+
+	private void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(Charsets.UTF_8);
+		String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accepted != null && accepted.contains("gzip")) {
+			ByteArrayOutputStream zipped = new ByteArrayOutputStream(bytes.length / 4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(zipped);
+			gzip.write(bytes);
+			gzip.close();
+			bytes = zipped.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private void count(String kind) {
+		AtomicLong counter = requests.get(kind);
+		if (counter == null) {
+			synchronized (requests) {
+				counter = requests.get(kind);
+				if (counter == null) {
+					counter = new AtomicLong();
+					requests.put(kind, counter);
+				}
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/* ---- Helpers ---- */
+
+	private static String error(String code, String info) {
+		return "<error code=\"" + code + "\" info=\"" + escape(info) + "\" />";
+	}
+
+	private static int limit(String value) {
+		if (value == null || value.equals("max")) {
+			return LIST_LIMIT;
+		}
+		return Math.max(1, Math.min(LIST_LIMIT, Integer.parseInt(value)));
+	}
+
+	static String normalize(String title) {
+		String t = title.replace('_', ' ').trim();
+		if (t.isEmpty()) {
+			return t;
+		}
+		return Character.toUpperCase(t.charAt(0)) + t.substring(1);
+	}
+
+	private static Map<String, String> parse(String query) {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null || query.isEmpty()) {
+			return params;
+		}
+		for (String pair : Splitter.on('&').omitEmptyStrings().split(query)) {
+			int eq = pair.indexOf('=');
+			String key = (eq == -1) ? pair : pair.substring(0, eq);
+			String value = (eq == -1) ? "" : pair.substring(eq + 1);
+			params.put(decode(key), decode(value));
+		}
+		return params;
+	}
+
+	private static String decode(String text) {
+		try {
+			return URLDecoder.decode(text, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String encode(String text) {
+		return BatchWiki.encode(text);
+	}
+
+	private static String escape(String text) {
+		StringBuilder out = null;
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			String entity = (ch == '&') ? "&amp;" : (ch == '<') ? "&lt;" : (ch == '>') ? "&gt;"
+					: (ch == '"') ? "&quot;" : null;
+			if (entity != null && out == null) {
+				out = new StringBuilder(text.length() + 16).append(text, 0, i);
+			}
+			if (out != null) {
+				if (entity != null) {
+					out.append(entity);
+				} else {
+					out.append(ch);
+				}
+			}
+		}
+		return (out == null) ? text : out.toString();
+	}
+
+	private static String timestamp(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(millis));
+	}
+
+	private static long parseTimestamp(String timestamp) {
+		// the API takes ISO 8601 and MediaWiki's own 14-digit format
+		SimpleDateFormat format = new SimpleDateFormat(timestamp.contains("-") ? "yyyy-MM-dd'T'HH:mm:ss'Z'" : "yyyyMMddHHmmss");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try {
+			return format.parse(timestamp).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Bad timestamp " + timestamp, e);
+		}
+	}
+
+	/**
+	 * The latest revision of a page.
+	 */
+	private static final class Revision {
+
+		final String 	title;
+		final int 		pageId;
+		final long 		revid;
+		final long 		parentid;
+		final String 	text;
+		final String 	user;
+		final String 	comment;
+		final long 		timestamp;
+
+		Revision(String title, int pageId, long revid, long parentid, String text, String user, String comment,
+				long timestamp) {
+			this.title = title;
+			this.pageId = pageId;
+			this.revid = revid;
+			this.parentid = parentid;
+			this.text = text;
+			this.user = user;
+			this.comment = comment;
+			this.timestamp = timestamp;
+		}
+	}
+
+}
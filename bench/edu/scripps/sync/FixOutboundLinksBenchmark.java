@@ -0,0 +1,80 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+
+/**
+ * Compares the single-pass GeneWikiSync.fixOutboundLinks with the original implementation,
+ * which rebuilt the whole article string for every link and asked the target about each link
+ * separately. Each preset article is first checked to produce byte-identical output with both
+ * versions, then timed. The number of exists() requests each version needs is reported too.
+ * <p>
+ * Run with the project classpath: java edu.scripps.sync.FixOutboundLinksBenchmark [iterations]
+ * @author eclarke
+ *
+ */
+public class FixOutboundLinksBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		StubWiki wiki = new StubWiki();
+		GeneWikiSync sync = new GeneWikiSync(wiki, wiki, 1, true);
+
+		for (ArticleCorpus.Preset preset : ArticleCorpus.Preset.values()) {
+			String article = preset.generate(42);
+			long calls = wiki.getExistsCalls();
+			String before = legacyFixOutboundLinks(wiki, article);
+			long legacyCalls = wiki.getExistsCalls() - calls;
+			calls = wiki.getExistsCalls();
+			sync.startCycle();
+			String after = sync.fixOutboundLinks(article);
+			long currentCalls = wiki.getExistsCalls() - calls;
+			if (!before.equals(after)) {
+				throw new AssertionError("Output differs for "+preset);
+			}
+			// warm up both versions before timing
+			for (int i = 0; i < iterations / 4; i++) {
+				legacyFixOutboundLinks(wiki, article);
+				sync.fixOutboundLinks(article);
+			}
+			long legacy = time(iterations, wiki, article, null);
+			long current = time(iterations, wiki, article, sync);
+			System.out.println(String.format("%-8s %7d bytes   before: %8.3f ms/op, %4d requests   after: %8.3f ms/op, %4d requests   (%.1fx)", 
+					preset, article.length(), legacy / 1e6 / iterations, legacyCalls, 
+					current / 1e6 / iterations, currentCalls, (double) legacy / current));
+		}
+	}
+
+	private static long time(int iterations, StubWiki wiki, String article, GeneWikiSync sync) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (sync == null) {
+				legacyFixOutboundLinks(wiki, article);
+			} else {
+				sync.startCycle();	// don't let the existence cache carry over between iterations
+				sync.fixOutboundLinks(article);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * The original implementation, kept as the reference for output and speed.
+	 */
+	static String legacyFixOutboundLinks(StubWiki target, String src) throws IOException {
+		src = src.replace("[[", "[[#");
+		while (src.contains("[[#") && src.contains("]]")) {
+			int a = src.indexOf("[[#")+3;
+			int b = src.indexOf("]]", a);
+			String link = src.substring(a, b);
+			int c = link.indexOf("|");
+			String linkTitle = (c == -1) ? link : src.substring(a, a+c);
+			if (!target.exists(linkTitle)[0]) {
+				src = src.substring(0, a-1)+"wikipedia:"+src.substring(a);
+			} else {
+				src = src.substring(0, a-1) + src.substring(a);
+			}
+		}
+		return src;
+	}
+
+}
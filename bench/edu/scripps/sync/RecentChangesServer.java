@@ -0,0 +1,166 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * RecentChangesServer is a local stand-in for a server-sent events recent-changes feed (such
+ * as Wikimedia's EventStreams), so ChangeStream can be tried without network access. Events are
+ * served at /v2/stream/recentchange in the same JSON shape, with ids, keep-alive comments and
+ * resumption from the Last-Event-ID header (for the last 1000 events).
+ * <p>
+ * Run standalone, it publishes random edits to the given titles, sometimes in bursts of
+ * several edits to the same page, plus edits to other wikis and unwatched pages that the
+ * stream should ignore:
+ * <pre>
+ * java edu.scripps.sync.RecentChangesServer [port] [events/s] [domain] [title...]
+ * </pre>
+ * Point sync.push.url at http://localhost:port/v2/stream/recentchange.
+ * @author eclarke
+ *
+ */
+public class RecentChangesServer {
+
+	private static final int HISTORY = 1000;
+
+	private final HttpServer server;
+	private final List<BlockingQueue<String>> clients = new CopyOnWriteArrayList<BlockingQueue<String>>();
+	private final List<String> history = new ArrayList<String>();
+	private long nextId = 1;
+
+	/**
+	 * Starts serving on the specified port (0 for any free port).
+	 * @param port port
+	 * @throws IOException if the port can't be bound
+	 */
+	public RecentChangesServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/v2/stream/recentchange", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	/**
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Publishes an edit event to every connected client.
+	 * @param domain server_name of the wiki edited
+	 * @param title title of the page edited
+	 * @param revid new revision id
+	 */
+	public synchronized void publish(String domain, String title, long revid) {
+		long id = nextId++;
+		String event = String.format("id: %d\ndata: {\"type\":\"edit\",\"namespace\":0,\"title\":\"%s\","
+				+ "\"server_name\":\"%s\",\"timestamp\":%d,\"revision\":{\"old\":%d,\"new\":%d}}\n\n",
+				id, escape(title), domain, System.currentTimeMillis() / 1000, revid - 1, revid);
+		history.add(event);
+		if (history.size() > HISTORY) {
+			history.remove(0);
+		}
+		for (BlockingQueue<String> client : clients) {
+			client.offer(event);
+		}
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+		synchronized (this) {
+			String last = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+			if (last != null) {
+				long after = Long.parseLong(last.trim());
+				for (String event : history) {
+					if (Long.parseLong(event.substring(4, event.indexOf('\n'))) > after) {
+						queue.add(event);
+					}
+				}
+			}
+			clients.add(queue);
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			while (true) {
+				String event = queue.poll(15, TimeUnit.SECONDS);
+				out.write((event == null ? ":\n\n" : event).getBytes(Charsets.UTF_8));
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			// server stopping
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			clients.remove(queue);
+			exchange.close();
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8099;
+		double rate = (args.length > 1) ? Double.parseDouble(args[1]) : 2;
+		String domain = (args.length > 2) ? args[2] : "en.wikipedia.org";
+		List<String> titles = new ArrayList<String>();
+		for (int i = 3; i < args.length; i++) {
+			titles.add(args[i]);
+		}
+		if (titles.isEmpty()) {
+			for (int i = 1; i <= 20; i++) {
+				titles.add("Gene " + i);
+			}
+		}
+		RecentChangesServer server = new RecentChangesServer(port);
+		System.out.println("Serving http://localhost:" + server.getPort() + "/v2/stream/recentchange");
+		Random random = new Random(42);
+		long revid = 1000000;
+		while (true) {
+			Thread.sleep((long) (random.nextDouble() * 2000 / rate));
+			int kind = random.nextInt(10);
+			if (kind == 0) {
+				server.publish("de.wikipedia.org", titles.get(random.nextInt(titles.size())), ++revid);
+			} else if (kind == 1) {
+				server.publish(domain, "Unwatched page " + random.nextInt(1000), ++revid);
+			} else if (kind == 2) {
+				// a burst of edits to one page, which should be written once
+				String title = titles.get(random.nextInt(titles.size()));
+				for (int i = 0; i < 5; i++) {
+					server.publish(domain, title, ++revid);
+					Thread.sleep(300);
+				}
+			} else {
+				server.publish(domain, titles.get(random.nextInt(titles.size())), ++revid);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package edu.scripps.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the rewrite hot path, Sync.rewriteArticleContent, for DefaultSync (no
+ * rules, the baseline) and GeneWikiSync (outbound links and SWL templates); TokenizeBenchmark
+ * times the RewriteEngine's scan on its own. Articles come from ArticleCorpus, at its real-sized
+ * presets, with their links and SWL templates scaled by density; the target is a StubWiki, so
+ * existence lookups cost no network.
+ * <p>
+ * rewrite measures an article rewritten mid-cycle, with the link titles already in the
+ * existence cache (as after the pipeline's prepareRewrite); rewriteColdCache clears the cache
+ * first, as for the first article of a cycle. Throughput and sampled latency are reported, and
+ * allocation rate too when run through main() or with -prof gc.
+ * <p>
+ * Build and run with:
+ * <pre>
+ * mvn -Pbenchmark package
+ * java -jar target/benchmarks.jar RewriteBenchmark -prof gc
+ * </pre>
+ * @author eclarke
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RewriteBenchmark {
+
+	@Param({ "DefaultSync", "GeneWikiSync" })
+	public String sync;
+
+	@Param({ "STUB", "TYPICAL", "LARGE" })
+	public String preset;
+
+	/** Multiplies the preset's links and SWL templates per kilobyte */
+	@Param({ "0.5", "1", "2" })
+	public double density;
+
+	private Sync 	instance;
+	private String 	article;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		StubWiki wiki = new StubWiki();
+		if (sync.equals("GeneWikiSync")) {
+			instance = new GeneWikiSync(wiki, wiki, 1, true);
+		} else {
+			instance = new DefaultSync(wiki, wiki, 1, true);
+		}
+		ArticleCorpus.Preset p = ArticleCorpus.Preset.valueOf(preset);
+		article = ArticleCorpus.generate(42, p.kilobytes, 
+				(int) Math.max(1, Math.round(p.linksPerKb * density)), 
+				(int) Math.round(p.swlPer10Kb * density));
+		List<SourcePage> pages = new ArrayList<SourcePage>();
+		pages.add(new SourcePage("Benchmark", article, 1, "bench", "", null));
+		instance.startCycle();
+		instance.prepareRewrite(pages);
+	}
+
+	@Benchmark
+	public String rewrite() {
+		return instance.rewriteArticleContent(article);
+	}
+
+	@Benchmark
+	public String rewriteColdCache() {
+		instance.startCycle();
+		return instance.rewriteArticleContent(article);
+	}
+
+	/**
+	 * Runs the rewrite benchmarks with the GC profiler (for the allocation rate).
+	 * @param args ignored
+	 * @throws RunnerException if JMH fails
+	 */
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(RewriteBenchmark.class.getName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,57 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.Lists;
+
+/**
+ * StubWiki answers existence queries locally so rewrite rules can be benchmarked
+ * without a network. Titles containing characters MediaWiki forbids never exist;
+ * of the rest, roughly two out of three "exist", decided by the title's hash so
+ * the answer is stable from run to run.
+ * @author eclarke
+ *
+ */
+public class StubWiki extends BatchWiki {
+
+	private static final Pattern INVALID = Pattern.compile("[\\[\\]{}|<>]");
+
+	private long existsCalls;
+
+	public StubWiki() {
+		super("localhost", "/w");
+	}
+
+	@Override
+	public boolean[] exists(String... titles) throws IOException {
+		existsCalls++;
+		boolean[] ret = new boolean[titles.length];
+		for (int i = 0; i < titles.length; i++) {
+			ret[i] = !INVALID.matcher(titles[i]).find() && (titles[i].hashCode() & 0x7fffffff) % 3 != 0;
+		}
+		return ret;
+	}
+
+	@Override
+	public boolean[] exists(List<String> titles) throws IOException {
+		boolean[] ret = new boolean[titles.size()];
+		int i = 0;
+		for (List<String> chunk : Lists.partition(titles, getBatchLimit())) {
+			for (boolean exists : exists(chunk.toArray(new String[chunk.size()]))) {
+				ret[i++] = exists;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of exists() calls (i.e. requests a real wiki would have served), counting
+	 * every batch of a multi-batch call
+	 */
+	public long getExistsCalls() {
+		return existsCalls;
+	}
+
+}
@@ -0,0 +1,163 @@
+package edu.scripps.sync;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * SyncLoadTest drives a GeneWikiSync through full cycles between two FakeMediaWikis, with
+ * every watched page changed before each cycle, and reports how fast the pages went through:
+ * pages per second, requests to each wiki per page (by kind), and the cycle times. Nothing
+ * leaves the machine. The sync is set up as SyncJob would set it up for production (BatchWiki
+ * clients with rate controllers, a pipeline, a streaming watchlist and a checkpoint), so the
+ * numbers show how its own request pattern and concurrency scale:
+ * <pre>
+ * java edu.scripps.sync.SyncLoadTest [pages] [cycles] [kilobytes] [latency ms] [error rate] [lag s] [transport]
+ * </pre>
+ * Defaults: 10000 pages of about 2 KB, 5 cycles, no latency, errors or lag, and the pooled
+ * transport. The transport is "client" (the Wiki client's own connections), "pooled" (see
+ * PooledTransport) or "pipelined" (pooled, with pipelining on). An error rate
+ * answers that fraction of requests with HTTP 503; a lag makes the wikis answer one in a hundred of
+ * the requests with maxlag errors. Either pauses the client for RateController's retry time,
+ * as a real wiki would.
+ * @author eclarke
+ *
+ */
+public class SyncLoadTest {
+
+	private static final String USER = "LoadTestBot";
+
+	public static void main(String[] args) throws Exception {
+		int pages 		= (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int cycles 		= (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		int kilobytes 	= (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+		long latency 	= (args.length > 3) ? Long.parseLong(args[3]) : 0;
+		double errors 	= (args.length > 4) ? Double.parseDouble(args[4]) : 0;
+		double lag 		= (args.length > 5) ? Double.parseDouble(args[5]) : 0;
+		String transport = (args.length > 6) ? args[6] : "pooled";
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		FakeMediaWiki sourceWiki = new FakeMediaWiki(0, 32);
+		FakeMediaWiki targetWiki = new FakeMediaWiki(0, 32);
+		try {
+			System.out.println(String.format("Creating %d source pages of about %d KB...", pages, kilobytes));
+			for (int i = 0; i < pages; i++) {
+				sourceWiki.putPage(title(i), ArticleCorpus.generate(i, kilobytes, 6, 1), "Editor", "", true);
+			}
+			// half the linked articles exist on the target, so link checks go both ways
+			for (int i = 0; i < ArticleCorpus.GENES.length; i += 2) {
+				targetWiki.putPage(ArticleCorpus.GENES[i], "Article", USER, "", false);
+			}
+			for (FakeMediaWiki wiki : new FakeMediaWiki[] { sourceWiki, targetWiki }) {
+				wiki.setLatency(latency);
+				wiki.setErrorRate(errors);
+				wiki.setLag(lag, 0.01);
+			}
+
+			BatchWiki source = client(sourceWiki, transport);
+			BatchWiki target = client(targetWiki, transport);
+			GeneWikiSync sync = new GeneWikiSync(source, target, 1, true);
+			sync.setPipeline(new SyncPipeline(4, cores, 4, 100));
+			sync.setStreamWindow(500);
+			File checkpoint = File.createTempFile("loadtest", ".checkpoint");
+			checkpoint.delete();
+			checkpoint.deleteOnExit();
+			sync.setCheckpoint(new SyncCheckpoint(checkpoint));
+
+			Histogram cycleMillis = new Histogram();
+			long totalPages = 0;
+			long totalMillis = 0;
+			for (int cycle = 1; cycle <= cycles; cycle++) {
+				if (cycle > 1) {
+					for (int i = 0; i < pages; i++) {
+						String title = title(i);
+						sourceWiki.putPage(title, sourceWiki.getText(title) + "\nEdited in cycle " + cycle + ".",
+								"Editor", "", true);
+					}
+				}
+				Map<String, Long> sourceBefore = sourceWiki.getRequestCounts();
+				Map<String, Long> targetBefore = targetWiki.getRequestCounts();
+				long sourceRequests = sourceWiki.getRequestCount();
+				long targetRequests = targetWiki.getRequestCount();
+				long edits = targetWiki.getEditCount();
+				long start = System.nanoTime();
+				sync.run();
+				long millis = (System.nanoTime() - start) / 1000000;
+				CycleStats stats = sync.getLastCycleStats();
+				int written = stats.getOutcomeCount(SyncOutcome.WRITTEN);
+				cycleMillis.record(millis);
+				totalPages += written;
+				totalMillis += millis;
+				System.out.println(String.format(Locale.ROOT,
+						"Cycle %d: %d changes, %d written (%d edits saved) in %d ms: %.1f pages/s, "
+						+ "%.2f source and %.2f target requests per page.",
+						cycle, stats.getChanges(), written, targetWiki.getEditCount() - edits, millis,
+						written * 1000.0 / Math.max(1, millis),
+						(sourceWiki.getRequestCount() - sourceRequests) / (double) Math.max(1, written),
+						(targetWiki.getRequestCount() - targetRequests) / (double) Math.max(1, written)));
+				System.out.println("  source: " + perPage(sourceBefore, sourceWiki.getRequestCounts(), written));
+				System.out.println("  target: " + perPage(targetBefore, targetWiki.getRequestCounts(), written));
+			}
+
+			System.out.println(String.format(Locale.ROOT,
+					"%d pages in %d cycles: %.1f pages/s; cycle time p50 %d ms, p99 %d ms, max %d ms.",
+					totalPages, cycles, totalPages * 1000.0 / Math.max(1, totalMillis),
+					cycleMillis.getPercentile(0.5), cycleMillis.getPercentile(0.99), cycleMillis.getMax()));
+			SortedMap<String, Number> metrics = sync.getMetrics().snapshot();
+			for (String stage : new String[] { "watchlist", "fetch", "rewrite", "edit" }) {
+				System.out.println(String.format("%s latency: p50 %s us, p99 %s us, max %s us.", stage,
+						metrics.get(stage + ".latency.p50"), metrics.get(stage + ".latency.p99"),
+						metrics.get(stage + ".latency.max")));
+			}
+			for (String wiki : new String[] { "source", "target" }) {
+				if (metrics.get(wiki + ".bytes.sent") != null) {
+					System.out.println(String.format("%s transport: %s bytes sent, %s received; %s connections opened, "
+							+ "%s requests on reused connections, %s pipelined, %s compressed.", wiki,
+							metrics.get(wiki + ".bytes.sent"), metrics.get(wiki + ".bytes.received"),
+							metrics.get(wiki + ".connections.opened"), metrics.get(wiki + ".connections.reused"),
+							metrics.get(wiki + ".pipelined"), metrics.get(wiki + ".compressed")));
+				}
+			}
+			sync.getPipeline().shutdown();
+		} finally {
+			sourceWiki.stop();
+			targetWiki.stop();
+		}
+	}
+
+	private static BatchWiki client(FakeMediaWiki wiki, String transport) throws Exception {
+		BatchWiki client = new BatchWiki(wiki.getDomain(), FakeMediaWiki.SCRIPT_PATH);
+		client.setMaxLag(5);
+		client.setRateController(new RateController(1000, 1, 100000));
+		if (!transport.equals("client")) {
+			client.setTransport(new PooledTransport(8, true, transport.equals("pipelined")));
+		}
+		client.login(USER, "password".toCharArray());
+		return client;
+	}
+
+	private static String title(int i) {
+		return String.format("Load test page %05d", i);
+	}
+
+	/**
+	 * @return the requests of each kind made between the two counts, per page
+	 */
+	private static String perPage(Map<String, Long> before, Map<String, Long> after, int pages) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : after.entrySet()) {
+			Long was = before.get(entry.getKey());
+			long made = entry.getValue() - ((was == null) ? 0 : was);
+			if (made == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(String.format(Locale.ROOT, "%s %.3f", entry.getKey(), made / (double) Math.max(1, pages)));
+		}
+		return (sb.length() == 0) ? "no requests" : sb.toString();
+	}
+
+}
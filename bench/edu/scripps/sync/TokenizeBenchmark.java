@@ -0,0 +1,60 @@
+package edu.scripps.sync;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the RewriteEngine's single scan over an article, for all kinds of construct
+ * and for links only, on the ArticleCorpus presets. The scan is the part of every rewrite that
+ * grows with the article's size rather than with its rules' work. See RewriteBenchmark for how
+ * to run it.
+ * @author eclarke
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizeBenchmark {
+
+	private static final Set<WikiToken.Kind> ALL 	= EnumSet.allOf(WikiToken.Kind.class);
+	private static final Set<WikiToken.Kind> LINKS 	= EnumSet.of(WikiToken.Kind.LINK);
+
+	@Param({ "STUB", "TYPICAL", "LARGE" })
+	public String preset;
+
+	private String article;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		article = ArticleCorpus.Preset.valueOf(preset).generate(42);
+	}
+
+	@Benchmark
+	public List<WikiToken> tokenizeAll() {
+		return RewriteEngine.tokenize(article, ALL);
+	}
+
+	@Benchmark
+	public List<WikiToken> tokenizeLinks() {
+		return RewriteEngine.tokenize(article, LINKS);
+	}
+
+}
@@ -0,0 +1,65 @@
+package edu.scripps.sync;
+
+/**
+ * AdaptivePeriod chooses the time between sync cycles from what recent cycles saw, within
+ * configured bounds. When a cycle finds many changes, or takes a large part of the period to
+ * write them, the period is halved so the backlog doesn't build up; when cycles find nothing
+ * (or very little), the period grows gradually so quiet hours don't waste watchlist queries.
+ * @author eclarke
+ *
+ */
+public class AdaptivePeriod {
+
+	/** Cycles finding more changes than this shorten the period */
+	static final int BUSY_CHANGES = 50;
+	/** Cycles finding fewer changes than this lengthen the period */
+	static final int QUIET_CHANGES = 5;
+
+	private final long 	min;
+	private final long 	max;
+	private long 		period;
+
+	/**
+	 * Creates a new adaptive period.
+	 * @param min shortest period (in milliseconds)
+	 * @param max longest period (in milliseconds)
+	 * @param initial period to start with (in milliseconds)
+	 */
+	public AdaptivePeriod(long min, long max, long initial) {
+		if (min <= 0 || max < min) {
+			throw new IllegalArgumentException("Adaptive period bounds must satisfy 0 < min <= max.");
+		}
+		this.min = min;
+		this.max = max;
+		this.period = clamp(initial);
+	}
+
+	/**
+	 * Adjusts the period after a successful cycle and returns the new value.
+	 * @param changes number of changed pages the cycle found
+	 * @param elapsed how long the cycle took (in milliseconds)
+	 * @return period until the next cycle (in milliseconds)
+	 */
+	public synchronized long next(int changes, long elapsed) {
+		if (changes > BUSY_CHANGES || elapsed > period / 2) {
+			period = clamp(period / 2);
+		} else if (changes == 0) {
+			period = clamp(period * 3 / 2);
+		} else if (changes < QUIET_CHANGES) {
+			period = clamp(period * 5 / 4);
+		}
+		return period;
+	}
+
+	/**
+	 * @return the current period (in milliseconds)
+	 */
+	public synchronized long getPeriod() {
+		return period;
+	}
+
+	private long clamp(long value) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+}
@@ -0,0 +1,195 @@
+package edu.scripps.sync;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+
+/**
+ * Backfill copies a whole list of pages to the target regardless of when they last changed,
+ * i.e. to bring up a new target, or to repair drift after a long outage. The titles (the whole
+ * watchlist, or a list in a file) are synced in sorted order, in chunks, through the Sync's
+ * pipeline, so fetching, rewriting and editing overlap and stay within the rate limits of each
+ * wiki. Pages the target already has are skipped if the Sync has a write store, and pages that
+ * fail go to its retry journal if it has one.
+ * <p>
+ * Progress is saved after every chunk, so a backfill that is stopped or crashes resumes after
+ * the last chunk it finished. Titles added to the list in the meantime that sort before that
+ * point are not picked up by the resumed run. Throughput and an ETA are printed after each chunk.
+ * Pages that fail (and weren't taken by a retry journal) are kept in the progress file, and the
+ * next run retries them first; once a run finishes without failures, the file is removed, so
+ * the next backfill starts over.
+ * @author eclarke
+ *
+ */
+public class Backfill {
+
+	private static final int SHOWN_FAILURES = 20;
+
+	private final Sync 	sync;
+	private final File 	progressFile;
+	private final int 	chunk;
+
+	/**
+	 * Creates a new backfill.
+	 * @param sync Sync that writes the pages
+	 * @param progressFile file recording how far the backfill got
+	 * @param chunk pages synced between progress saves
+	 */
+	public Backfill(Sync sync, File progressFile, int chunk) {
+		this.sync = sync;
+		this.progressFile = progressFile;
+		this.chunk = chunk;
+	}
+
+	/**
+	 * Reads a title list: one title per line; blank lines and lines starting with '#' are ignored.
+	 * @param file UTF-8 text file
+	 * @return titles in the file
+	 * @throws IOException if the file can't be read
+	 */
+	public static List<String> readTitles(File file) throws IOException {
+		List<String> titles = new ArrayList<String>();
+		for (String line : Files.readLines(file, Charsets.UTF_8)) {
+			line = line.trim();
+			if (line.length() > 0 && !line.startsWith("#")) {
+				titles.add(line);
+			}
+		}
+		return titles;
+	}
+
+	/**
+	 * Syncs every title not yet done by an earlier run with the same progress file, after the
+	 * titles that failed in that run.
+	 * @param titles titles to sync (duplicates are synced once)
+	 * @throws IOException if the progress can't be saved
+	 */
+	public void run(Collection<String> titles) throws IOException {
+		List<String> sorted = new ArrayList<String>(new TreeSet<String>(titles));
+		Properties progress = readProgress();
+		String last = progress.getProperty("last");
+		List<String> retry = new ArrayList<String>();
+		for (String title : Splitter.on('|').omitEmptyStrings().split(progress.getProperty("failed", ""))) {
+			retry.add(title);
+		}
+		int from = 0;
+		if (last != null) {
+			while (from < sorted.size() && sorted.get(from).compareTo(last) <= 0) {
+				from++;
+			}
+			log(String.format("Resuming backfill after \"%s\" (%d of %d pages already done, %d failed pages to retry).",
+					last, from, sorted.size(), retry.size()));
+		} else {
+			log(String.format("Starting backfill of %d pages...", sorted.size()));
+		}
+
+		// the failed pages of the earlier run go first; "last" only moves with the sorted titles
+		List<String> todo = new ArrayList<String>(retry);
+		todo.addAll(sorted.subList(from, sorted.size()));
+		int total = retry.size() + sorted.size();
+		long start = System.currentTimeMillis();
+		long written = 0, skipped = 0, missing = 0, queued = 0;
+		List<String> failures = new ArrayList<String>();
+		for (int i = 0; i < todo.size(); i += chunk) {
+			int end = Math.min(todo.size(), i + chunk);
+			CycleStats stats = sync.syncTitles(todo.subList(i, end));
+			written += stats.getOutcomeCount(SyncOutcome.WRITTEN);
+			skipped += stats.getOutcomeCount(SyncOutcome.SKIPPED);
+			missing += stats.getOutcomeCount(SyncOutcome.MISSING);
+			queued += stats.getOutcomeCount(SyncOutcome.QUEUED);
+			failures.addAll(stats.getFailedTitles());
+			List<String> pending = new ArrayList<String>(failures);
+			if (end < retry.size()) {
+				pending.addAll(todo.subList(end, retry.size()));
+			}
+			if (end > retry.size()) {
+				last = todo.get(end - 1);
+			}
+			writeProgress(last, from + Math.max(0, end - retry.size()), pending);
+
+			double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+			double rate = end / seconds;
+			long eta = (long) ((todo.size() - end) / Math.max(rate, 1e-9));
+			log(String.format("Backfill: %d/%d pages (%.1f%%), %.1f pages/s, ETA %s.",
+					from + end, total, 100.0 * (from + end) / Math.max(1, total), rate, duration(eta)));
+		}
+		if (failures.isEmpty() && progressFile.exists() && !progressFile.delete()) {
+			throw new IOException("Could not remove backfill progress "+progressFile);
+		}
+		log(String.format("Backfill finished: %d written, %d skipped, %d missing on the source, %d queued for retry, %d failed.",
+				written, skipped, missing, queued, failures.size()));
+		if (!failures.isEmpty()) {
+			List<String> shown = failures.subList(0, Math.min(SHOWN_FAILURES, failures.size()));
+			log(String.format("Failed: %s%s; kept in %s for the next backfill to retry.", shown,
+					(failures.size() > shown.size()) ? " and " + (failures.size() - shown.size()) + " more" : "", progressFile));
+		}
+	}
+
+	/**
+	 * @return the progress of an earlier run (the last title done and the titles that failed),
+	 * empty if there was none or it finished
+	 */
+	private Properties readProgress() throws IOException {
+		Properties props = new Properties();
+		if (!progressFile.exists()) {
+			return props;
+		}
+		Reader in = new FileReader(progressFile);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	private void writeProgress(String last, int done, List<String> failed) throws IOException {
+		Properties props = new Properties();
+		if (last != null) {
+			props.setProperty("last", last);
+		}
+		props.setProperty("done", String.valueOf(done));
+		props.setProperty("failed", Joiner.on('|').join(failed));
+		File tmp = new File(progressFile.getPath() + ".tmp");
+		Writer out = new FileWriter(tmp);
+		try {
+			props.store(out, "Backfill progress: last title synced, and titles that failed");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(progressFile)) {
+			progressFile.delete();
+			if (!tmp.renameTo(progressFile)) {
+				throw new IOException("Could not replace backfill progress "+progressFile);
+			}
+		}
+	}
+
+	private static String duration(long seconds) {
+		if (seconds >= 3600) {
+			return String.format("%dh%02dm", seconds / 3600, (seconds % 3600) / 60);
+		}
+		if (seconds >= 60) {
+			return String.format("%dm%02ds", seconds / 60, seconds % 60);
+		}
+		return seconds + "s";
+	}
+
+	private void log(String message) {
+		sync.log(message);
+	}
+
+}
@@ -0,0 +1,812 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.genewiki.api.Wiki;
+
+
+/**
+ * BatchWiki extends the Wiki client with multi-title queries, so the text and revision
+ * metadata of many pages can be retrieved in one API request instead of two requests
+ * per page (getPageText() and getTopRevision()).
+ * <p>
+ * It also counts every request it sends, so callers can see how many round trips
+ * a sync cycle actually cost, and can pace its requests with a RateController: requests
+ * the wiki turns away because it is overloaded (maxlag and ratelimited errors, HTTP 503
+ * and 429) slow the controller down and are retried after the wait the wiki asked for,
+ * instead of failing. The latency of every request and the characters sent and received are
+ * recorded too, and the requests and their responses can be written to a CycleRecorder.
+ * <p>
+ * Every request goes through exchange(), which subclasses can override to answer requests
+ * without the network (see ReplayWiki). Requests go out on the Wiki client's own connections,
+ * or through a WikiTransport if one is set (see PooledTransport), in which case independent
+ * reads (i.e. the existence checks of a batch of links) may be in flight together.
+ * @author eclarke
+ *
+ */
+public class BatchWiki extends Wiki {
+
+	/** Titles per query for regular accounts (MediaWiki's default multi-value limit) */
+	public static final int SLOW_MAX = 50;
+	/** Titles per query for accounts holding the apihighlimits right (bots, sysops) */
+	public static final int HIGH_MAX = 500;
+
+	/** Longest encoded titles parameter per query (front ends commonly refuse request lines over 8 KB) */
+	static final int MAX_TITLES_LENGTH = 6000;
+
+	/** Times an overloaded request is retried before its error is passed on */
+	static final int MAX_RETRIES = 5;
+
+	private static final Pattern ATTRIBUTE = Pattern.compile("([\\w-]+)=\"([^\"]*)\"");
+	private static final Pattern LAGGED = Pattern.compile("(\\d+(?:\\.\\d+)?) seconds? lagged");
+	private static final Pattern OVERLOADED = Pattern.compile("response code: (503|429)");
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong charsSent = new AtomicLong();
+	private final AtomicLong charsReceived = new AtomicLong();
+	private final Histogram latency = new Histogram();
+	private volatile RateController rateController;
+	private volatile CycleRecorder recorder;
+	private volatile int recordedAs;
+	private volatile WikiTransport transport;
+
+	public BatchWiki() {
+		super();
+	}
+
+	public BatchWiki(String domain, String scriptPath) {
+		super(domain, scriptPath);
+	}
+
+	/**
+	 * Returns the number of titles that may be sent in a single query, which depends
+	 * on whether the logged-in account has the apihighlimits right.
+	 * @return titles per request
+	 */
+	public int getBatchLimit() {
+		User user = getCurrentUser();
+		try {
+			if (user != null && user.isAllowedTo("apihighlimits")) {
+				return HIGH_MAX;
+			}
+		} catch (IOException e) {
+			// can't tell, so be conservative
+		}
+		return SLOW_MAX;
+	}
+
+	/**
+	 * Returns the total number of requests this client has sent.
+	 * @return request count
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of characters this client has posted (request bodies only).
+	 * @return characters sent
+	 */
+	public long getCharsSent() {
+		return charsSent.get();
+	}
+
+	/**
+	 * Returns the number of characters of response this client has received, after decoding
+	 * (about the number of bytes, for mostly-ASCII wikitext and XML).
+	 * @return characters received
+	 */
+	public long getCharsReceived() {
+		return charsReceived.get();
+	}
+
+	/**
+	 * @return latencies of this client's requests (in microseconds; every retry is a request of
+	 * its own), not counting the time spent waiting for the rate controller
+	 */
+	public Histogram getRequestLatency() {
+		return latency;
+	}
+
+	/**
+	 * Paces this client's requests with the specified controller (or stops pacing them, if null).
+	 * @param rateController controller for this wiki
+	 */
+	public void setRateController(RateController rateController) {
+		this.rateController = rateController;
+	}
+
+	public RateController getRateController() {
+		return rateController;
+	}
+
+	/**
+	 * Records every request from now on, with its response, as requests to the specified wiki.
+	 * @param recorder recorder, or null to stop recording
+	 * @param wiki CycleRecording.SOURCE or CycleRecording.TARGET
+	 */
+	public void setRecorder(CycleRecorder recorder, int wiki) {
+		this.recordedAs = wiki;
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Sends every request from now on through the specified transport instead of the client's
+	 * own connections (or through the client again, if null).
+	 * @param transport transport for this wiki
+	 */
+	public void setTransport(WikiTransport transport) {
+		this.transport = transport;
+	}
+
+	public WikiTransport getTransport() {
+		return transport;
+	}
+
+	@Override
+	protected String fetch(String url, String caller) throws IOException {
+		return send(url, null, caller, false);
+	}
+
+	@Override
+	protected String post(String url, String text, String caller) throws IOException {
+		return send(url, text, caller, false);
+	}
+
+	/**
+	 * Sends a GET (if text is null) or POST request through the rate controller, retrying it
+	 * while the wiki says it's overloaded. If acquired, the first attempt goes out on a permit
+	 * the caller already took.
+	 */
+	private String send(String url, String text, String caller, boolean acquired) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			RateController rate = rateController;
+			if (rate != null && !(acquired && attempt == 0)) {
+				rate.acquire();
+			}
+			requests.incrementAndGet();
+			if (text != null) {
+				charsSent.addAndGet(text.length());
+			}
+			CycleRecorder recorder = this.recorder;
+			long start = System.nanoTime();
+			String response;
+			try {
+				response = exchange(url, text, caller);
+				charsReceived.addAndGet(response.length());
+			} catch (IOException e) {
+				long micros = (System.nanoTime() - start) / 1000;
+				latency.record(micros);
+				if (recorder != null) {
+					recorder.record(recordedAs, url, text, null, e, micros);
+				}
+				long retryAfter = retryAfter(e);
+				if (rate == null || retryAfter < 0 || attempt == MAX_RETRIES) {
+					throw e;
+				}
+				rate.throttled(retryAfter);
+				continue;
+			}
+			long micros = (System.nanoTime() - start) / 1000;
+			latency.record(micros);
+			if (recorder != null) {
+				recorder.record(recordedAs, url, text, response, null, micros);
+			}
+			long retryAfter = retryAfter(response);
+			if (rate == null) {
+				return response;
+			}
+			if (retryAfter < 0) {
+				rate.succeeded();
+				return response;
+			}
+			rate.throttled(retryAfter);
+			if (attempt == MAX_RETRIES) {
+				return response; // let the caller see the error
+			}
+		}
+	}
+
+	/**
+	 * Sends a single request: a GET if text is null, otherwise a POST of the text.
+	 * @param url request URL
+	 * @param text form-encoded body of a POST, or null
+	 * @param caller name of the calling method, for the client's error messages
+	 * @return the response
+	 * @throws IOException if a network error occurs
+	 */
+	protected String exchange(String url, String text, String caller) throws IOException {
+		WikiTransport transport = this.transport;
+		if (transport != null) {
+			return (text == null) ? transport.get(withMaxLag(url)) : transport.post(withMaxLag(url), text);
+		}
+		return (text == null) ? super.fetch(url, caller) : super.post(url, text, caller);
+	}
+
+	/**
+	 * Sends independent GET requests, paced and recorded as fetch() does, through the transport's
+	 * getAll() if a transport is set (so they may be pipelined), otherwise one at a time. Responses
+	 * the wiki turned away as overloaded are fetched again on their own, after the wait it asked
+	 * for; if the transport fails, every request is.
+	 * @param urls request URLs
+	 * @param caller name of the calling method, for the client's error messages
+	 * @return the responses, in the order of the URLs
+	 * @throws IOException if a network error occurs
+	 */
+	protected List<String> fetchAll(List<String> urls, String caller) throws IOException {
+		List<String> responses = new ArrayList<String>(urls.size());
+		WikiTransport transport = this.transport;
+		if (transport == null || urls.size() < 2) {
+			for (String url : urls) {
+				responses.add(fetch(url, caller));
+			}
+			return responses;
+		}
+		RateController rate = rateController;
+		List<String> sent = new ArrayList<String>(urls.size());
+		for (String url : urls) {
+			if (rate != null) {
+				rate.acquire();
+			}
+			sent.add(withMaxLag(url));
+		}
+		long start = System.nanoTime();
+		List<String> answers;
+		try {
+			answers = transport.getAll(sent);
+		} catch (IOException e) {
+			// the requests go again on the permits taken for them, unless the wiki asked to wait
+			long retryAfter = retryAfter(e);
+			if (rate != null && retryAfter >= 0) {
+				rate.throttled(retryAfter);
+			}
+			for (String url : urls) {
+				responses.add(send(url, null, caller, retryAfter < 0));
+			}
+			return responses;
+		}
+		requests.addAndGet(urls.size());	// send() counted the fallback's
+		long micros = (System.nanoTime() - start) / 1000 / urls.size();	// the requests overlapped
+		CycleRecorder recorder = this.recorder;
+		for (int i = 0; i < urls.size(); i++) {
+			String response = answers.get(i);
+			latency.record(micros);
+			charsReceived.addAndGet(response.length());
+			if (recorder != null) {
+				recorder.record(recordedAs, urls.get(i), null, response, null, micros);
+			}
+			long retryAfter = retryAfter(response);
+			if (rate != null && retryAfter >= 0) {
+				rate.throttled(retryAfter);
+				response = send(urls.get(i), null, caller, false);
+			} else if (rate != null) {
+				rate.succeeded();
+			}
+			responses.add(response);
+		}
+		return responses;
+	}
+
+	/**
+	 * Adds the maxlag parameter the client adds to API requests, for requests that bypass it.
+	 */
+	private String withMaxLag(String url) {
+		int maxlag = getMaxLag();
+		if (maxlag < 1 || !url.contains("api.php") || url.contains("maxlag=")) {
+			return url;
+		}
+		return url + "&maxlag=" + maxlag;
+	}
+
+	/**
+	 * Returns how long to wait before retrying, if the response is a maxlag or ratelimited error
+	 * (the database lag the error reports, but at least RateController.DEFAULT_RETRY_AFTER),
+	 * or -1 if it isn't.
+	 */
+	static long retryAfter(String response) {
+		int error = response.indexOf("<error ");
+		if (error == -1) {
+			return -1;
+		}
+		String element = response.substring(error);
+		String code = attribute(element, "code");
+		if ("maxlag".equals(code)) {
+			// newer MediaWikis give the lag as an attribute, older ones only in the message
+			String lag = attribute(element, "lag");
+			if (lag == null) {
+				Matcher m = LAGGED.matcher(String.valueOf(attribute(element, "info")));
+				lag = m.find() ? m.group(1) : null;
+			}
+			long lagged = (lag == null) ? 0 : (long) (Double.parseDouble(lag) * 1000);
+			return Math.max(RateController.DEFAULT_RETRY_AFTER, lagged);
+		}
+		if ("ratelimited".equals(code)) {
+			return RateController.DEFAULT_RETRY_AFTER;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns how long to wait before retrying, if the exception reports an HTTP 503 (Service
+	 * Unavailable) or 429 (Too Many Requests), or -1 if it doesn't: the wait the wiki's
+	 * Retry-After asked for, where the transport passed it on (see OverloadedException),
+	 * otherwise RateController.DEFAULT_RETRY_AFTER.
+	 */
+	static long retryAfter(IOException e) {
+		if (e instanceof OverloadedException && ((OverloadedException) e).getRetryAfter() >= 0) {
+			return ((OverloadedException) e).getRetryAfter();
+		}
+		if (e.getMessage() == null || !OVERLOADED.matcher(e.getMessage()).find()) {
+			return -1;
+		}
+		return RateController.DEFAULT_RETRY_AFTER;
+	}
+
+	/**
+	 * Fetches the text and top revision metadata of the specified pages. Callers should not pass
+	 * more than getBatchLimit() titles; they are sent in one query, or in a few if their encoded
+	 * length calls for it (see batches()). Pages that do not exist are omitted from the result. If
+	 * the server truncates the response (large pages can exceed the API result size limit), the
+	 * pages left out are requested again until every title is accounted for.
+	 * @param titles page titles
+	 * @return the latest revision of each existing page, in no particular order
+	 * @throws IOException if a network error occurs
+	 */
+	public List<SourcePage> getLatestPages(Collection<String> titles) throws IOException {
+		List<SourcePage> pages = new ArrayList<SourcePage>(titles.size());
+		for (List<String> batch : batches(new ArrayList<String>(titles))) {
+			getLatestPages(batch, pages);
+		}
+		return pages;
+	}
+
+	/**
+	 * Fetches the pages of one query, adding them to the list.
+	 */
+	private void getLatestPages(List<String> titles, List<SourcePage> pages) throws IOException {
+		List<String> pending = new ArrayList<String>(titles);
+		while (!pending.isEmpty()) {
+			String xml = fetch(query + "prop=revisions&rvprop=ids%7Ctimestamp%7Cuser%7Ccomment%7Ccontent&titles="
+					+ encode(join(pending)), "getLatestPages");
+
+			// the server may normalize titles (i.e. first letter capitalized), so map them back
+			Map<String, String> requested = new HashMap<String, String>();
+			for (String title : pending) {
+				requested.put(title, title);
+			}
+			for (String n : elements(xml, "<n ")) {
+				requested.put(unescape(attribute(n, "to")), unescape(attribute(n, "from")));
+			}
+
+			List<String> truncated = new ArrayList<String>();
+			for (String page : elements(xml, "<page ")) {
+				String returned = unescape(attribute(page, "title"));
+				String title = requested.containsKey(returned) ? requested.get(returned) : returned;
+				if (attribute(page, "missing") != null || attribute(page, "invalid") != null) {
+					continue;
+				}
+				int rev = page.indexOf("<rev ");
+				if (rev == -1) {
+					truncated.add(title);
+					continue;
+				}
+				int open = page.indexOf('>', rev);
+				String tag = page.substring(rev, open + 1);
+				String text = "";
+				if (!tag.endsWith("/>")) {
+					text = unescape(page.substring(open + 1, page.indexOf("</rev>", open)));
+				}
+				pages.add(new SourcePage(title, text,
+						Long.parseLong(attribute(tag, "revid")),
+						unescape(attribute(tag, "user")),
+						attribute(tag, "comment") != null ? unescape(attribute(tag, "comment")) : "",
+						parseTimestamp(attribute(tag, "timestamp"))));
+			}
+			if (truncated.size() == pending.size()) {
+				throw new IOException("Server returned no revisions for "+truncated.size()+" requested pages.");
+			}
+			pending = truncated;
+		}
+	}
+
+	/**
+	 * Returns which of the specified titles exist, as exists() does, sending a query per
+	 * getBatchLimit() titles (or fewer, see batches()); the queries go out together if the
+	 * transport pipelines.
+	 * @param titles page titles
+	 * @return whether each title exists, in the order of the titles
+	 * @throws IOException if a network error occurs
+	 */
+	public boolean[] exists(List<String> titles) throws IOException {
+		List<List<String>> chunks = batches(titles);
+		List<String> urls = new ArrayList<String>(chunks.size());
+		for (List<String> chunk : chunks) {
+			urls.add(query + "prop=info&titles=" + encode(join(chunk)));
+		}
+		List<String> responses = fetchAll(urls, "exists");
+		boolean[] exists = new boolean[titles.size()];
+		int i = 0;
+		for (int c = 0; c < chunks.size(); c++) {
+			String xml = responses.get(c);
+			Map<String, String> normalized = new HashMap<String, String>();
+			for (String n : elements(xml, "<n ")) {
+				normalized.put(unescape(attribute(n, "from")), unescape(attribute(n, "to")));
+			}
+			Map<String, Boolean> found = new HashMap<String, Boolean>();
+			for (String page : elements(xml, "<page ")) {
+				found.put(unescape(attribute(page, "title")),
+						attribute(page, "missing") == null && attribute(page, "invalid") == null);
+			}
+			for (String title : chunks.get(c)) {
+				String returned = normalized.containsKey(title) ? normalized.get(title) : title;
+				exists[i++] = Boolean.TRUE.equals(found.get(returned));
+			}
+		}
+		return exists;
+	}
+
+	/**
+	 * Returns every page title in the given namespace, following the API's continuation
+	 * until the whole namespace has been listed.
+	 * @param namespace namespace id (0 for articles)
+	 * @return all titles in the namespace
+	 * @throws IOException if a network error occurs
+	 */
+	public List<String> getAllTitles(int namespace) throws IOException {
+		List<String> titles = new ArrayList<String>();
+		String next = "";
+		do {
+			String xml = fetch(query + "list=allpages&aplimit=max&apnamespace=" + namespace + next, "getAllTitles");
+			for (String p : elements(xml, "<p ")) {
+				titles.add(unescape(attribute(p, "title")));
+			}
+			next = continuation(xml);
+		} while (next != null);
+		return titles;
+	}
+
+	/**
+	 * Returns the page creations, deletions, restores and moves in the given namespace since
+	 * the specified time, oldest first, as recorded in the wiki's recent changes.
+	 * @param since lower bound (inclusive) of the changes
+	 * @param namespace namespace id (0 for articles)
+	 * @return title changes in chronological order
+	 * @throws IOException if a network error occurs
+	 */
+	public List<TitleChange> getTitleChanges(Calendar since, int namespace) throws IOException {
+		List<TitleChange> changes = new ArrayList<TitleChange>();
+		String next = "";
+		do {
+			String xml = fetch(query + "list=recentchanges&rctype=new%7Clog&rcprop=title%7Ctimestamp%7Cloginfo"
+					+ "&rcdir=newer&rclimit=max&rcnamespace=" + namespace 
+					+ "&rcstart=" + formatTimestamp(since) + next, "getTitleChanges");
+			for (String rc : elements(xml, "<rc ")) {
+				String title = unescape(attribute(rc, "title"));
+				Calendar timestamp = parseTimestamp(attribute(rc, "timestamp"));
+				if ("new".equals(attribute(rc, "type"))) {
+					changes.add(new TitleChange(TitleChange.Type.CREATE, title, null, timestamp));
+					continue;
+				}
+				String logtype = attribute(rc, "logtype");
+				String logaction = attribute(rc, "logaction");
+				if ("delete".equals(logtype) && "delete".equals(logaction)) {
+					changes.add(new TitleChange(TitleChange.Type.DELETE, title, null, timestamp));
+				} else if ("delete".equals(logtype) && "restore".equals(logaction)) {
+					changes.add(new TitleChange(TitleChange.Type.CREATE, title, null, timestamp));
+				} else if ("move".equals(logtype)) {
+					// older MediaWikis report the new title in <move>, newer ones in <logparams>
+					int params = Math.max(rc.indexOf("<move "), rc.indexOf("<logparams "));
+					if (params == -1) {
+						continue;
+					}
+					String tag = rc.substring(params);
+					String newTitle = attribute(tag, "new_title") != null ? attribute(tag, "new_title") : attribute(tag, "target_title");
+					boolean redirect = attribute(tag, "suppressedredirect") == null && attribute(tag, "suppressredirect") == null;
+					changes.add(new TitleChange(redirect ? TitleChange.Type.MOVE : TitleChange.Type.MOVE_WITHOUT_REDIRECT, 
+							title, unescape(newTitle), timestamp));
+				}
+			}
+			next = continuation(xml);
+		} while (next != null);
+		return changes;
+	}
+
+	/**
+	 * Returns the title of every page on the logged-in user's watchlist, following the API's
+	 * continuation until the whole list has been read.
+	 * @return watched titles
+	 * @throws IOException if a network error occurs
+	 */
+	public List<String> getWatchlistTitles() throws IOException {
+		List<String> titles = new ArrayList<String>();
+		String next = "";
+		do {
+			String xml = fetch(query + "list=watchlistraw&wrlimit=max" + next, "getWatchlistTitles");
+			for (String wr : elements(xml, "<wr ")) {
+				titles.add(unescape(attribute(wr, "title")));
+			}
+			next = continuation(xml);
+		} while (next != null);
+		return titles;
+	}
+
+	/**
+	 * Opens the watchlist of the logged-in user for reading one API response at a time, oldest
+	 * change first, so a long backlog can be processed as it arrives instead of being held in
+	 * memory all at once. Each page is listed once per response, with its latest change.
+	 * @param since lower bound (inclusive) of the changes
+	 * @param limit most changes per response (capped by the server)
+	 * @return reader for the watchlist
+	 */
+	public WatchlistReader getWatchlist(Calendar since, int limit) {
+		return new WatchlistReader(since, limit);
+	}
+
+	/**
+	 * Reads a watchlist one API response at a time, following the API's continuation.
+	 */
+	public class WatchlistReader {
+
+		private final String 	request;
+		private String 			next = "";
+
+		WatchlistReader(Calendar since, int limit) {
+			this.request = query + "list=watchlist&wlprop=ids%7Ctitle%7Ctimestamp&wldir=newer"
+					+ "&wllimit=" + limit + "&wlstart=" + formatTimestamp(since);
+		}
+
+		/**
+		 * Returns the changes in the next response.
+		 * @return changes, oldest first, or null once the whole watchlist has been read
+		 * @throws IOException if a network error occurs
+		 */
+		public List<SourceChange> next() throws IOException {
+			if (next == null) {
+				return null;
+			}
+			String xml = fetch(request + next, "getWatchlist");
+			List<SourceChange> changes = new ArrayList<SourceChange>();
+			for (String item : elements(xml, "<item ")) {
+				changes.add(new SourceChange(unescape(attribute(item, "title")),
+						Long.parseLong(attribute(item, "revid")),
+						parseTimestamp(attribute(item, "timestamp"))));
+			}
+			next = continuation(xml);
+			return changes;
+		}
+	}
+
+	/**
+	 * A page creation, deletion or move on the wiki.
+	 */
+	public static class TitleChange {
+
+		public enum Type { 
+			/** the page was created (or undeleted) */
+			CREATE, 
+			/** the page was deleted */
+			DELETE, 
+			/** the page was moved and a redirect left at the old title */
+			MOVE, 
+			/** the page was moved and nothing left at the old title */
+			MOVE_WITHOUT_REDIRECT 
+		}
+
+		private final Type 		type;
+		private final String 	title;
+		private final String 	newTitle;
+		private final Calendar 	timestamp;
+
+		public TitleChange(Type type, String title, String newTitle, Calendar timestamp) {
+			this.type = type;
+			this.title = title;
+			this.newTitle = newTitle;
+			this.timestamp = timestamp;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * @return the title the page was moved to, or null if this isn't a move
+		 */
+		public String getNewTitle() {
+			return newTitle;
+		}
+
+		public Calendar getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	/* ---- Response parsing helpers ---- */
+
+	/**
+	 * Splits an XML response into the elements that start with the given prefix.
+	 * Each returned string runs to the start of the next such element.
+	 */
+	static List<String> elements(String xml, String prefix) {
+		List<String> found = new ArrayList<String>();
+		int a = xml.indexOf(prefix);
+		while (a != -1) {
+			int b = xml.indexOf(prefix, a + prefix.length());
+			found.add(xml.substring(a, b == -1 ? xml.length() : b));
+			a = b;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the raw (still escaped) value of an attribute in the first tag of an element,
+	 * or null if the attribute isn't present.
+	 */
+	static String attribute(String element, String name) {
+		int end = element.indexOf('>');
+		String tag = (end == -1) ? element : element.substring(0, end);
+		String key = " " + name + "=\"";
+		int a = tag.indexOf(key);
+		if (a == -1) {
+			return null;
+		}
+		a += key.length();
+		return tag.substring(a, tag.indexOf('"', a));
+	}
+
+	/**
+	 * Returns the continuation parameters of a list query's response, ready to append to the
+	 * next request's URL (starting with '&amp;'), or null if the list is complete. Handles both the
+	 * query-continue element of older MediaWikis and the continue element of newer ones.
+	 */
+	static String continuation(String xml) {
+		String block;
+		int a = xml.indexOf("<query-continue>");
+		if (a != -1) {
+			block = xml.substring(a + "<query-continue>".length(), xml.indexOf("</query-continue>", a));
+		} else {
+			a = xml.indexOf("<continue ");
+			if (a == -1) {
+				return null;
+			}
+			block = xml.substring(a + "<continue".length(), xml.indexOf('>', a));
+		}
+		StringBuilder next = new StringBuilder();
+		Matcher m = ATTRIBUTE.matcher(block);
+		while (m.find()) {
+			next.append('&').append(m.group(1)).append('=').append(encode(unescape(m.group(2))));
+		}
+		return next.length() == 0 ? null : next.toString();
+	}
+
+	/**
+	 * Decodes the XML entities the API uses in attribute values and element text.
+	 */
+	static String unescape(String in) {
+		if (in == null || in.indexOf('&') == -1) {
+			return in;
+		}
+		StringBuilder out = new StringBuilder(in.length());
+		int i = 0;
+		while (i < in.length()) {
+			char ch = in.charAt(i);
+			int semi = (ch == '&') ? in.indexOf(';', i) : -1;
+			if (semi == -1) {
+				out.append(ch);
+				i++;
+				continue;
+			}
+			String entity = in.substring(i + 1, semi);
+			if (entity.equals("lt")) {
+				out.append('<');
+			} else if (entity.equals("gt")) {
+				out.append('>');
+			} else if (entity.equals("amp")) {
+				out.append('&');
+			} else if (entity.equals("quot")) {
+				out.append('"');
+			} else if (entity.equals("apos")) {
+				out.append('\'');
+			} else if (entity.matches("#x[0-9a-fA-F]+")) {
+				out.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+			} else if (entity.matches("#[0-9]+")) {
+				out.appendCodePoint(Integer.parseInt(entity.substring(1)));
+			} else {
+				// not an entity we know; leave it alone
+				out.append(ch);
+				i++;
+				continue;
+			}
+			i = semi + 1;
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Parses an API timestamp (ISO 8601, UTC) into a Calendar.
+	 */
+	static Calendar parseTimestamp(String timestamp) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		try {
+			c.setTime(format.parse(timestamp));
+		} catch (ParseException e) {
+			throw new IOException("Unparseable timestamp in API response: "+timestamp);
+		}
+		return c;
+	}
+
+	/**
+	 * Formats a Calendar as an API timestamp (ISO 8601, UTC).
+	 */
+	static String formatTimestamp(Calendar c) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(c.getTime());
+	}
+
+	/**
+	 * Splits titles into the titles of one multi-title query each: no more than getBatchLimit()
+	 * titles, and no more than MAX_TITLES_LENGTH characters of them once encoded, as a request
+	 * line longer than the wiki's front end accepts is answered with HTTP 414.
+	 * @param titles page titles
+	 * @return consecutive runs of the titles, in order
+	 */
+	List<List<String>> batches(List<String> titles) {
+		int limit = getBatchLimit();
+		List<List<String>> batches = new ArrayList<List<String>>();
+		int from = 0;
+		int length = 0;
+		for (int i = 0; i < titles.size(); i++) {
+			int encoded = encode(titles.get(i)).length() + 3;	// with the encoded '|'
+			if (i > from && (i - from == limit || length + encoded > MAX_TITLES_LENGTH)) {
+				batches.add(titles.subList(from, i));
+				from = i;
+				length = 0;
+			}
+			length += encoded;
+		}
+		if (from < titles.size()) {
+			batches.add(titles.subList(from, titles.size()));
+		}
+		return batches;
+	}
+
+	static String join(Collection<String> titles) {
+		StringBuilder sb = new StringBuilder();
+		for (String title : titles) {
+			if (sb.length() > 0) {
+				sb.append('|');
+			}
+			sb.append(title);
+		}
+		return sb.toString();
+	}
+
+	static String encode(String text) {
+		try {
+			return URLEncoder.encode(text, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // UTF-8 is always supported
+		}
+	}
+
+}
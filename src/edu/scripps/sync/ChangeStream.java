@@ -0,0 +1,377 @@
+package edu.scripps.sync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+
+/**
+ * ChangeStream syncs pages within seconds of an edit by subscribing to a server-sent events
+ * (SSE) feed of the source's recent changes, such as Wikimedia's EventStreams
+ * (https://stream.wikimedia.org/v2/stream/recentchange), instead of waiting for the next
+ * watchlist poll.
+ * <p>
+ * Each event is a JSON recent change. Events for other wikis, and for pages that aren't on the
+ * watchlist (kept locally, and reloaded every 10 minutes), are dropped. A page that is edited
+ * again within the debounce time of its last edit waits for the edits to stop, so a burst of
+ * edits is written once; no page waits longer than six debounce times (unless a watchlist poll
+ * is running, which they wait for). Due pages are synced on the supervisor's executor, one
+ * cycle at a time with the polls.
+ * <p>
+ * Pushed changes don't move the checkpoint: events can be missed while the feed is down, so
+ * the watchlist poll stays on as a (slower) fallback and catches up from the checkpoint. With a
+ * write store, pages the feed already synced are skipped by the poll.
+ * <p>
+ * If the feed drops, the stream reconnects with a growing delay (1s up to 1 minute), asking
+ * the server to resume after the last event it received (the Last-Event-ID header).
+ * @author eclarke
+ *
+ */
+public class ChangeStream {
+
+	private static final long WATCHLIST_REFRESH = 10 * 60 * 1000;
+	private static final long MIN_RECONNECT 	= 1000;
+	private static final long MAX_RECONNECT 	= 60 * 1000;
+	private static final int  READ_TIMEOUT 		= 5 * 60 * 1000;
+
+	private final Sync 						sync;
+	private final BatchWiki 				source;
+	private final URL 						feed;
+	private final ScheduledExecutorService 	executor;
+	private final long 						debounce;
+	private final String 					domain;
+
+	private final Map<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	private volatile Set<String> 	watched = Collections.emptySet();
+	private volatile long 			watchedAt;
+
+	private volatile boolean 			stopped;
+	private volatile boolean 			connected;
+	private volatile String 			lastEventId;
+	private volatile Thread 			reader;
+	private volatile ScheduledFuture<?> flusher;
+
+	private final AtomicLong events 	= new AtomicLong();
+	private final AtomicLong matched 	= new AtomicLong();
+	private final AtomicLong synced 	= new AtomicLong();
+
+	/**
+	 * Creates a new change stream. Nothing happens until start() is called.
+	 * @param sync Sync that writes the changed pages
+	 * @param source source MediaWiki, whose watchlist filters the events
+	 * @param feed URL of the SSE recent-changes feed
+	 * @param executor executor the pages are synced on (the one the Sync's polls run on)
+	 * @param debounce time without further edits before a page is synced (in milliseconds)
+	 */
+	public ChangeStream(Sync sync, BatchWiki source, URL feed, ScheduledExecutorService executor, long debounce) {
+		this.sync = sync;
+		this.source = source;
+		this.feed = feed;
+		this.executor = executor;
+		this.debounce = debounce;
+		this.domain = source.getDomain();
+		registerGauges(sync.getMetrics());
+	}
+
+	private void registerGauges(Metrics metrics) {
+		metrics.gauge("stream.connected", new Metrics.Gauge() {
+			public Number getValue() {
+				return connected ? 1 : 0;
+			}
+		});
+		metrics.gauge("stream.events", new Metrics.Gauge() {
+			public Number getValue() {
+				return events.get();
+			}
+		});
+		metrics.gauge("stream.matched", new Metrics.Gauge() {
+			public Number getValue() {
+				return matched.get();
+			}
+		});
+		metrics.gauge("stream.synced", new Metrics.Gauge() {
+			public Number getValue() {
+				return synced.get();
+			}
+		});
+		metrics.gauge("stream.pending", new Metrics.Gauge() {
+			public Number getValue() {
+				return pending.size();
+			}
+		});
+	}
+
+	/**
+	 * Loads the watchlist, connects to the feed and starts syncing the pages edited.
+	 * @throws IOException if the watchlist can't be loaded
+	 */
+	public void start() throws IOException {
+		refreshWatchlist();
+		reader = new Thread(new Runnable() {
+			public void run() {
+				listen();
+			}
+		}, "sync-change-stream");
+		reader.setDaemon(true);
+		reader.start();
+		long tick = Math.max(100, Math.min(1000, debounce / 2));
+		flusher = executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Disconnects from the feed. Pages still waiting for their debounce time are left to the poll.
+	 */
+	public void stop() {
+		stopped = true;
+		if (flusher != null) {
+			flusher.cancel(false);
+		}
+		if (reader != null) {
+			reader.interrupt();
+		}
+	}
+
+	/**
+	 * @return true while connected to the feed
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return number of events received
+	 */
+	public long getEvents() {
+		return events.get();
+	}
+
+	/**
+	 * @return number of events for watched pages on the source
+	 */
+	public long getMatched() {
+		return matched.get();
+	}
+
+	/**
+	 * @return number of pages synced from the feed (after debouncing)
+	 */
+	public long getSynced() {
+		return synced.get();
+	}
+
+	/**
+	 * @return number of pages waiting for their debounce time
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	/* ---- Feed ---- */
+
+	/**
+	 * Reads the feed until stopped, reconnecting whenever it drops.
+	 */
+	private void listen() {
+		long delay = MIN_RECONNECT;
+		while (!stopped) {
+			try {
+				read();
+				delay = MIN_RECONNECT;	// the server closed a working connection
+			} catch (IOException e) {
+				if (stopped) {
+					return;
+				}
+				log(String.format("Change stream disconnected (%s); reconnecting in %d seconds.",
+						e.getMessage(), delay / 1000));
+			} finally {
+				connected = false;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			delay = Math.min(MAX_RECONNECT, delay * 2);
+		}
+	}
+
+	/**
+	 * Connects to the feed and dispatches its events until the connection ends.
+	 */
+	private void read() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) feed.openConnection();
+		connection.setRequestProperty("Accept", "text/event-stream");
+		if (lastEventId != null) {
+			connection.setRequestProperty("Last-Event-ID", lastEventId);
+		}
+		connection.setReadTimeout(READ_TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), Charsets.UTF_8));
+		try {
+			connected = true;
+			log("Connected to change stream " + feed);
+			StringBuilder data = new StringBuilder();
+			String id = null;
+			String line;
+			while ((line = in.readLine()) != null && !stopped) {
+				if (line.length() == 0) {
+					// a blank line ends the event
+					if (data.length() > 0) {
+						if (id != null) {
+							lastEventId = id;
+						}
+						receive(data.toString());
+					}
+					data.setLength(0);
+					id = null;
+					continue;
+				}
+				if (line.startsWith(":")) {
+					continue;	// comment (keep-alive)
+				}
+				int colon = line.indexOf(':');
+				String field = (colon == -1) ? line : line.substring(0, colon);
+				String value = (colon == -1) ? "" : line.substring(colon + 1);
+				if (value.startsWith(" ")) {
+					value = value.substring(1);
+				}
+				if (field.equals("data")) {
+					if (data.length() > 0) {
+						data.append('\n');
+					}
+					data.append(value);
+				} else if (field.equals("id")) {
+					id = value;
+				}
+			}
+		} finally {
+			in.close();
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Queues the page an event is about, if it's a watched page on the source.
+	 * @param data event data (a JSON recent change)
+	 */
+	void receive(String data) {
+		events.incrementAndGet();
+		Object event;
+		try {
+			event = Json.parse(data);
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		Object type = Json.get(event, "type");
+		if (!"edit".equals(type) && !"new".equals(type)) {
+			return;
+		}
+		if (domain != null && !domain.equals(Json.get(event, "server_name"))) {
+			return;
+		}
+		Object title = Json.get(event, "title");
+		Object revid = Json.get(event, "revision", "new");
+		Object timestamp = Json.get(event, "timestamp");
+		if (!(title instanceof String) || !(revid instanceof Long) || !watched.contains(title)) {
+			return;
+		}
+		matched.incrementAndGet();
+		Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		if (timestamp instanceof Long) {
+			c.setTimeInMillis((Long) timestamp * 1000);
+		}
+		SourceChange change = new SourceChange((String) title, (Long) revid, c);
+		long now = System.currentTimeMillis();
+		synchronized (pending) {
+			Pending p = pending.get(title);
+			pending.put((String) title, new Pending(change, (p == null) ? now : p.first, now));
+		}
+	}
+
+	/* ---- Debouncing ---- */
+
+	/**
+	 * Syncs the pages whose edits have settled (or that have waited long enough).
+	 */
+	private void flush() {
+		if (System.currentTimeMillis() - watchedAt > WATCHLIST_REFRESH) {
+			try {
+				refreshWatchlist();
+			} catch (IOException e) {
+				log("Could not reload the watchlist: " + e.getMessage());
+			} catch (RuntimeException e) {
+				// i.e. a malformed response; escaping here would cancel every later flush
+				log("Could not reload the watchlist: " + e);
+			}
+		}
+		if (sync.isSyncing()) {
+			return;	// don't hold an executor thread while a poll runs; the pages wait for it
+		}
+		try {
+			long now = System.currentTimeMillis();
+			List<SourceChange> due = new ArrayList<SourceChange>();
+			synchronized (pending) {
+				for (Iterator<Pending> i = pending.values().iterator(); i.hasNext(); ) {
+					Pending p = i.next();
+					if (now - p.last >= debounce || now - p.first >= 6 * debounce) {
+						due.add(p.change);
+						i.remove();
+					}
+				}
+			}
+			if (!due.isEmpty() && !stopped) {
+				sync.runChanges(due);
+				synced.addAndGet(due.size());
+			}
+		} catch (RuntimeException e) {
+			// the poll will pick these pages up; keep the stream going
+			log("Syncing pushed changes failed: " + e.getMessage());
+		}
+	}
+
+	private void refreshWatchlist() throws IOException {
+		watched = new HashSet<String>(source.getWatchlistTitles());
+		watchedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * The latest change to a page waiting for its debounce time.
+	 */
+	private static class Pending {
+
+		final SourceChange 	change;
+		final long 			first;	// time of the first edit waiting
+		final long 			last;	// time of the latest edit
+
+		Pending(SourceChange change, long first, long last) {
+			this.change = change;
+			this.first = first;
+			this.last = last;
+		}
+	}
+
+	private void log(String message) {
+		sync.log(message);
+	}
+
+}
@@ -0,0 +1,178 @@
+package edu.scripps.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * CycleRecorder writes every request a Sync's wikis send, with its response, to a recording
+ * (see CycleRecording), one segment per cycle, so a cycle that was slow or wrote something
+ * wrong can be replayed offline with the same inputs (see SyncReplay). BatchWikis hand it their
+ * requests, and the Sync tells it when cycles start and end.
+ * <p>
+ * Requests are deflated (at the fastest level) as they are recorded, straight into the file,
+ * so a cycle costs little memory however many pages it syncs. Passwords and tokens are left
+ * out of the requests, and tokens and session ids out of the API's responses (they are replaced
+ * with "redacted", which the client can still send back in a replay), so a recording can be
+ * shared. A recording is appended to; a segment left incomplete by a process that died is
+ * overwritten. If the file can't be written, recording stops and the Sync carries on.
+ * @author eclarke
+ *
+ */
+public class CycleRecorder {
+
+	/** Request parameters never recorded */
+	private static final Pattern SECRET = Pattern.compile("(?<=^|&)(lgpassword|lgtoken|token)=[^&]*");
+	/** Response attributes never recorded (login and edit tokens, session ids) */
+	private static final Pattern SECRET_ATTRIBUTE = Pattern.compile("(?<=\\s)(\\w*token|sessionid)=\"[^\"]*\"");
+
+	private final File 				name;
+	private final RandomAccessFile 	file;
+
+	private DataOutputStream 	out;		// the open segment, or null
+	private DeflaterOutputStream deflated;
+	private Deflater 			deflater;
+	private long 				segment;	// offset of the open segment
+	private int 				requests;
+	private int 				cycles;
+	private boolean 			broken;
+
+	/**
+	 * Opens a recording for appending, creating it if it doesn't exist.
+	 * @param file recording file
+	 * @throws IOException if the file can't be opened or isn't a recording
+	 */
+	public CycleRecorder(File file) throws IOException {
+		this.name = file;
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			if (this.file.length() == 0) {
+				this.file.writeLong(CycleRecording.MAGIC);
+			} else if (this.file.length() < 8 || this.file.readLong() != CycleRecording.MAGIC) {
+				throw new IOException("Not a sync recording: "+file);
+			}
+			long end = CycleRecording.end(CycleRecording.scan(this.file));
+			this.file.setLength(end);
+			this.file.seek(end);
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Ends the open segment, if any, and starts the segment of a new cycle.
+	 */
+	public synchronized void startCycle() {
+		finishCycle();
+		open(++cycles);
+	}
+
+	/**
+	 * Ends the segment of the cycle that just finished. Requests made until the next cycle
+	 * starts go to a segment of their own.
+	 */
+	public synchronized void finishCycle() {
+		if (out == null || broken) {
+			return;
+		}
+		try {
+			out.flush();
+			deflated.finish();
+			long end = file.getFilePointer();
+			file.seek(segment + 16);
+			file.writeLong(System.currentTimeMillis());
+			file.writeInt(requests);
+			file.writeLong(end - segment - CycleRecording.HEADER);
+			file.seek(end);
+		} catch (IOException e) {
+			fail(e);
+		} finally {
+			deflater.end();
+			out = null;
+		}
+	}
+
+	/**
+	 * Records a request and its response.
+	 * @param wiki CycleRecording.SOURCE or CycleRecording.TARGET
+	 * @param url request URL
+	 * @param text body of a POST request, or null for a GET
+	 * @param response the response, or null if the request failed
+	 * @param error the exception the request failed with, or null if it didn't
+	 * @param micros how long the request took
+	 */
+	public synchronized void record(int wiki, String url, String text, String response, IOException error, long micros) {
+		if (broken) {
+			return;
+		}
+		if (out == null) {
+			open(cycles == 0 ? 0 : -1);
+		}
+		try {
+			out.writeByte(wiki);
+			out.writeByte(((text != null) ? CycleRecording.POSTED : 0) | ((error != null) ? CycleRecording.FAILED : 0));
+			out.writeLong(micros);
+			CycleRecording.writeString(out, url);
+			if (text != null) {
+				CycleRecording.writeString(out, SECRET.matcher(text).replaceAll("$1="));
+			}
+			if (error != null) {
+				CycleRecording.writeString(out, String.valueOf(error.getMessage()));
+			} else if (url.contains("api.php")) {
+				CycleRecording.writeString(out, SECRET_ATTRIBUTE.matcher(response).replaceAll("$1=\"redacted\""));
+			} else {
+				CycleRecording.writeString(out, response);	// raw page text
+			}
+			requests++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Ends the open segment and closes the file.
+	 */
+	public synchronized void close() {
+		finishCycle();
+		try {
+			file.close();
+		} catch (IOException e) {
+			// nothing left to lose
+		}
+	}
+
+	private void open(int cycle) {
+		if (broken) {
+			return;
+		}
+		try {
+			segment = file.getFilePointer();
+			file.writeInt(CycleRecording.SEGMENT);
+			file.writeInt(cycle);
+			file.writeLong(System.currentTimeMillis());
+			file.writeLong(0);	// end, written when the segment is complete
+			file.writeInt(0);
+			file.writeLong(0);
+			requests = 0;
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			deflated = new DeflaterOutputStream(Channels.newOutputStream(file.getChannel()), deflater, 65536);
+			out = new DataOutputStream(new BufferedOutputStream(deflated, 65536));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		broken = true;
+		out = null;
+		System.out.println("Could not write recording "+name+"; recording stopped: "+e.getMessage());
+	}
+
+}
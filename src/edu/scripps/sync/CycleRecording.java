@@ -0,0 +1,303 @@
+package edu.scripps.sync;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Charsets;
+
+/**
+ * CycleRecording reads a file of recorded sync cycles, as written by a CycleRecorder: every
+ * request a Sync's wikis sent during each cycle, with the response (or the error) it got.
+ * <p>
+ * The file is a sequence of segments, one per cycle. Each segment is a fixed-size header (its
+ * cycle, when it started and ended, how many requests it holds and its length) followed by its
+ * requests, deflated. The segments can so be listed from their headers alone, and any one of
+ * them read without inflating the others. Requests made outside a cycle (i.e. logging in) are
+ * kept in segments of their own: cycle 0 for those made before a process's first cycle, -1 for
+ * any made between cycles.
+ * @author eclarke
+ *
+ */
+public class CycleRecording {
+
+	/** Requests to the source wiki */
+	public static final int SOURCE = 0;
+	/** Requests to the target wiki */
+	public static final int TARGET = 1;
+
+	static final long 	MAGIC 		= 0x53594e4352454331L;	// "SYNCREC1"
+	static final int 	SEGMENT 	= 0x5345474d;			// "SEGM"
+	static final int 	HEADER 		= 36;	// magic, cycle, start, end, requests, length
+
+	static final int 	POSTED 		= 1;
+	static final int 	FAILED 		= 2;
+
+	private final RandomAccessFile 	file;
+	private final List<Segment> 	segments;
+
+	/**
+	 * Opens a recording and reads the headers of its segments.
+	 * @param file recording file
+	 * @throws IOException if the file can't be read or isn't a recording
+	 */
+	public CycleRecording(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		try {
+			if (this.file.length() < 8 || this.file.readLong() != MAGIC) {
+				throw new IOException("Not a sync recording: "+file);
+			}
+			this.segments = Collections.unmodifiableList(scan(this.file));
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the complete segments of the recording, in the order they were recorded
+	 */
+	public List<Segment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Returns the segment of cycle 0 that set up the process the specified segment was
+	 * recorded in (the last one before it), if there is one.
+	 * @param segment a segment of this recording
+	 * @return the set-up segment, or null
+	 */
+	public Segment getSetup(Segment segment) {
+		for (int i = segment.getIndex() - 1; i >= 0; i--) {
+			if (segments.get(i).getCycle() == 0) {
+				return segments.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the requests of a segment.
+	 * @param segment a segment of this recording
+	 * @return the requests, in the order their responses arrived
+	 * @throws IOException if the segment can't be read
+	 */
+	public synchronized List<Exchange> read(Segment segment) throws IOException {
+		file.seek(segment.offset + HEADER);
+		Inflater inflater = new Inflater();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new InflaterInputStream(Channels.newInputStream(file.getChannel()), inflater, 65536), 65536));
+			List<Exchange> exchanges = new ArrayList<Exchange>(segment.requests);
+			for (int i = 0; i < segment.requests; i++) {
+				int wiki = in.readByte();
+				int flags = in.readByte();
+				long micros = in.readLong();
+				String url = readString(in);
+				String body = ((flags & POSTED) != 0) ? readString(in) : null;
+				String answer = readString(in);
+				exchanges.add(new Exchange(wiki, url, body, ((flags & FAILED) != 0) ? null : answer,
+						((flags & FAILED) != 0) ? answer : null, micros));
+			}
+			return exchanges;
+		} catch (EOFException e) {
+			throw new IOException("Segment "+segment.getIndex()+" is truncated.");
+		} finally {
+			inflater.end();
+		}
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Reads the segment headers that follow the file header, stopping at the first segment that
+	 * is incomplete (i.e. was being written when its process died).
+	 */
+	static List<Segment> scan(RandomAccessFile file) throws IOException {
+		List<Segment> found = new ArrayList<Segment>();
+		long offset = 8;
+		long length = file.length();
+		while (offset + HEADER <= length) {
+			file.seek(offset);
+			if (file.readInt() != SEGMENT) {
+				break;
+			}
+			int cycle = file.readInt();
+			long start = file.readLong();
+			long end = file.readLong();
+			int requests = file.readInt();
+			long size = file.readLong();
+			if (end == 0 || offset + HEADER + size > length) {
+				break;
+			}
+			found.add(new Segment(found.size(), cycle, start, end, requests, offset, size));
+			offset += HEADER + size;
+		}
+		return found;
+	}
+
+	/**
+	 * @return the end of the last complete segment, where the next segment should be written
+	 */
+	static long end(List<Segment> segments) {
+		if (segments.isEmpty()) {
+			return 8;
+		}
+		Segment last = segments.get(segments.size() - 1);
+		return last.offset + HEADER + last.length;
+	}
+
+	static void writeString(DataOutput out, String s) throws IOException {
+		byte[] bytes = s.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * The header of a recorded segment.
+	 */
+	public static class Segment {
+
+		private final int 	index;
+		private final int 	cycle;
+		private final long 	start;
+		private final long 	end;
+		private final int 	requests;
+		final long 			offset;
+		final long 			length;
+
+		Segment(int index, int cycle, long start, long end, int requests, long offset, long length) {
+			this.index = index;
+			this.cycle = cycle;
+			this.start = start;
+			this.end = end;
+			this.requests = requests;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return position of the segment in the recording (from 0)
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return number of the cycle in its process (from 1), 0 for the requests before the
+		 * first cycle, or -1 for requests between cycles
+		 */
+		public int getCycle() {
+			return cycle;
+		}
+
+		/**
+		 * @return when the segment started (in milliseconds since the epoch)
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * @return when the segment ended (in milliseconds since the epoch)
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		/**
+		 * @return number of requests recorded
+		 */
+		public int getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return size of the segment's compressed requests (in bytes)
+		 */
+		public long getCompressedLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * A request to one of the wikis and what came back.
+	 */
+	public static class Exchange {
+
+		private final int 		wiki;
+		private final String 	url;
+		private final String 	body;
+		private final String 	response;
+		private final String 	error;
+		private final long 		micros;
+
+		Exchange(int wiki, String url, String body, String response, String error, long micros) {
+			this.wiki = wiki;
+			this.url = url;
+			this.body = body;
+			this.response = response;
+			this.error = error;
+			this.micros = micros;
+		}
+
+		/**
+		 * @return SOURCE or TARGET
+		 */
+		public int getWiki() {
+			return wiki;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return the body of a POST request (without passwords and tokens), or null for a GET
+		 */
+		public String getBody() {
+			return body;
+		}
+
+		/**
+		 * @return the response, or null if the request failed
+		 */
+		public String getResponse() {
+			return response;
+		}
+
+		/**
+		 * @return the message of the IOException the request failed with, or null if it didn't
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * @return how long the request took (in microseconds)
+		 */
+		public long getMicros() {
+			return micros;
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package edu.scripps.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CycleStats records what a single Sync cycle did, so the scheduler (or anyone
+ * else holding the Sync) can inspect the most recent cycle after it finishes.
+ * @author eclarke
+ *
+ */
+public class CycleStats {
+
+	private int 	changes;
+	private long 	fetchRequests;
+	private long 	duration;
+	private final AtomicLong skippedEdits = new AtomicLong();
+	private final Map<SyncOutcome, Integer> outcomes = new EnumMap<SyncOutcome, Integer>(SyncOutcome.class);
+	private final List<String> failedTitles = new ArrayList<String>();
+	private final AtomicLong propagated = new AtomicLong();
+	private final AtomicLong propagationTotal = new AtomicLong();
+	private final AtomicLong propagationMax = new AtomicLong();
+	private long 	watchlistNanos;
+	private long 	fetchNanos;
+	private long 	rewriteNanos;
+	private long 	editNanos;
+
+	void addChanges(int changes) {
+		this.changes += changes;
+	}
+
+	void addFetchRequests(long requests) {
+		this.fetchRequests += requests;
+	}
+
+	void addSkippedEdit() {
+		skippedEdits.incrementAndGet();
+	}
+
+	synchronized void addOutcomes(Collection<SyncOutcome> outcomes) {
+		for (SyncOutcome outcome : outcomes) {
+			Integer n = this.outcomes.get(outcome);
+			this.outcomes.put(outcome, (n == null) ? 1 : n + 1);
+		}
+	}
+
+	synchronized void addFailedTitle(String title) {
+		failedTitles.add(title);
+	}
+
+	void addWatchlistTime(long nanos) {
+		watchlistNanos += nanos;
+	}
+
+	void addStageTimes(long fetch, long rewrite, long edit) {
+		fetchNanos += fetch;
+		rewriteNanos += rewrite;
+		editNanos += edit;
+	}
+
+	void setDuration(long duration) {
+		this.duration = duration;
+	}
+
+	/**
+	 * Records the time from a source edit to the moment it was written to the target.
+	 */
+	void addPropagation(long latency) {
+		propagated.incrementAndGet();
+		propagationTotal.addAndGet(latency);
+		long max;
+		while (latency > (max = propagationMax.get()) && !propagationMax.compareAndSet(max, latency)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return number of distinct titles found changed in this cycle
+	 */
+	public int getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return number of requests sent to the source to fetch page text and revisions
+	 */
+	public long getFetchRequests() {
+		return fetchRequests;
+	}
+
+	/**
+	 * @return number of pages not written because the target already had the same revision or text
+	 */
+	public long getSkippedEdits() {
+		return skippedEdits.get();
+	}
+
+	/**
+	 * @param outcome outcome to count
+	 * @return number of pages with the specified outcome this cycle
+	 */
+	public synchronized int getOutcomeCount(SyncOutcome outcome) {
+		Integer n = outcomes.get(outcome);
+		return (n == null) ? 0 : n;
+	}
+
+	/**
+	 * @return titles of the pages that FAILED (or were ABANDONED), if the cycle synced a list of titles (i.e. a
+	 * backfill chunk); empty for watchlist cycles
+	 */
+	public synchronized List<String> getFailedTitles() {
+		return new ArrayList<String>(failedTitles);
+	}
+
+	/**
+	 * @return how long the cycle took (in milliseconds)
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return time spent querying the watchlist this cycle (in nanoseconds)
+	 */
+	public long getWatchlistNanos() {
+		return watchlistNanos;
+	}
+
+	/**
+	 * @return time the fetch workers spent this cycle, summed over workers (in nanoseconds)
+	 */
+	public long getFetchNanos() {
+		return fetchNanos;
+	}
+
+	/**
+	 * @return time the rewrite workers spent this cycle, summed over workers (in nanoseconds)
+	 */
+	public long getRewriteNanos() {
+		return rewriteNanos;
+	}
+
+	/**
+	 * @return time the edit workers spent this cycle, summed over workers (in nanoseconds)
+	 */
+	public long getEditNanos() {
+		return editNanos;
+	}
+
+	/**
+	 * @return average time from source edit to target write for the pages written this cycle
+	 * (in milliseconds), or 0 if none were written
+	 */
+	public long getAveragePropagation() {
+		long n = propagated.get();
+		return (n == 0) ? 0 : propagationTotal.get() / n;
+	}
+
+	/**
+	 * @return longest time from source edit to target write this cycle (in milliseconds)
+	 */
+	public long getMaxPropagation() {
+		return propagationMax.get();
+	}
+
+	/**
+	 * Returns how many source requests batching saved compared to fetching
+	 * text and top revision separately for every title (two requests each).
+	 * @return requests saved in this cycle
+	 */
+	public long getRequestsSaved() {
+		return Math.max(0, 2L * changes - fetchRequests);
+	}
+
+}
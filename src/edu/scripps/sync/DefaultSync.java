@@ -2,6 +2,10 @@ package edu.scripps.sync;
 
 import org.genewiki.api.Wiki;
 
+/**
+ * DefaultSync copies articles as they are, or rewrites them with the rules named in the
+ * configuration (rewrite.rules).
+ */
 public class DefaultSync extends Sync {
 
 	/**
@@ -16,10 +20,4 @@ public class DefaultSync extends Sync {
 		super(source, target, period, rewrite);
 	}
 
-	@Override
-	String rewriteArticleContent(String originalText) {
-		// TODO Add your rewrite rules here!
-		return originalText;
-	}
-
 }
@@ -0,0 +1,245 @@
+package edu.scripps.sync;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * FileShardCoordinator coordinates the workers of a sharded sync through a shared directory,
+ * using file locks as leases, so no outside service is needed. It works for workers on one
+ * machine, or on several sharing a file system with working locks (e.g. NFSv4).
+ * <p>
+ * The directory holds:
+ * <ul>
+ * <li>shard.properties, the number of partitions, written by the first worker to join;</li>
+ * <li>workers/&lt;id&gt;.lock, locked by each live worker for as long as it runs;</li>
+ * <li>partitions/&lt;n&gt;.lock, locked by the owner of partition n;</li>
+ * <li>partitions/&lt;n&gt;.checkpoint, the checkpoint of partition n.</li>
+ * </ul>
+ * The operating system drops the locks of a worker that dies, so its partitions are free
+ * for the others right away, and no lease expires while its owner is merely slow. Files of
+ * dead workers are removed by the first worker that finds them unlocked.
+ * @author eclarke
+ *
+ */
+public class FileShardCoordinator implements ShardCoordinator {
+
+	private final File 		dir;
+	private final File 		workers;
+	private final File 		partitions;
+	private final String 	worker;
+
+	private Lock 						membership;
+	private final Map<Integer, Lock> 	leases = new HashMap<Integer, Lock>();
+
+	/**
+	 * Creates a coordinator for the specified directory. Nothing happens until join() is called.
+	 * @param dir shared directory
+	 * @param worker id of this worker, or null for one made from the process id and host name
+	 */
+	public FileShardCoordinator(File dir, String worker) {
+		this.dir = dir;
+		this.workers = new File(dir, "workers");
+		this.partitions = new File(dir, "partitions");
+		String id = (worker != null) ? worker : ManagementFactory.getRuntimeMXBean().getName();
+		this.worker = id.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	public String getWorkerId() {
+		return worker;
+	}
+
+	public synchronized void join(int count) throws IOException {
+		if (!workers.isDirectory() && !workers.mkdirs()) {
+			throw new IOException("Could not create "+workers);
+		}
+		if (!partitions.isDirectory() && !partitions.mkdirs()) {
+			throw new IOException("Could not create "+partitions);
+		}
+		checkPartitionCount(count);
+		Lock lock = Lock.tryLock(new File(workers, worker + ".lock"));
+		if (lock == null) {
+			throw new IOException("Another worker with the id "+worker+" is running");
+		}
+		membership = lock;
+	}
+
+	public synchronized List<String> getWorkers() throws IOException {
+		if (membership == null) {
+			throw new IOException("Not joined");
+		}
+		if (!membership.file.exists()) {
+			// removed by a worker that checked it just before this one locked it; register again
+			membership.release();
+			membership = null;
+			Lock lock = Lock.tryLock(new File(workers, worker + ".lock"));
+			if (lock == null) {
+				throw new IOException("Another worker with the id "+worker+" is running");
+			}
+			membership = lock;
+		}
+		List<String> live = new ArrayList<String>();
+		File[] files = workers.listFiles();
+		if (files == null) {
+			throw new IOException("Could not list "+workers);
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(".lock")) {
+				continue;
+			}
+			String id = name.substring(0, name.length() - ".lock".length());
+			if (id.equals(worker)) {
+				live.add(id);
+				continue;
+			}
+			Lock lock = Lock.tryLock(file);
+			if (lock == null) {
+				live.add(id);
+			} else {
+				// nobody holds it: the worker is gone
+				file.delete();
+				lock.release();
+			}
+		}
+		Collections.sort(live);
+		return live;
+	}
+
+	public synchronized boolean tryAcquire(int partition) throws IOException {
+		if (leases.containsKey(partition)) {
+			return true;
+		}
+		Lock lock = Lock.tryLock(new File(partitions, partition + ".lock"));
+		if (lock == null) {
+			return false;
+		}
+		leases.put(partition, lock);
+		return true;
+	}
+
+	public synchronized void release(int partition) throws IOException {
+		Lock lock = leases.remove(partition);
+		if (lock != null) {
+			lock.release();
+		}
+	}
+
+	public SyncCheckpoint openCheckpoint(int partition) throws IOException {
+		return new SyncCheckpoint(new File(partitions, partition + ".checkpoint"));
+	}
+
+	public synchronized void leave() throws IOException {
+		for (Lock lock : leases.values()) {
+			lock.release();
+		}
+		leases.clear();
+		if (membership != null) {
+			membership.file.delete();
+			membership.release();
+			membership = null;
+		}
+	}
+
+	/**
+	 * Records the number of partitions if this is the first worker, or checks it against the
+	 * number recorded otherwise.
+	 */
+	private void checkPartitionCount(int count) throws IOException {
+		File file = new File(dir, "shard.properties");
+		Lock lock;
+		while ((lock = Lock.tryLock(new File(dir, "shard.lock"))) == null) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while joining the shard");
+			}
+		}
+		try {
+			Properties props = new Properties();
+			if (file.exists()) {
+				Reader in = new FileReader(file);
+				try {
+					props.load(in);
+				} finally {
+					in.close();
+				}
+				int recorded = Integer.parseInt(props.getProperty("partitions"));
+				if (recorded != count) {
+					throw new IOException(String.format(
+							"The shard in %s has %d partitions, not %d; every worker must use the same number.",
+							dir, recorded, count));
+				}
+			} else {
+				props.setProperty("partitions", String.valueOf(count));
+				Writer out = new FileWriter(file);
+				try {
+					props.store(out, "Sync shard");
+				} finally {
+					out.close();
+				}
+			}
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * An exclusive lock on a file, held until released or the process ends.
+	 */
+	private static class Lock {
+
+		final File 			file;
+		final FileChannel 	channel;
+		final FileLock 		lock;
+
+		private Lock(File file, FileChannel channel, FileLock lock) {
+			this.file = file;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		/**
+		 * Locks the file, creating it if needed.
+		 * @return the lock, or null if someone else (in this process or another) holds it
+		 */
+		static Lock tryLock(File file) throws IOException {
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;	// held by another coordinator in this process
+			}
+			if (lock == null) {
+				channel.close();
+				return null;
+			}
+			return new Lock(file, channel, lock);
+		}
+
+		void release() throws IOException {
+			try {
+				lock.release();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package edu.scripps.sync;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram counts recorded values (i.e. latencies in microseconds) in buckets of roughly
+ * 12% width, so percentiles can be estimated at any time from a few hundred counters. Recording
+ * takes no locks, so the pipeline's workers can all record into the same histogram.
+ * <p>
+ * Values below 8 have a bucket each; above that, every power of two is split into 8 buckets.
+ * Percentiles are reported as the upper bound of the bucket they fall in (but never more than
+ * the largest value recorded).
+ * @author eclarke
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BITS 	= 3;
+	private static final int SUB 		= 1 << SUB_BITS;	// buckets per power of two
+
+	private final AtomicLongArray 	buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+	private final AtomicLong 		count 	= new AtomicLong();
+	private final AtomicLong 		sum 	= new AtomicLong();
+	private final AtomicLong 		max 	= new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 * @param value value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return sum of the values recorded
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return largest value recorded, or 0 if there are none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return average of the values recorded, or 0 if there are none
+	 */
+	public double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Estimates the value below which the specified fraction of the values fall.
+	 * @param fraction between 0 and 1 (i.e. 0.99 for the 99th percentile)
+	 * @return estimated percentile, or 0 if no values were recorded
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();	// values recorded while we were counting
+	}
+
+	static int index(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB - 1));
+		return (exponent - SUB_BITS + 1) * SUB + sub;
+	}
+
+	static long upperBound(int index) {
+		if (index < SUB) {
+			return index;
+		}
+		int shift = index / SUB - 1;
+		long lower = (long) (SUB + index % SUB) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.0f p50=%d p99=%d max=%d", 
+				getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+	}
+
+}
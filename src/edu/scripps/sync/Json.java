@@ -0,0 +1,234 @@
+package edu.scripps.sync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Json is a small parser for the JSON documents the sync reads (i.e. recent-changes events),
+ * so no JSON library is needed. Objects become Maps (in document order), arrays become Lists,
+ * numbers become Longs (or Doubles, if they have a fraction or exponent), and true, false and
+ * null become Boolean.TRUE, Boolean.FALSE and null.
+ * @author eclarke
+ *
+ */
+final class Json {
+
+	private final String 	in;
+	private int 			pos;
+
+	private Json(String in) {
+		this.in = in;
+	}
+
+	/**
+	 * Parses a JSON document.
+	 * @param json document
+	 * @return the value it holds
+	 * @throws IllegalArgumentException if the document isn't valid JSON
+	 */
+	static Object parse(String json) {
+		Json parser = new Json(json);
+		Object value = parser.value();
+		parser.skipWhitespace();
+		if (parser.pos != json.length()) {
+			throw parser.error("Unexpected text after the document");
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the member at the specified path of nested objects, or null if there's none.
+	 * @param value parsed document
+	 * @param path member names, outermost first
+	 */
+	static Object get(Object value, String... path) {
+		for (String name : path) {
+			if (!(value instanceof Map)) {
+				return null;
+			}
+			value = ((Map<?, ?>) value).get(name);
+		}
+		return value;
+	}
+
+	private Object value() {
+		skipWhitespace();
+		if (pos == in.length()) {
+			throw error("Unexpected end of document");
+		}
+		char ch = in.charAt(pos);
+		switch (ch) {
+		case '{':
+			return object();
+		case '[':
+			return array();
+		case '"':
+			return string();
+		case 't':
+			return literal("true", Boolean.TRUE);
+		case 'f':
+			return literal("false", Boolean.FALSE);
+		case 'n':
+			return literal("null", null);
+		default:
+			return number();
+		}
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> members = new LinkedHashMap<String, Object>();
+		pos++;	// {
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return members;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"') {
+				throw error("Expected a member name");
+			}
+			String name = string();
+			skipWhitespace();
+			expect(':');
+			members.put(name, value());
+			skipWhitespace();
+			if (peek() == ',') {
+				pos++;
+			} else {
+				expect('}');
+				return members;
+			}
+		}
+	}
+
+	private List<Object> array() {
+		List<Object> elements = new ArrayList<Object>();
+		pos++;	// [
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return elements;
+		}
+		while (true) {
+			elements.add(value());
+			skipWhitespace();
+			if (peek() == ',') {
+				pos++;
+			} else {
+				expect(']');
+				return elements;
+			}
+		}
+	}
+
+	private String string() {
+		pos++;	// "
+		StringBuilder out = null;
+		int start = pos;
+		while (true) {
+			if (pos >= in.length()) {
+				throw error("Unterminated string");
+			}
+			char ch = in.charAt(pos);
+			if (ch == '"') {
+				String s = (out == null) ? in.substring(start, pos) : out.append(in, start, pos).toString();
+				pos++;
+				return s;
+			}
+			if (ch != '\\') {
+				pos++;
+				continue;
+			}
+			if (out == null) {
+				out = new StringBuilder();
+			}
+			out.append(in, start, pos);
+			if (pos + 1 >= in.length()) {
+				throw error("Unterminated string");
+			}
+			char escaped = in.charAt(pos + 1);
+			pos += 2;
+			switch (escaped) {
+			case '"': 	out.append('"'); break;
+			case '\\': 	out.append('\\'); break;
+			case '/': 	out.append('/'); break;
+			case 'b': 	out.append('\b'); break;
+			case 'f': 	out.append('\f'); break;
+			case 'n': 	out.append('\n'); break;
+			case 'r': 	out.append('\r'); break;
+			case 't': 	out.append('\t'); break;
+			case 'u':
+				if (pos + 4 > in.length()) {
+					throw error("Bad unicode escape");
+				}
+				try {
+					out.append((char) Integer.parseInt(in.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("Bad unicode escape");
+				}
+				pos += 4;
+				break;
+			default:
+				throw error("Bad escape");
+			}
+			start = pos;
+		}
+	}
+
+	private Object number() {
+		int start = pos;
+		boolean integral = true;
+		while (pos < in.length()) {
+			char ch = in.charAt(pos);
+			if (ch == '.' || ch == 'e' || ch == 'E') {
+				integral = false;
+			} else if (!(ch == '-' || ch == '+' || (ch >= '0' && ch <= '9'))) {
+				break;
+			}
+			pos++;
+		}
+		String number = in.substring(start, pos);
+		try {
+			if (integral) {
+				return Long.valueOf(number);
+			}
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("Expected a value");
+		}
+	}
+
+	private Object literal(String word, Object value) {
+		if (!in.startsWith(word, pos)) {
+			throw error("Expected a value");
+		}
+		pos += word.length();
+		return value;
+	}
+
+	private void expect(char ch) {
+		if (peek() != ch) {
+			throw error("Expected '" + ch + "'");
+		}
+		pos++;
+	}
+
+	private char peek() {
+		return (pos < in.length()) ? in.charAt(pos) : 0;
+	}
+
+	private void skipWhitespace() {
+		while (pos < in.length() && Character.isWhitespace(in.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + pos);
+	}
+
+}
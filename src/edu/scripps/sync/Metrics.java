@@ -0,0 +1,179 @@
+package edu.scripps.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Metrics holds the named counters, histograms and gauges of one Sync, for monitoring. It is a
+ * JMX MBean whose attributes are the metrics (see SyncJob), and MetricsServer serves them over
+ * HTTP. Histograms are flattened into name.count, name.mean, name.p50, name.p90, name.p99 and
+ * name.max.
+ * <p>
+ * Latencies are in microseconds. The Sync records:
+ * <ul>
+ * <li>watchlist.latency: each watchlist query (or response, when streaming)</li>
+ * <li>fetch.latency: each batch fetched from the source, with the lookups the rewrite rules
+ * make for it; fetch.pages counts the pages fetched</li>
+ * <li>rewrite.latency and edit.latency: each page rewritten and written to the target</li>
+ * <li>propagation.lag: the time from each source edit to its write to the target</li>
+ * <li>cycle.duration, cycles and changes: per cycle</li>
+ * <li>pages.written, pages.skipped, pages.missing, pages.queued and pages.failed: the outcome 
+ * of every page, and edits.skipped: pages the target already had</li>
+ * <li>supervisor.failures, supervisor.quickfails and supervisor.restarts: failed cycles, those
+ * that failed right after launch, and the retries scheduled after them</li>
+ * <li>gauges of the last cycle (last.*), the pipeline's queues (queue.*), each wiki's requests,
+ * characters sent and received, latency and rate (source.*, target.*), the shard (shard.*), the
+ * supervisor's period (supervisor.period, in milliseconds) and the change stream (stream.*)</li>
+ * </ul>
+ * @author eclarke
+ *
+ */
+public class Metrics implements DynamicMBean {
+
+	/**
+	 * A value read whenever the metrics are, i.e. a queue depth.
+	 */
+	public interface Gauge {
+		Number getValue();
+	}
+
+	private final ConcurrentMap<String, AtomicLong> counters 	= new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Histogram> 	histograms 	= new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Gauge> 		gauges 		= new ConcurrentHashMap<String, Gauge>();
+
+	/**
+	 * @return the counter with the specified name (created on first use)
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the histogram with the specified name (created on first use)
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Records a latency in the named histogram.
+	 * @param name histogram name
+	 * @param nanos latency (in nanoseconds; recorded in microseconds)
+	 */
+	public void time(String name, long nanos) {
+		histogram(name).record(nanos / 1000);
+	}
+
+	/**
+	 * Registers a gauge, replacing any gauge of the same name.
+	 * @param name gauge name
+	 * @param gauge gauge
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return the current value of every metric, by name
+	 */
+	public SortedMap<String, Number> snapshot() {
+		SortedMap<String, Number> values = new TreeMap<String, Number>();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			String name = entry.getKey();
+			Histogram histogram = entry.getValue();
+			values.put(name + ".count", histogram.getCount());
+			values.put(name + ".mean", histogram.getMean());
+			values.put(name + ".p50", histogram.getPercentile(0.5));
+			values.put(name + ".p90", histogram.getPercentile(0.9));
+			values.put(name + ".p99", histogram.getPercentile(0.99));
+			values.put(name + ".max", histogram.getMax());
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			Number value;
+			try {
+				value = entry.getValue().getValue();
+			} catch (RuntimeException e) {
+				value = null;	// one broken gauge shouldn't hide the rest
+			}
+			if (value != null) {
+				values.put(entry.getKey(), value);
+			}
+		}
+		return values;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		SortedMap<String, Number> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+					entry.getKey(), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Sync metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+}
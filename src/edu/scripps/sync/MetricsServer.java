@@ -0,0 +1,102 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MetricsServer serves the metrics of the running sync jobs over HTTP, at /metrics, as plain
+ * text with one "name value" line per metric. Metrics of a named job are prefixed with the
+ * job's name (i.e. "genewiki.edit.latency.p99 183000").
+ * <p>
+ * The server is meant for local monitoring tools, so it listens on the loopback interface
+ * unless told otherwise (metrics.http.address).
+ * @author eclarke
+ *
+ */
+public class MetricsServer {
+
+	private final HttpServer 			server;
+	private final Map<String, Metrics> 	jobs;
+
+	/**
+	 * Starts serving the specified metrics.
+	 * @param address address to listen on (port 0 for any free port)
+	 * @param jobs metrics of each job, by job name (null for an unnamed job)
+	 * @throws IOException if the address can't be bound
+	 */
+	public MetricsServer(InetSocketAddress address, Map<String, Metrics> jobs) throws IOException {
+		this.jobs = new LinkedHashMap<String, Metrics>(jobs);
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * @return every metric of every job, one "name value" line each
+	 */
+	String render() {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, Metrics> job : jobs.entrySet()) {
+			String prefix = (job.getKey() == null) ? "" : job.getKey() + ".";
+			for (Map.Entry<String, Number> metric : job.getValue().snapshot().entrySet()) {
+				Number value = metric.getValue();
+				out.append(prefix).append(metric.getKey()).append(' ');
+				if (value instanceof Double || value instanceof Float) {
+					out.append(String.format(Locale.ROOT, "%.1f", value.doubleValue()));
+				} else {
+					out.append(value);
+				}
+				out.append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = render().getBytes(Charsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			if (method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+
+}
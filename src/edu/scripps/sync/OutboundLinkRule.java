@@ -0,0 +1,103 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.genewiki.api.Wiki;
+
+/**
+ * OutboundLinkRule modifies the links that do not exist on the target to point back to their
+ * original articles on Wikipedia, thus avoiding large numbers of redlinks on secondary articles.
+ * <p>
+ * The link titles of a batch (or article) are resolved against the target in batched queries,
+ * and titles already seen this cycle are not queried again. A link that exists and starts with
+ * '#' (a section link) loses the '#' and is checked again without it.
+ * @author eclarke
+ *
+ */
+public class OutboundLinkRule extends RewriteRule {
+
+	private final TitleExistenceCache 	existing;
+	private volatile TargetTitleIndex 	index;
+
+	/**
+	 * Creates a new rule checking links against the target.
+	 * @param source source MediaWiki (unused)
+	 * @param target target MediaWiki
+	 */
+	public OutboundLinkRule(Wiki source, Wiki target) {
+		this(new TitleExistenceCache(target));
+	}
+
+	OutboundLinkRule(TitleExistenceCache existing) {
+		this.existing = existing;
+	}
+
+	/**
+	 * Uses a local index of the target's titles to decide which links exist, instead
+	 * of asking the target. The index is brought up to date at the start of each cycle.
+	 * @param index loaded title index of the target
+	 */
+	public void setTitleIndex(TargetTitleIndex index) {
+		this.index = index;
+		existing.setIndex(index);
+	}
+
+	@Override
+	public Set<WikiToken.Kind> getKinds() {
+		return EnumSet.of(WikiToken.Kind.LINK);
+	}
+
+	@Override
+	public void startCycle() {
+		existing.clear();
+		TargetTitleIndex index = this.index;
+		if (index != null) {
+			try {
+				index.refresh();
+			} catch (IOException e) {
+				log("Could not refresh the target title index; checking links against the target this cycle.");
+			}
+		}
+	}
+
+	@Override
+	public void prepare(List<WikiToken> tokens) throws IOException {
+		List<String> titles = new ArrayList<String>(tokens.size());
+		for (WikiToken token : tokens) {
+			String title = token.getOriginal();
+			titles.add(title);
+			while (title.startsWith("#")) {
+				title = title.substring(1);
+				titles.add(title);
+			}
+		}
+		existing.resolve(titles);
+	}
+
+	@Override
+	public void rewrite(WikiToken token) {
+		String title = token.getOriginal();
+		int dropped = 0;	// leading '#' chars dropped
+		boolean exists;
+		try {
+			while ((exists = existing.exists(title)) && title.startsWith("#")) {
+				title = title.substring(1);
+				dropped++;
+			}
+		} catch (IOException e) {
+			log("Could not check whether " + title + " exists on the target; leaving the link as it is: " + e);
+			return;
+		}
+		if (exists && dropped == 0) {
+			return;
+		}
+		String text = token.getText().substring(dropped);
+		// point us back to wikipedia (i.e. not an internal link)
+		token.setText(exists ? text : "wikipedia:" + text);
+	}
+
+}
@@ -0,0 +1,36 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+
+/**
+ * OverloadedException reports an HTTP 503 (Service Unavailable) or 429 (Too Many Requests),
+ * along with how long the wiki asked to wait before retrying (its Retry-After header), so the
+ * RateController can pause for exactly that long. Its message reads as the Wiki client's own
+ * error for the status does, so code that only looks at the message still recognizes it.
+ * @author eclarke
+ *
+ */
+public class OverloadedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long retryAfter;
+
+	/**
+	 * Creates a new exception.
+	 * @param message error message, containing "response code: " and the status
+	 * @param retryAfter how long the wiki asked to wait (in milliseconds), or -1 if it didn't say
+	 */
+	public OverloadedException(String message, long retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return how long the wiki asked to wait (in milliseconds), or -1 if it didn't say
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+}
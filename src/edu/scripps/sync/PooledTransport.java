@@ -0,0 +1,694 @@
+package edu.scripps.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * PooledTransport is a WikiTransport speaking HTTP/1.1 over connections it keeps open between
+ * requests, a few per host, so the hundreds of requests of a sync cycle don't each pay for a
+ * TCP (and TLS) handshake. A connection the server closed while it sat idle is noticed when a
+ * request on it gets no response at all, and the request is sent again on a new one.
+ * <p>
+ * Responses are asked for gzipped. Request bodies of COMPRESS_MIN bytes or more (edits of whole
+ * articles) are gzipped too, where the wiki can read them: PHP doesn't decode a compressed body
+ * by itself, so before its first compressed request the transport sends the API a small
+ * compressed query and checks that it was understood. A wiki that fails the check, or turns a
+ * compressed request away later (HTTP 415 or 400), gets that request again uncompressed, and no
+ * compressed requests after that.
+ * <p>
+ * With pipelining on, getAll() writes all its requests on one connection before reading the
+ * responses, so a batch of independent reads costs about one round trip. A server that breaks
+ * the connection part way, or doesn't answer within the read timeout, gets the requests it left
+ * unanswered one at a time, and no pipelined requests after that.
+ * <p>
+ * Bytes are counted as they cross the wire (headers included), along with the connections
+ * opened and the requests sent on a connection that had already served one. The cookies each
+ * host sets (i.e. the login session) are kept and sent back to it. An HTTP 503 or 429 is
+ * reported as an OverloadedException carrying the server's Retry-After.
+ * @author eclarke
+ *
+ */
+public class PooledTransport implements WikiTransport {
+
+	/** Idle connections kept open per host by default */
+	public static final int DEFAULT_CONNECTIONS = 4;
+	/** Request bodies shorter than this (in bytes) are never compressed */
+	static final int COMPRESS_MIN = 1024;
+
+	static final String USER_AGENT = "WikipediaSync/0.1 (edu.scripps.sync)";
+
+	private static final int 	CONNECT_TIMEOUT = 30000;
+	private static final int 	READ_TIMEOUT 	= 120000;
+	private static final long 	KEEP_ALIVE 		= 10000;	// idle time allowed, if the server doesn't say
+	private static final int 	MAX_REDIRECTS 	= 5;
+	private static final String PROBE 			= "action=query&meta=siteinfo&siprop=general";
+	private static final Pattern TIMEOUT 		= Pattern.compile("timeout=(\\d+)");
+
+	private final int 		connections;
+	private final Map<String, LinkedList<Connection>> idle = new HashMap<String, LinkedList<Connection>>();
+	private final Map<String, Map<String, String>> cookies = new HashMap<String, Map<String, String>>();
+	private final Object 	probing = new Object();
+	private volatile boolean compressing;
+	private volatile boolean probed;
+	private volatile boolean pipelining;
+	private volatile String label;
+
+	private final AtomicLong bytesSent 			= new AtomicLong();
+	private final AtomicLong bytesReceived 		= new AtomicLong();
+	private final AtomicLong opened 			= new AtomicLong();
+	private final AtomicLong requests 			= new AtomicLong();
+	private final AtomicLong reused 			= new AtomicLong();
+	private final AtomicLong pipelined 			= new AtomicLong();
+	private final AtomicLong compressed 		= new AtomicLong();
+
+	/**
+	 * Creates a transport with no open connections.
+	 * @param connections idle connections kept open per host (requests beyond that many at once
+	 * still get a connection, which is closed afterwards)
+	 * @param compress if large request bodies should be gzipped, where the wiki can read them
+	 * @param pipelining if getAll() should pipeline its requests
+	 */
+	public PooledTransport(int connections, boolean compress, boolean pipelining) {
+		this.connections = connections;
+		this.compressing = compress;
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * Prefixes the transport's log messages with the label in brackets, as Sync.setLabel() does.
+	 * @param label name of the job the transport serves, or null for no prefix
+	 */
+	public void setLabel(String label) {
+		this.label = label;
+	}
+
+	public String get(String url) throws IOException {
+		return request("GET", new URL(url), null);
+	}
+
+	public String post(String url, String text) throws IOException {
+		return request("POST", new URL(url), text.getBytes(Charsets.UTF_8));
+	}
+
+	public List<String> getAll(List<String> urls) throws IOException {
+		List<String> responses = new ArrayList<String>(urls.size());
+		if (pipelining && urls.size() > 1) {
+			pipeline(urls, responses);
+		}
+		for (int i = responses.size(); i < urls.size(); i++) {
+			responses.add(get(urls.get(i)));
+		}
+		return responses;
+	}
+
+	public void close() {
+		synchronized (idle) {
+			for (LinkedList<Connection> free : idle.values()) {
+				for (Connection c : free) {
+					c.close();
+				}
+			}
+			idle.clear();
+		}
+	}
+
+	/**
+	 * @return bytes written to the wiki's connections (request lines, headers and bodies)
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return bytes read from the wiki's connections, before the bodies are decompressed
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return connections opened (every one but the first to a host is a handshake pooling didn't save)
+	 */
+	public long getConnectionsOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * @return requests sent, the compression check and resent requests included
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return requests sent on a connection that had already served a request
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * @return requests answered on a pipelined connection, after the first of their pipeline
+	 */
+	public long getPipelinedCount() {
+		return pipelined.get();
+	}
+
+	/**
+	 * @return requests sent with a gzipped body
+	 */
+	public long getCompressedCount() {
+		return compressed.get();
+	}
+
+	/**
+	 * @return if large request bodies are still gzipped (false once the wiki turned them away)
+	 */
+	public boolean isCompressingRequests() {
+		return compressing;
+	}
+
+	/**
+	 * @return if getAll() still pipelines (false once a server broke a pipeline)
+	 */
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
+	/**
+	 * Sends a request, following redirects (POSTs only for 307 and 308, which keep the method),
+	 * and sending it again uncompressed if the wiki turns a compressed body away.
+	 */
+	private String request(String method, URL url, byte[] body) throws IOException {
+		for (int redirects = 0; ; redirects++) {
+			boolean gzip = body != null && body.length >= COMPRESS_MIN && compresses(url);
+			Response response = send(method, url, gzip ? gzip(body) : body, gzip);
+			if (gzip && (response.status == 415 || response.status == 400)) {
+				stopCompressing(url, "HTTP " + response.status);
+				response = send(method, url, body, false);
+			}
+			String location = response.header("location");
+			boolean redirect = (body == null) ? (response.status >= 301 && response.status <= 308 && response.status != 304)
+					: (response.status == 307 || response.status == 308);
+			if (redirect && location != null && redirects < MAX_REDIRECTS) {
+				url = new URL(url, location);
+				continue;
+			}
+			return response.text(url);
+		}
+	}
+
+	/**
+	 * Sends a request on a pooled connection, and once more on a new connection if a reused one
+	 * turns out to have been closed (nothing at all came back).
+	 */
+	private Response send(String method, URL url, byte[] body, boolean gzip) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			Connection c = take(url, attempt > 0);
+			try {
+				write(c, method, url, body, gzip);
+				c.out.flush();
+				Response response = read(c, method);
+				release(c, response);
+				return response;
+			} catch (IOException e) {
+				c.close();
+				if (attempt > 0 || c.used == 1 || c.answering) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes every request on one connection, then reads the responses, adding them to the list
+	 * until the server stops answering or answers with anything but a success; the requests left
+	 * are for the caller to send one at a time.
+	 */
+	private void pipeline(List<String> urls, List<String> responses) throws IOException {
+		List<URL> parsed = new ArrayList<URL>(urls.size());
+		for (String url : urls) {
+			parsed.add(new URL(url));
+			if (!key(parsed.get(0)).equals(key(parsed.get(parsed.size() - 1)))) {
+				return;
+			}
+		}
+		Connection c = take(parsed.get(0), false);
+		try {
+			for (URL url : parsed) {
+				write(c, "GET", url, null, false);
+			}
+			c.out.flush();
+			for (int i = 0; i < parsed.size(); i++) {
+				Response response = read(c, "GET");
+				if (response.status / 100 != 2) {
+					c.close();	// the responses still to come would be read in the wrong place
+					return;
+				}
+				responses.add(response.text(parsed.get(i)));
+				if (i > 0) {
+					pipelined.incrementAndGet();
+				}
+				if (!response.keepAlive) {
+					c.close();
+					return;
+				}
+			}
+			release(c, null);
+		} catch (IOException e) {
+			c.close();
+			if (!responses.isEmpty() || c.used == parsed.size()) {
+				pipelining = false;
+				log(c.host+" broke a pipeline of "+parsed.size()+" requests after "+responses.size()
+						+" responses ("+e.getMessage()+"); sending requests one at a time from now on.");
+			}
+		}
+	}
+
+	/**
+	 * Returns if a request body for the specified URL may be gzipped, checking first (once) that
+	 * the wiki's API can read a compressed body.
+	 */
+	private boolean compresses(URL url) throws IOException {
+		if (!compressing || !url.getPath().endsWith("api.php")) {
+			return false;
+		}
+		if (!probed) {
+			synchronized (probing) {
+				if (!probed) {
+					URL api = new URL(url, url.getPath() + "?format=xml");
+					Response response = send("POST", api, gzip(PROBE.getBytes(Charsets.UTF_8)), true);
+					if (response.status / 100 != 2) {
+						stopCompressing(url, "HTTP " + response.status);
+					} else if (!response.text(api).contains("<general ")) {
+						stopCompressing(url, "the API didn't understand a compressed query");
+					}
+					probed = true;
+				}
+			}
+		}
+		return compressing;
+	}
+
+	private void stopCompressing(URL url, String reason) {
+		if (compressing) {
+			compressing = false;
+			log(url.getHost()+" can't read compressed requests ("+reason+"); sending them uncompressed from now on.");
+		}
+	}
+
+	/**
+	 * Returns an idle connection to the host of the URL, or opens a new one.
+	 */
+	private Connection take(URL url, boolean fresh) throws IOException {
+		String key = key(url);
+		long now = System.currentTimeMillis();
+		synchronized (idle) {
+			LinkedList<Connection> free = idle.get(key);
+			while (!fresh && free != null && !free.isEmpty()) {
+				Connection c = free.removeLast();
+				if (c.expires > now) {
+					return c;
+				}
+				c.close();
+			}
+		}
+		return new Connection(url);
+	}
+
+	/**
+	 * Puts a connection back in the pool, unless the server means to close it or the pool is full.
+	 */
+	private void release(Connection c, Response last) {
+		if (last != null && !last.keepAlive) {
+			c.close();
+			return;
+		}
+		synchronized (idle) {
+			LinkedList<Connection> free = idle.get(c.key);
+			if (free == null) {
+				free = new LinkedList<Connection>();
+				idle.put(c.key, free);
+			}
+			if (free.size() < connections) {
+				free.addLast(c);
+				return;
+			}
+		}
+		c.close();
+	}
+
+	private void write(Connection c, String method, URL url, byte[] body, boolean gzip) throws IOException {
+		StringBuilder head = new StringBuilder(512);
+		head.append(method).append(' ').append(url.getFile().length() == 0 ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(url.getHost());
+		if (url.getPort() != -1) {
+			head.append(':').append(url.getPort());
+		}
+		head.append("\r\nUser-Agent: ").append(USER_AGENT);
+		head.append("\r\nAccept-Encoding: gzip\r\n");
+		String cookie = cookies(url.getHost());
+		if (cookie != null) {
+			head.append("Cookie: ").append(cookie).append("\r\n");
+		}
+		if (body != null) {
+			head.append("Content-Type: application/x-www-form-urlencoded\r\n");
+			if (gzip) {
+				head.append("Content-Encoding: gzip\r\n");
+			}
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		c.out.write(head.append("\r\n").toString().getBytes(Charsets.ISO_8859_1));
+		if (body != null) {
+			c.out.write(body);
+		}
+		requests.incrementAndGet();
+		if (gzip) {
+			compressed.incrementAndGet();
+		}
+		if (c.used++ > 0) {
+			reused.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Reads a response (skipping interim 1xx responses), its body decompressed.
+	 */
+	private Response read(Connection c, String method) throws IOException {
+		c.answering = false;
+		String status = c.readLine();
+		if (status == null) {
+			throw new IOException("Server closed the connection without a response.");
+		}
+		c.answering = true;
+		String[] parts = status.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+			throw new IOException("Bad HTTP status line: "+status);
+		}
+		Response response = new Response(Integer.parseInt(parts[1]));
+		String host = c.host;
+		for (String line = c.readLine(); line != null && line.length() > 0; line = c.readLine()) {
+			int colon = line.indexOf(':');
+			if (colon == -1) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+			if (name.equals("set-cookie")) {
+				setCookie(host, value);
+			}
+			response.headers.put(name, value);
+		}
+		if (response.status / 100 == 1) {
+			return read(c, method);
+		}
+
+		byte[] body;
+		if (method.equals("HEAD") || response.status == 204 || response.status == 304) {
+			body = new byte[0];
+		} else if ("chunked".equalsIgnoreCase(response.header("transfer-encoding"))) {
+			ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+			for (;;) {
+				String size = c.readLine();
+				if (size == null) {
+					throw new IOException("Response ended inside a chunk.");
+				}
+				int semi = size.indexOf(';');
+				int length = Integer.parseInt((semi == -1 ? size : size.substring(0, semi)).trim(), 16);
+				if (length == 0) {
+					for (String trailer = c.readLine(); trailer != null && trailer.length() > 0; trailer = c.readLine()) {
+						// trailers aren't used
+					}
+					break;
+				}
+				byte[] chunk = new byte[length];
+				ByteStreams.readFully(c.in, chunk);
+				chunks.write(chunk);
+				c.readLine();
+			}
+			body = chunks.toByteArray();
+		} else if (response.header("content-length") != null) {
+			body = new byte[Integer.parseInt(response.header("content-length"))];
+			ByteStreams.readFully(c.in, body);
+		} else {
+			body = ByteStreams.toByteArray(c.in);
+			response.keepAlive = false;
+		}
+		if ("gzip".equalsIgnoreCase(response.header("content-encoding"))) {
+			body = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)));
+		}
+		response.body = body;
+
+		String connection = response.header("connection");
+		if (parts[0].equals("HTTP/1.0")) {
+			response.keepAlive &= "keep-alive".equalsIgnoreCase(connection);
+		} else {
+			response.keepAlive &= !"close".equalsIgnoreCase(connection);
+		}
+		Matcher m = TIMEOUT.matcher(String.valueOf(response.header("keep-alive")));
+		long keep = m.find() ? Long.parseLong(m.group(1)) * 1000 - 1000 : KEEP_ALIVE;
+		c.expires = System.currentTimeMillis() + keep;
+		return response;
+	}
+
+	private String cookies(String host) {
+		synchronized (cookies) {
+			Map<String, String> jar = cookies.get(host);
+			if (jar == null || jar.isEmpty()) {
+				return null;
+			}
+			StringBuilder header = new StringBuilder();
+			for (Map.Entry<String, String> cookie : jar.entrySet()) {
+				if (header.length() > 0) {
+					header.append("; ");
+				}
+				header.append(cookie.getKey()).append('=').append(cookie.getValue());
+			}
+			return header.toString();
+		}
+	}
+
+	/**
+	 * Keeps (or, if the server expires it, forgets) the cookie of a Set-Cookie header.
+	 */
+	private void setCookie(String host, String header) {
+		int semi = header.indexOf(';');
+		String pair = (semi == -1) ? header : header.substring(0, semi);
+		int eq = pair.indexOf('=');
+		if (eq <= 0) {
+			return;
+		}
+		String name = pair.substring(0, eq).trim();
+		String value = pair.substring(eq + 1).trim();
+		String attributes = header.toLowerCase();
+		boolean expired = value.length() == 0 || value.equals("deleted") || attributes.contains("max-age=0");
+		synchronized (cookies) {
+			Map<String, String> jar = cookies.get(host);
+			if (jar == null) {
+				jar = new LinkedHashMap<String, String>();
+				cookies.put(host, jar);
+			}
+			if (expired) {
+				jar.remove(name);
+			} else {
+				jar.put(name, value);
+			}
+		}
+	}
+
+	private static String key(URL url) {
+		return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+	}
+
+	private static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 3 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(body);
+		gzip.close();
+		return bytes.toByteArray();
+	}
+
+	private void log(String message) {
+		String label = this.label;
+		System.out.println((label == null) ? message : "[" + label + "] " + message);
+	}
+
+	/**
+	 * A response read off a connection.
+	 */
+	private static class Response {
+
+		final int 					status;
+		final Map<String, String> 	headers = new HashMap<String, String>();	// lower-case names
+		byte[] 						body;
+		boolean 					keepAlive = true;
+
+		Response(int status) {
+			this.status = status;
+		}
+
+		String header(String name) {
+			return headers.get(name);
+		}
+
+		/**
+		 * Returns the body, or throws the IOException the Wiki client would for an error status
+		 * (an OverloadedException with the Retry-After, for a 503 or 429).
+		 */
+		String text(URL url) throws IOException {
+			String message = "Server returned HTTP response code: "+status+" for URL: "+url;
+			if (status == 503 || status == 429) {
+				throw new OverloadedException(message, retryAfter());
+			}
+			if (status / 100 != 2) {
+				throw new IOException(message);
+			}
+			return new String(body, Charsets.UTF_8);
+		}
+
+		/**
+		 * Returns the wait the Retry-After header asks for (in seconds, or until an HTTP date),
+		 * in milliseconds, or -1 if there is none or it can't be read.
+		 */
+		long retryAfter() {
+			String value = header("retry-after");
+			if (value == null) {
+				return -1;
+			}
+			value = value.trim();
+			if (value.matches("\\d+")) {
+				return Long.parseLong(value) * 1000;
+			}
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			try {
+				return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+			} catch (ParseException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * An open connection, counting the bytes that cross it.
+	 */
+	private class Connection {
+
+		final String 		key;
+		final String 		host;
+		final Socket 		socket;
+		final InputStream 	in;
+		final OutputStream 	out;
+		int 				used;		// requests written
+		boolean 			answering;	// if the response being read has started
+		long 				expires;	// when the server may close it, once idle
+
+		Connection(URL url) throws IOException {
+			this.key = key(url);
+			this.host = url.getHost();
+			int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+			Socket plain = new Socket();
+			plain.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			if (url.getProtocol().equals("https")) {
+				SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plain, host, port, true);
+				SSLParameters parameters = ssl.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(parameters);
+				this.socket = ssl;
+			} else if (url.getProtocol().equals("http")) {
+				this.socket = plain;
+			} else {
+				plain.close();
+				throw new IOException("Unsupported protocol: "+url.getProtocol());
+			}
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			this.in = new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b != -1) {
+						bytesReceived.incrementAndGet();
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						bytesReceived.addAndGet(n);
+					}
+					return n;
+				}
+			}, 16384);
+			this.out = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					bytesSent.addAndGet(len);
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					bytesSent.incrementAndGet();
+				}
+			}, 16384);
+			opened.incrementAndGet();
+		}
+
+		/**
+		 * Reads a header line (without its line break), or returns null at the end of the stream.
+		 */
+		String readLine() throws IOException {
+			StringBuilder line = new StringBuilder(64);
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') {
+				if (b != '\r') {
+					line.append((char) b);
+				}
+			}
+			return (b == -1 && line.length() == 0) ? null : line.toString();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package edu.scripps.sync;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateController paces the requests sent to one wiki, looking for the highest rate the wiki
+ * sustains without pushing back.
+ * <p>
+ * Requests are released by a token bucket (implemented as a virtual schedule, so waiting
+ * threads don't need a refill timer): up to a second's worth of requests may go out in a burst,
+ * after which they are spaced at the current rate. The rate follows AIMD (additive increase,
+ * multiplicative decrease): every successful request raises it slightly, up to the maximum, and
+ * every sign of overload (a maxlag or ratelimited error, an HTTP 503 or 429) halves it, down to
+ * the minimum. An overload signal also pauses all requests for the time the wiki asked for
+ * (its Retry-After, or the database lag it reported).
+ * <p>
+ * One controller should be shared by everything that talks to the same wiki. The current
+ * rate, the number of throttling signals and the time spent waiting can be read at any time.
+ * @author eclarke
+ *
+ */
+public class RateController {
+
+	/** Pause after an overload signal that didn't say how long to wait (MediaWiki's own Retry-After) */
+	public static final long DEFAULT_RETRY_AFTER = 5000;
+
+	private final double 	minRate;
+	private final double 	maxRate;
+	private final double 	increase;
+
+	private double 	rate;			// requests per second
+	private long 	scheduled;		// when the bucket will next be empty (nanoTime)
+	private long 	pausedUntil;	// nanoTime
+
+	private final AtomicLong requests 	= new AtomicLong();
+	private final AtomicLong throttled 	= new AtomicLong();
+	private final AtomicLong waitNanos 	= new AtomicLong();
+
+	/**
+	 * Creates a new controller.
+	 * @param initialRate requests per second to start with
+	 * @param minRate requests per second never to go below
+	 * @param maxRate requests per second never to go above
+	 */
+	public RateController(double initialRate, double minRate, double maxRate) {
+		if (minRate <= 0 || maxRate < minRate) {
+			throw new IllegalArgumentException("Rate bounds must satisfy 0 < min <= max.");
+		}
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.rate = Math.max(minRate, Math.min(maxRate, initialRate));
+		// after a halving, about 50 successful requests bring the rate back to the maximum
+		this.increase = maxRate / 100;
+		this.scheduled = System.nanoTime();
+		this.pausedUntil = scheduled;
+	}
+
+	/**
+	 * Blocks until the next request may be sent.
+	 * @throws InterruptedIOException if interrupted while waiting (the interrupt status is kept)
+	 */
+	public void acquire() throws InterruptedIOException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			long burst = Math.max(0, TimeUnit.SECONDS.toNanos(1) - interval);	// a second's worth, minus this one
+			long at = Math.max(now, Math.max(pausedUntil, scheduled - burst));
+			scheduled = Math.max(scheduled, at) + interval;
+			wait = at - now;
+		}
+		requests.incrementAndGet();
+		if (wait <= 0) {
+			return;
+		}
+		waitNanos.addAndGet(wait);
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to send a request.");
+		}
+	}
+
+	/**
+	 * Reports a request the wiki accepted: the rate grows a little.
+	 */
+	public synchronized void succeeded() {
+		rate = Math.min(maxRate, rate + increase);
+	}
+
+	/**
+	 * Reports a request the wiki turned away because it is overloaded: the rate is halved and
+	 * nothing is sent for the specified time.
+	 * @param retryAfter how long the wiki asked to wait (in milliseconds)
+	 */
+	public synchronized void throttled(long retryAfter) {
+		throttled.incrementAndGet();
+		rate = Math.max(minRate, rate / 2);
+		long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryAfter));
+		if (until > pausedUntil) {
+			pausedUntil = until;
+		}
+		// a burst saved up before the pushback shouldn't go out right after it
+		scheduled = Math.max(scheduled, pausedUntil);
+	}
+
+	/**
+	 * @return the current rate (in requests per second)
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return how much longer requests are paused after an overload signal (in milliseconds)
+	 */
+	public synchronized long getPausedFor() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime()));
+	}
+
+	/**
+	 * @return number of requests released
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of overload signals received
+	 */
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	/**
+	 * @return total time requests spent waiting to be released (in milliseconds)
+	 */
+	public long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.1f requests/s, %d requests, %d throttled, %d s waited",
+				getRate(), getRequests(), getThrottledCount(), getWaitMillis() / 1000);
+	}
+
+}
@@ -0,0 +1,315 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Splitter;
+
+/**
+ * ReplayWiki is a BatchWiki that answers its requests from a recording (see CycleRecording)
+ * instead of the network, so a recorded cycle can be run again offline, as fast as the Sync
+ * can go (see SyncReplay).
+ * <p>
+ * A request gets the response recorded for the same request, to whatever host and script
+ * path it was sent. Parameters that depend on the time or the session (maxlag, the start of the
+ * watchlist, passwords, tokens, edit timestamps) are left out of the comparison, as are the text
+ * and summary of an edit, so a rewrite that comes out differently still finds its edit. A request made several times gets the recorded
+ * responses in order, and the last one after that. Recorded failures that the client got past
+ * by retrying are skipped, so the replay takes the path the cycle took without waiting.
+ * <p>
+ * How titles are batched into multi-title queries depends on the order pages reached each
+ * stage, which differs from run to run; a query for titles that were never asked for together
+ * is answered with the pages recorded for each title in queries of the same kind.
+ * <p>
+ * Edits are compared with the edits recorded: the titles whose new text differs are kept, so
+ * two versions of the rewrite rules can be compared on the same input. An edit that wasn't
+ * recorded (i.e. the page was skipped or failed when the cycle ran) is answered as a success.
+ * @author eclarke
+ *
+ */
+public class ReplayWiki extends BatchWiki {
+
+	/** Parameters left out when matching requests */
+	private static final Set<String> VOLATILE = new HashSet<String>(Arrays.asList(
+			"maxlag", "wlstart", "wlend", "rcstart", "rcend", "lgpassword", "lgtoken", "token",
+			"starttimestamp", "basetimestamp", "text", "summary"));
+
+	private final List<CycleRecording.Exchange> 				recorded;
+	private final Map<String, LinkedList<CycleRecording.Exchange>> answers
+			= new HashMap<String, LinkedList<CycleRecording.Exchange>>();
+	private Map<String, String> pages;		// query shape and title => page element
+	private Map<String, String> normalized;	// query shape and title => normalized title
+
+	private final AtomicLong answered 	= new AtomicLong();
+	private final AtomicLong assembled 	= new AtomicLong();
+	private final AtomicLong missed 	= new AtomicLong();
+	private final AtomicLong skipped 	= new AtomicLong();
+	private final AtomicLong sameEdits 	= new AtomicLong();
+	private final AtomicLong newEdits 	= new AtomicLong();
+	private final List<String> changed = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Creates a wiki answering from the specified requests.
+	 * @param domain domain of the recorded wiki
+	 * @param scriptPath script path of the recorded wiki
+	 * @param exchanges recorded requests (i.e. of a cycle, after those of its set-up segment)
+	 * @param wiki which wiki's requests to answer from: CycleRecording.SOURCE or TARGET
+	 */
+	public ReplayWiki(String domain, String scriptPath, List<CycleRecording.Exchange> exchanges, int wiki) {
+		super(domain, scriptPath);
+		this.recorded = new ArrayList<CycleRecording.Exchange>();
+		for (CycleRecording.Exchange exchange : exchanges) {
+			if (exchange.getWiki() != wiki) {
+				continue;
+			}
+			recorded.add(exchange);
+			String key = key(exchange.getUrl(), exchange.getBody(), true);
+			LinkedList<CycleRecording.Exchange> queue = answers.get(key);
+			if (queue == null) {
+				queue = new LinkedList<CycleRecording.Exchange>();
+				answers.put(key, queue);
+			}
+			queue.add(exchange);
+		}
+	}
+
+	@Override
+	protected String exchange(String url, String text, String caller) throws IOException {
+		CycleRecording.Exchange found = next(key(url, text, true));
+		if (text != null && "edit".equals(action(url, text))) {
+			return edit(text, found);
+		}
+		if (found != null) {
+			answered.incrementAndGet();
+			if (found.getError() != null) {
+				throw new IOException(found.getError());
+			}
+			return found.getResponse();
+		}
+		String titles = (text == null) ? parameter(url, "titles") : null;
+		if (titles != null) {
+			String response = assemble(key(url, null, false), titles);
+			if (response != null) {
+				assembled.incrementAndGet();
+				return response;
+			}
+		}
+		missed.incrementAndGet();
+		throw new IOException("No recorded response to "+url);
+	}
+
+	/**
+	 * Compares an edit with the recorded edit of the same page, and answers it.
+	 */
+	private String edit(String text, CycleRecording.Exchange recorded) throws IOException {
+		String title = parameter(text, "title");
+		if (recorded == null) {
+			newEdits.incrementAndGet();
+			return "<?xml version=\"1.0\"?><api><edit result=\"Success\" title=\""
+					+ ((title == null) ? "" : escape(title))
+					+ "\" nochange=\"\" /></api>";
+		}
+		String written = parameter(text, "text");
+		if (written != null && written.equals(parameter(recorded.getBody(), "text"))) {
+			sameEdits.incrementAndGet();
+		} else {
+			changed.add(title);
+		}
+		answered.incrementAndGet();
+		if (recorded.getError() != null) {
+			throw new IOException(recorded.getError());
+		}
+		return recorded.getResponse();
+	}
+
+	/**
+	 * Returns the next recorded response to a request, skipping failures the client retried,
+	 * or null if the request wasn't recorded.
+	 */
+	private synchronized CycleRecording.Exchange next(String key) {
+		LinkedList<CycleRecording.Exchange> queue = answers.get(key);
+		if (queue == null) {
+			return null;
+		}
+		while (queue.size() > 1 && queue.getFirst().getError() != null) {
+			queue.removeFirst();
+			skipped.incrementAndGet();
+		}
+		return (queue.size() > 1) ? queue.removeFirst() : queue.getFirst();
+	}
+
+	/**
+	 * Answers a multi-title query from the pages recorded for each title in queries of the same
+	 * shape, or returns null if any title wasn't recorded.
+	 */
+	private synchronized String assemble(String shape, String titles) {
+		if (pages == null) {
+			index();
+		}
+		StringBuilder n = new StringBuilder();
+		StringBuilder found = new StringBuilder();
+		for (String title : Splitter.on('|').split(titles)) {
+			String to = normalized.get(shape + '\n' + title);
+			if (to != null) {
+				n.append("<n from=\"").append(escape(title)).append("\" to=\"").append(escape(to)).append("\" />");
+			} else {
+				to = title;
+			}
+			String page = pages.get(shape + '\n' + to);
+			if (page == null) {
+				return null;
+			}
+			found.append(page);
+		}
+		StringBuilder xml = new StringBuilder(found.length() + n.length() + 64);
+		xml.append("<?xml version=\"1.0\"?><api><query>");
+		if (n.length() > 0) {
+			xml.append("<normalized>").append(n).append("</normalized>");
+		}
+		return xml.append("<pages>").append(found).append("</pages></query></api>").toString();
+	}
+
+	/**
+	 * Indexes the page elements of every recorded multi-title query by the query's shape (its
+	 * key without the titles) and title.
+	 */
+	private void index() {
+		pages = new HashMap<String, String>();
+		normalized = new HashMap<String, String>();
+		for (CycleRecording.Exchange exchange : recorded) {
+			if (exchange.getBody() != null || exchange.getResponse() == null
+					|| parameter(exchange.getUrl(), "titles") == null) {
+				continue;
+			}
+			String shape = key(exchange.getUrl(), null, false);
+			String xml = exchange.getResponse();
+			for (String n : elements(xml, "<n ")) {
+				normalized.put(shape + '\n' + unescape(attribute(n, "from")), unescape(attribute(n, "to")));
+			}
+			for (String page : elements(xml, "<page ")) {
+				int close = page.indexOf('>');
+				int end = (page.charAt(close - 1) == '/') ? close + 1 : page.indexOf("</page>") + "</page>".length();
+				pages.put(shape + '\n' + unescape(attribute(page, "title")), page.substring(0, end));
+			}
+		}
+	}
+
+	/**
+	 * @return number of requests answered with a recorded response
+	 */
+	public long getAnswered() {
+		return answered.get();
+	}
+
+	/**
+	 * @return number of multi-title queries answered from the pages recorded for each title
+	 */
+	public long getAssembled() {
+		return assembled.get();
+	}
+
+	/**
+	 * @return number of requests that weren't recorded (they failed with an IOException)
+	 */
+	public long getMissed() {
+		return missed.get();
+	}
+
+	/**
+	 * @return number of recorded failures skipped because the client retried them
+	 */
+	public long getSkippedFailures() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return number of edits whose text is the text recorded
+	 */
+	public long getSameEdits() {
+		return sameEdits.get();
+	}
+
+	/**
+	 * @return number of edits to pages that weren't edited when the cycle was recorded
+	 */
+	public long getNewEdits() {
+		return newEdits.get();
+	}
+
+	/**
+	 * @return titles of the edits whose text differs from the text recorded
+	 */
+	public List<String> getChangedEdits() {
+		synchronized (changed) {
+			return new ArrayList<String>(changed);
+		}
+	}
+
+	/**
+	 * Returns the key a request is matched by: its script (api.php or index.php) and parameters,
+	 * without the host, the script path and the volatile parameters (or the titles, for the
+	 * shape of a multi-title query).
+	 */
+	static String key(String url, String text, boolean withTitles) {
+		int query = url.indexOf('?');
+		int script = url.lastIndexOf('/', (query == -1) ? url.length() : query) + 1;
+		StringBuilder key = new StringBuilder(url.length());
+		key.append(url, script, (query == -1) ? url.length() : query);
+		if (query != -1) {
+			appendParameters(key.append('?'), url.substring(query + 1), withTitles);
+		}
+		if (text != null) {
+			appendParameters(key.append(" POST "), text, withTitles);
+		}
+		return key.toString();
+	}
+
+	private static void appendParameters(StringBuilder key, String parameters, boolean withTitles) {
+		for (String pair : Splitter.on('&').omitEmptyStrings().split(parameters)) {
+			int eq = pair.indexOf('=');
+			String name = (eq == -1) ? pair : pair.substring(0, eq);
+			if (VOLATILE.contains(name) || (!withTitles && name.equals("titles"))) {
+				continue;
+			}
+			key.append(pair).append('&');
+		}
+	}
+
+	private static String action(String url, String text) {
+		String action = parameter(text, "action");
+		return (action != null) ? action : parameter(url, "action");
+	}
+
+	/**
+	 * Returns the decoded value of a parameter of a URL or form-encoded body, or null.
+	 */
+	static String parameter(String parameters, String name) {
+		int query = parameters.indexOf('?');
+		for (String pair : Splitter.on('&').split(parameters.substring(query + 1))) {
+			if (pair.startsWith(name + "=")) {
+				try {
+					return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new AssertionError(e); // UTF-8 is always supported
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+}
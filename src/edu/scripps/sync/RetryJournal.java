@@ -0,0 +1,391 @@
+package edu.scripps.sync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+
+/**
+ * RetryJournal keeps the pages that could not be synced, so later cycles can retry them
+ * instead of dropping them until someone edits them again. Each entry remembers how far the
+ * page got: if it had already been fetched (or rewritten), the payload is kept and the retry
+ * starts from there, without asking the source again.
+ * <p>
+ * Retries back off per title: 1 minute after the first failure, doubling with every further
+ * failure, up to 6 hours. A page that changes on the source in the meantime is simply synced
+ * again by the cycle that sees the change. A page that fails maxAttempts times (by default
+ * DEFAULT_MAX_ATTEMPTS, about a day of retries) is dropped from the journal, so one that can
+ * never be synced (i.e. protected on the target) doesn't keep being retried.
+ * <p>
+ * The journal is an append-only file of checksummed records (an entry added or updated, or an
+ * entry removed), replayed when it is opened. A record torn by a crash is dropped from the end
+ * of the file. When most of the file is superseded records, the live entries are written to a
+ * new file that replaces the old one.
+ * @author eclarke
+ *
+ */
+public class RetryJournal {
+
+	/** How far a page got before it failed, and so where its retry starts */
+	public enum Stage {
+		/** nothing was fetched; the retry fetches the page again */
+		FETCH,
+		/** the page was fetched; the retry rewrites it */
+		REWRITE,
+		/** the page was fetched and rewritten; the retry writes it */
+		EDIT
+	}
+
+	/** Failures after which a page is dropped, by default */
+	public static final int DEFAULT_MAX_ATTEMPTS = 12;
+
+	private static final byte PUT 		= 1;
+	private static final byte REMOVE 	= 2;
+
+	private static final long MIN_BACKOFF 	= 60 * 1000;
+	private static final long MAX_BACKOFF 	= 6 * 60 * 60 * 1000;
+	private static final int  MIN_COMPACT 	= 64;		// records
+
+	private final File file;
+	private final int  maxAttempts;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	private FileOutputStream 	out;
+	private int 				records;	// in the file, live or not
+
+	/**
+	 * Opens the journal in the specified file, creating it if it doesn't exist, and drops pages
+	 * after DEFAULT_MAX_ATTEMPTS failures.
+	 * @param file journal file
+	 * @throws IOException if the file can't be read or written
+	 */
+	public RetryJournal(File file) throws IOException {
+		this(file, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Opens the journal in the specified file, creating it if it doesn't exist.
+	 * @param file journal file
+	 * @param maxAttempts failures after which a page is dropped from the journal
+	 * @throws IOException if the file can't be read or written
+	 */
+	public RetryJournal(File file, int maxAttempts) throws IOException {
+		this.file = file;
+		this.maxAttempts = maxAttempts;
+		long good = file.exists() ? replay() : 0;
+		if (file.exists() && file.length() > good) {
+			// drop a record torn by a crash
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(good);
+			} finally {
+				raf.close();
+			}
+		}
+		this.out = new FileOutputStream(file, true);
+		compactIfNeeded();
+	}
+
+	/**
+	 * Returns the entries whose next attempt is due.
+	 * @param now current time (in milliseconds)
+	 * @return due entries, oldest first
+	 */
+	public synchronized List<Entry> due(long now) {
+		List<Entry> due = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.getNextAttempt() <= now) {
+				due.add(entry);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Records a failed attempt to sync a page, and schedules the next one, unless the page has
+	 * now failed maxAttempts times, in which case it is dropped from the journal.
+	 * @param title page title
+	 * @param stage stage the page failed at
+	 * @param page the page as it was when it failed (fetched, or rewritten), or null if it
+	 * was never fetched
+	 * @return the journal entry, or null if the page was dropped
+	 * @throws IOException if the journal can't be written
+	 */
+	public synchronized Entry failed(String title, Stage stage, SourcePage page) throws IOException {
+		Entry previous = entries.get(title);
+		int attempts = (previous == null) ? 1 : previous.getAttempts() + 1;
+		if (attempts >= maxAttempts) {
+			resolved(title);
+			return null;
+		}
+		long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempts - 1, 16));
+		Entry entry = new Entry(title, stage, page, attempts, System.currentTimeMillis() + backoff);
+		append(put(entry));
+		entries.remove(title);
+		entries.put(title, entry);
+		compactIfNeeded();
+		return entry;
+	}
+
+	/**
+	 * Removes a page from the journal, once it has been synced (or no longer needs to be).
+	 * Does nothing if the page isn't in the journal.
+	 * @param title page title
+	 * @throws IOException if the journal can't be written
+	 */
+	public synchronized void resolved(String title) throws IOException {
+		if (entries.remove(title) == null) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeByte(REMOVE);
+		writeString(data, title);
+		append(bytes.toByteArray());
+		compactIfNeeded();
+	}
+
+	/**
+	 * @return true if the page is waiting for a retry
+	 */
+	public synchronized boolean contains(String title) {
+		return entries.containsKey(title);
+	}
+
+	/**
+	 * @return failures after which a page is dropped from the journal
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @return number of pages waiting for a retry
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Closes the journal file.
+	 * @throws IOException if the file can't be closed
+	 */
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/* ---- File format ---- */
+
+	private void append(byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(record.length);
+		data.writeInt((int) crc.getValue());
+		data.write(record);
+		data.flush();
+		out.getFD().sync();
+		records++;
+	}
+
+	/**
+	 * Reads every record in the file into the entry map.
+	 * @return length of the file up to the end of the last intact record
+	 */
+	private long replay() throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		DataInputStream data = new DataInputStream(in);
+		long good = 0;
+		try {
+			while (true) {
+				int length;
+				try {
+					length = data.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int checksum = data.readInt();
+				if (length < 0 || length > file.length() - good - 8) {
+					break;
+				}
+				byte[] record = new byte[length];
+				data.readFully(record);
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				apply(record);
+				good += 8 + length;
+				records++;
+			}
+		} catch (EOFException e) {
+			// torn record at the end
+		} finally {
+			data.close();
+		}
+		return good;
+	}
+
+	private void apply(byte[] record) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+		byte op = data.readByte();
+		String title = readString(data);
+		if (op == REMOVE) {
+			entries.remove(title);
+			return;
+		}
+		Stage stage = Stage.values()[data.readByte()];
+		int attempts = data.readInt();
+		long nextAttempt = data.readLong();
+		SourcePage page = null;
+		if (data.readBoolean()) {
+			String text = readString(data);
+			long revid = data.readLong();
+			String user = readString(data);
+			String summary = readString(data);
+			long millis = data.readLong();
+			Calendar timestamp = null;
+			if (millis != -1) {
+				timestamp = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+				timestamp.setTimeInMillis(millis);
+			}
+			page = new SourcePage(title, text, revid, user, summary, timestamp);
+		}
+		entries.remove(title);
+		entries.put(title, new Entry(title, stage, page, attempts, nextAttempt));
+	}
+
+	private static byte[] put(Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeByte(PUT);
+		writeString(data, entry.getTitle());
+		data.writeByte(entry.getStage().ordinal());
+		data.writeInt(entry.getAttempts());
+		data.writeLong(entry.getNextAttempt());
+		SourcePage page = entry.getPage();
+		data.writeBoolean(page != null);
+		if (page != null) {
+			writeString(data, page.getText());
+			data.writeLong(page.getRevid());
+			writeString(data, page.getUser());
+			writeString(data, page.getSummary());
+			data.writeLong(page.getTimestamp() == null ? -1 : page.getTimestamp().getTimeInMillis());
+		}
+		data.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Rewrites the file with only the live entries, once superseded records make up most of it.
+	 */
+	private void compactIfNeeded() throws IOException {
+		if (records < MIN_COMPACT || records < 2 * entries.size()) {
+			return;
+		}
+		out.close();
+		File tmp = new File(file.getPath() + ".tmp");
+		out = new FileOutputStream(tmp);
+		records = 0;
+		for (Entry entry : entries.values()) {
+			append(put(entry));
+		}
+		out.close();
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace retry journal "+file);
+			}
+		}
+		out = new FileOutputStream(file, true);
+	}
+
+	/** Writes a string of any length (writeUTF stops at 64K), or null */
+	private static void writeString(DataOutputStream data, String s) throws IOException {
+		if (s == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(Charsets.UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if (length == -1) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * A page waiting for a retry.
+	 */
+	public static class Entry {
+
+		private final String 		title;
+		private final Stage 		stage;
+		private final SourcePage 	page;
+		private final int 			attempts;
+		private final long 			nextAttempt;
+
+		Entry(String title, Stage stage, SourcePage page, int attempts, long nextAttempt) {
+			this.title = title;
+			this.stage = (page == null) ? Stage.FETCH : stage;
+			this.page = page;
+			this.attempts = attempts;
+			this.nextAttempt = nextAttempt;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public Stage getStage() {
+			return stage;
+		}
+
+		/**
+		 * @return the page as it was when it failed, or null if it has to be fetched again
+		 */
+		public SourcePage getPage() {
+			return page;
+		}
+
+		/**
+		 * @return number of failed attempts so far
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * @return time the next attempt is due (in milliseconds)
+		 */
+		public long getNextAttempt() {
+			return nextAttempt;
+		}
+	}
+
+}
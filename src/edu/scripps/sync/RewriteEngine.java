@@ -0,0 +1,325 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * RewriteEngine runs a list of RewriteRules over articles. Each article is scanned once, from
+ * left to right, for the kinds of construct the rules asked for (links, templates, headings);
+ * every construct is then handed to the rules that want it, in rule order, and the rewritten
+ * article is put together in a single copy at the end. Adding a rule so costs the work the
+ * rule does on its own constructs, not another pass over the whole article.
+ * <p>
+ * Constructs nested in another (i.e. links in a template, or in an image caption) are handed
+ * to the rules before the construct around them, so a rule sees the text inside its construct
+ * as the rules have rewritten it. Rules see the constructs of the source text: text a rule
+ * puts in is not scanned again. A construct that overlaps a rewritten construct without being
+ * nested in it (which only happens in broken wikitext) is left as it is.
+ * @author eclarke
+ *
+ */
+public class RewriteEngine {
+
+	/** Orders tokens so nested tokens come before the tokens around them */
+	private static final Comparator<WikiToken> INNER_FIRST = new Comparator<WikiToken>() {
+		public int compare(WikiToken a, WikiToken b) {
+			if (a.getEnd() != b.getEnd()) {
+				return (a.getEnd() < b.getEnd()) ? -1 : 1;
+			}
+			if (a.getStart() != b.getStart()) {
+				return (a.getStart() > b.getStart()) ? -1 : 1;
+			}
+			return a.getKind().compareTo(b.getKind());
+		}
+	};
+
+	private final List<RewriteRule> 		rules;
+	private final List<Set<WikiToken.Kind>> kinds;	// of each rule
+	private final Set<WikiToken.Kind> 		wanted;	// by any rule
+
+	/**
+	 * Creates an engine running the specified rules, in that order.
+	 * @param rules rewrite rules
+	 */
+	public RewriteEngine(List<? extends RewriteRule> rules) {
+		this.rules = Collections.unmodifiableList(new ArrayList<RewriteRule>(rules));
+		this.kinds = new ArrayList<Set<WikiToken.Kind>>(rules.size());
+		this.wanted = EnumSet.noneOf(WikiToken.Kind.class);
+		for (RewriteRule rule : rules) {
+			Set<WikiToken.Kind> k = EnumSet.copyOf(rule.getKinds());
+			kinds.add(k);
+			wanted.addAll(k);
+		}
+	}
+
+	/**
+	 * @return the rules, in the order they run
+	 */
+	public List<RewriteRule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Rewrites an article.
+	 * @param text article text
+	 * @return the text as the rules rewrote it (the same text if they changed nothing)
+	 */
+	public String rewrite(String text) {
+		if (wanted.isEmpty()) {
+			return text;
+		}
+		List<WikiToken> tokens = tokenize(text, wanted);
+		if (tokens.isEmpty()) {
+			return text;
+		}
+		// give every rule the article's constructs first; a rule that can't get what it
+		// needs for this article (i.e. the target can't be reached) leaves it alone
+		boolean[] skip = new boolean[rules.size()];
+		for (int r = 0; r < rules.size(); r++) {
+			try {
+				rules.get(r).prepare(select(tokens, kinds.get(r)));
+			} catch (IOException e) {
+				rules.get(r).log(String.format("%s could not prepare an article and left it as it is: %s",
+						rules.get(r), e));
+				skip[r] = true;
+			}
+		}
+		Collections.sort(tokens, INNER_FIRST);
+		Edits edits = new Edits(text);
+		for (WikiToken token : tokens) {
+			if (edits.crosses(token.getStart(), token.getEnd())) {
+				continue;
+			}
+			token.bind(edits);
+			for (int r = 0; r < rules.size(); r++) {
+				if (!skip[r] && kinds.get(r).contains(token.getKind())) {
+					rules.get(r).rewrite(token);
+				}
+			}
+		}
+		return edits.apply();
+	}
+
+	/**
+	 * Hands every rule the constructs of a batch of pages about to be rewritten, so it can
+	 * look up what it needs for all of them at once.
+	 * @param pages fetched pages
+	 */
+	public void prepare(List<SourcePage> pages) {
+		if (wanted.isEmpty()) {
+			return;
+		}
+		List<WikiToken> tokens = new ArrayList<WikiToken>();
+		for (SourcePage page : pages) {
+			tokens.addAll(tokenize(page.getText(), wanted));
+		}
+		for (int r = 0; r < rules.size(); r++) {
+			try {
+				rules.get(r).prepare(select(tokens, kinds.get(r)));
+			} catch (IOException e) {
+				// each article is prepared again on its own before it is rewritten
+				rules.get(r).log(String.format("%s could not prepare a batch of %d pages: %s",
+						rules.get(r), pages.size(), e));
+			}
+		}
+	}
+
+	/**
+	 * Tells every rule a sync cycle is starting.
+	 */
+	public void startCycle() {
+		for (RewriteRule rule : rules) {
+			rule.startCycle();
+		}
+	}
+
+	/**
+	 * Tells every rule a sync cycle has finished.
+	 */
+	public void finishCycle() {
+		for (RewriteRule rule : rules) {
+			rule.finishCycle();
+		}
+	}
+
+	private static List<WikiToken> select(List<WikiToken> tokens, Set<WikiToken.Kind> kinds) {
+		List<WikiToken> selected = new ArrayList<WikiToken>();
+		for (WikiToken token : tokens) {
+			if (kinds.contains(token.getKind())) {
+				selected.add(token);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Finds the constructs of the specified kinds in a single left-to-right scan.
+	 * <ul>
+	 * <li>Every "[[" opens a link whose title runs to the first '|' or "]]" after it; nested
+	 * links (i.e. in image captions) are found in turn. A "[[" with no "]]" after it isn't a
+	 * link, and neither is any after it.</li>
+	 * <li>Every "{{" opens a template that runs to the first "}}" after it. A "{{" with no "}}"
+	 * after it isn't a template, and neither is any after it.</li>
+	 * <li>A line that starts and ends with '=' (trailing whitespace aside) is a heading.</li>
+	 * </ul>
+	 * @param src article text
+	 * @param kinds kinds of construct to find
+	 * @return the constructs, in order of their start
+	 */
+	static List<WikiToken> tokenize(String src, Set<WikiToken.Kind> kinds) {
+		List<WikiToken> tokens = new ArrayList<WikiToken>();
+		boolean links 		= kinds.contains(WikiToken.Kind.LINK);
+		boolean templates 	= kinds.contains(WikiToken.Kind.TEMPLATE);
+		boolean headings 	= kinds.contains(WikiToken.Kind.HEADING);
+		int length = src.length();
+		// the bounds only ever move forward, so the text is scanned once; nested links and
+		// templates share their closing brackets with the ones around them
+		int linkClose = -1;		// next "]]" at or after the current link
+		int linkPipe = -1;		// next '|' at or after the current link
+		int templateClose = -1;	// next "}}" at or after the current template
+		boolean lineStart = true;
+		for (int i = 0; i < length; i++) {
+			char ch = src.charAt(i);
+			if (headings && lineStart && ch == '=') {
+				int eol = src.indexOf('\n', i);
+				if (eol == -1) {
+					eol = length;
+				}
+				int last = eol - 1;
+				while (last > i && Character.isWhitespace(src.charAt(last))) {
+					last--;
+				}
+				if (last > i && src.charAt(last) == '=') {
+					tokens.add(new WikiToken(WikiToken.Kind.HEADING, src, i, eol));
+				}
+			}
+			lineStart = (ch == '\n');
+			if (i + 1 == length) {
+				break;
+			}
+			if (links && ch == '[' && src.charAt(i + 1) == '[') {
+				int start = i + 2;
+				if (linkClose < start) {
+					linkClose = src.indexOf("]]", start);
+					if (linkClose == -1) {
+						links = false;
+						continue;
+					}
+				}
+				if (linkPipe < start) {
+					linkPipe = src.indexOf('|', start);
+					if (linkPipe == -1) {
+						linkPipe = length;
+					}
+				}
+				tokens.add(new WikiToken(WikiToken.Kind.LINK, src, start, Math.min(linkPipe, linkClose)));
+				i = start - 1;	// the next link may start right after this "[["
+			} else if (templates && ch == '{' && src.charAt(i + 1) == '{') {
+				int start = i + 2;
+				if (templateClose < start) {
+					templateClose = src.indexOf("}}", start);
+					if (templateClose == -1) {
+						templates = false;
+						continue;
+					}
+				}
+				tokens.add(new WikiToken(WikiToken.Kind.TEMPLATE, src, i, templateClose + 2));
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * The replacements the rules have made in an article, as non-overlapping spans of the
+	 * source text, each with its new text.
+	 */
+	static final class Edits {
+
+		private final String 				source;
+		private final TreeMap<Integer, Edit> edits = new TreeMap<Integer, Edit>();
+		private int 						growth;
+
+		Edits(String source) {
+			this.source = source;
+		}
+
+		/**
+		 * @return true if an edit overlaps the span without lying within it
+		 */
+		boolean crosses(int start, int end) {
+			Map.Entry<Integer, Edit> before = edits.lowerEntry(start);
+			if (before != null && before.getValue().end > start) {
+				return true;
+			}
+			Map.Entry<Integer, Edit> last = edits.lowerEntry(end);
+			return last != null && last.getKey() >= start && last.getValue().end > end;
+		}
+
+		/**
+		 * @return the span with the edits within it applied
+		 */
+		String text(int start, int end) {
+			Map<Integer, Edit> within = edits.subMap(start, true, end, false);
+			if (within.isEmpty()) {
+				return source.substring(start, end);
+			}
+			StringBuilder out = new StringBuilder(end - start + 16);
+			int copied = start;
+			for (Edit edit : within.values()) {
+				out.append(source, copied, edit.start).append(edit.text);
+				copied = edit.end;
+			}
+			return out.append(source, copied, end).toString();
+		}
+
+		/**
+		 * Replaces the span, and whatever edits were made within it, with the specified text.
+		 */
+		void replace(int start, int end, String text) {
+			Map<Integer, Edit> within = edits.subMap(start, true, end, false);
+			for (Edit edit : within.values()) {
+				growth -= edit.text.length() - (edit.end - edit.start);
+			}
+			within.clear();
+			edits.put(start, new Edit(start, end, text));
+			growth += text.length() - (end - start);
+		}
+
+		/**
+		 * @return the rewritten article
+		 */
+		String apply() {
+			if (edits.isEmpty()) {
+				return source;
+			}
+			StringBuilder out = new StringBuilder(source.length() + Math.max(0, growth));
+			int copied = 0;
+			for (Edit edit : edits.values()) {
+				out.append(source, copied, edit.start).append(edit.text);
+				copied = edit.end;
+			}
+			return out.append(source, copied, source.length()).toString();
+		}
+	}
+
+	private static final class Edit {
+
+		final int 		start;
+		final int 		end;
+		final String 	text;
+
+		Edit(int start, int end, String text) {
+			this.start = start;
+			this.end = end;
+			this.text = text;
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * RewriteRule changes one kind of wikitext construct (links, templates or headings) on its way
+ * to the target, i.e. pointing links back to the source, or converting templates the target
+ * doesn't have. Rules are run by a RewriteEngine, which scans each article once and hands every
+ * rule the constructs it asked for, in the order the rules are configured (rewrite.rules).
+ * <p>
+ * A rule is shared by the rewrite threads, so rewrite() must be thread-safe. Rules with a
+ * public (Wiki source, Wiki target) or no-argument constructor can be named in the
+ * configuration.
+ * @author eclarke
+ *
+ */
+public abstract class RewriteRule {
+
+	private volatile Sync sync;
+
+	/**
+	 * @return the kinds of construct this rule wants to see
+	 */
+	public abstract Set<WikiToken.Kind> getKinds();
+
+	/**
+	 * Rewrites a construct, by calling setText() on the token, or leaves it as it is.
+	 * @param token construct of one of the rule's kinds
+	 */
+	public abstract void rewrite(WikiToken token);
+
+	/**
+	 * Called with the constructs of a whole batch of fetched pages before any of them is
+	 * rewritten, so the rule can look up whatever it needs for all of them at once, and again
+	 * with the constructs of each article just before it is rewritten. Does nothing by default.
+	 * @param tokens constructs of the rule's kinds in the batch or article
+	 * @throws IOException if the rule can't look up what it needs; the rule then leaves the
+	 * article as it is
+	 */
+	public void prepare(List<WikiToken> tokens) throws IOException {
+	}
+
+	/**
+	 * Called at the start of every sync cycle. Does nothing by default.
+	 */
+	public void startCycle() {
+	}
+
+	/**
+	 * Called at the end of every successful sync cycle, i.e. to report on the rule's work.
+	 * Does nothing by default.
+	 */
+	public void finishCycle() {
+	}
+
+	/**
+	 * Sends the rule's log messages to the specified Sync's log. Called by Sync.setRewriteRules().
+	 * @param sync Sync the rule runs in
+	 */
+	void setSync(Sync sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Logs a message through the Sync the rule runs in, or to standard output if it runs in none.
+	 * @param message message to log
+	 */
+	protected void log(String message) {
+		Sync sync = this.sync;
+		if (sync != null) {
+			sync.log(message);
+		} else {
+			System.out.println(message);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+
+}
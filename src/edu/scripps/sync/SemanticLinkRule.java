@@ -0,0 +1,100 @@
+package edu.scripps.sync;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SemanticLinkRule converts SWL templates on Wikipedia of the form 
+ * {{SWL | target = x | type = y | label = z}} to Semantic Mediawiki style [[type::target|label]].
+ * The fields may appear in any order; target and type are required and label is optional.
+ * Templates missing a target or type are counted as malformed and left as they are.
+ * @author eclarke
+ *
+ */
+public class SemanticLinkRule extends RewriteRule {
+
+	/** Matches the start of a target, type or label field in an SWL template */
+	private static final Pattern SWL_FIELD = Pattern.compile("\\|[\\s]*(target|type|label)=");
+
+	private final AtomicInteger converted = new AtomicInteger();
+	private final AtomicInteger malformed = new AtomicInteger();
+
+	@Override
+	public Set<WikiToken.Kind> getKinds() {
+		return EnumSet.of(WikiToken.Kind.TEMPLATE);
+	}
+
+	@Override
+	public void startCycle() {
+		converted.set(0);
+		malformed.set(0);
+	}
+
+	@Override
+	public void finishCycle() {
+		if (converted.get() > 0 || malformed.get() > 0) {
+			log(String.format("Converted %d SWL templates (%d malformed templates left as they were).", 
+					converted.get(), malformed.get()));
+		}
+	}
+
+	@Override
+	public void rewrite(WikiToken token) {
+		String template = token.getText();
+		if (!template.startsWith("{{SWL")) {
+			return;
+		}
+		String swl = template.substring(5, template.length() - 2);
+		
+		/* ---- Parsing the SWL template (order-agnostic) ---- */
+		String target 	= null;
+		String label	= null;
+		String type		= null;
+		Matcher m = SWL_FIELD.matcher(swl);
+		while (m.find()) {
+			// the value runs from after the '=' to the next field (the '|' char) or the end of the template
+			int end = swl.indexOf('|', m.end());
+			String value = swl.substring(m.end(), (end == -1) ? swl.length() : end);
+			String field = m.group(1);
+			if (field.equals("target") && target == null) {
+				target = value;
+			} else if (field.equals("type") && type == null) {
+				type = value;
+			} else if (field.equals("label") && label == null) {
+				label = value;
+			}
+		}
+		if (target == null || type == null) {
+			malformed.incrementAndGet();	// without a target and type there's nothing to link
+			return;
+		}
+		
+		/* ---- Replacing SWL template with Semantic Mediawiki link ---- */
+		StringBuilder link = new StringBuilder(swl.length() + 8);
+		link.append("[[").append(type).append("::").append(target);
+		if (label != null) {
+			link.append('|').append(label);
+		}
+		link.append("]]");
+		token.setText(link.toString());
+		converted.incrementAndGet();
+	}
+
+	/**
+	 * @return number of SWL templates converted so far in the current cycle
+	 */
+	public int getConverted() {
+		return converted.get();
+	}
+
+	/**
+	 * @return number of malformed SWL templates left unconverted so far in the current cycle
+	 */
+	public int getMalformed() {
+		return malformed.get();
+	}
+
+}
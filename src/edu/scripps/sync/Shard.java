@@ -0,0 +1,246 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Shard is the part of the watched titles one worker of a sharded sync is responsible for.
+ * Titles are hashed into a fixed number of partitions, and the partitions are spread over the
+ * live workers by consistent hashing: each worker has a number of points on a hash ring, and a
+ * partition belongs to the worker with the first point after the partition's hash. When a
+ * worker joins or leaves, only the partitions next to its points move.
+ * <p>
+ * Partitions move only between cycles. At the start of each cycle, rebalance() releases the
+ * partitions that now belong to someone else and takes the lease on those that now belong to
+ * this worker; a partition whose previous owner hasn't released it yet is taken in a later
+ * cycle. Since a partition is synced only by the holder of its lease, and its checkpoint is
+ * shared, the new owner picks up exactly where the old one stopped: no change is synced twice
+ * or skipped (except that changes synced by a worker that died before saving its checkpoint
+ * are synced again).
+ * @author eclarke
+ *
+ */
+public class Shard {
+
+	private static final int POINTS = 100;		// points on the ring per worker
+
+	private final ShardCoordinator 	coordinator;
+	private final int 				partitions;
+
+	private final SortedMap<Integer, SyncCheckpoint> owned = new TreeMap<Integer, SyncCheckpoint>();
+	private int 	workers;
+	private int 	waiting;	// partitions this worker should own but can't take yet
+	private volatile Sync 	sync;
+
+	/**
+	 * Creates a new shard and joins the specified coordinator's workers. The shard owns no
+	 * partitions until the first call to rebalance().
+	 * @param coordinator coordination backend
+	 * @param partitions number of partitions (the same for every worker)
+	 * @throws IOException if the worker can't join
+	 */
+	public Shard(ShardCoordinator coordinator, int partitions) throws IOException {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("A shard needs at least one partition");
+		}
+		this.coordinator = coordinator;
+		this.partitions = partitions;
+		coordinator.join(partitions);
+	}
+
+	/**
+	 * Returns the partition a title belongs to.
+	 * @param title page title
+	 * @param partitions number of partitions
+	 * @return partition number, from 0 to partitions - 1
+	 */
+	public static int partition(String title, int partitions) {
+		return (int) ((WriteStore.hash(title) >>> 1) % partitions);
+	}
+
+	/**
+	 * Returns the partitions that belong to a worker, by consistent hashing.
+	 * @param workers ids of the live workers
+	 * @param worker id of the worker
+	 * @param partitions number of partitions
+	 * @return the worker's partitions
+	 */
+	public static Set<Integer> assign(Collection<String> workers, String worker, int partitions) {
+		TreeMap<Long, String> ring = new TreeMap<Long, String>();
+		for (String w : workers) {
+			for (int i = 0; i < POINTS; i++) {
+				ring.put(WriteStore.hash(w + "#" + i), w);
+			}
+		}
+		Set<Integer> assigned = new TreeSet<Integer>();
+		if (ring.isEmpty()) {
+			return assigned;
+		}
+		for (int p = 0; p < partitions; p++) {
+			Map.Entry<Long, String> point = ring.ceilingEntry(WriteStore.hash("partition#" + p));
+			if (point == null) {
+				point = ring.firstEntry();
+			}
+			if (point.getValue().equals(worker)) {
+				assigned.add(p);
+			}
+		}
+		return assigned;
+	}
+
+	/**
+	 * Brings the partitions this worker owns in line with the live workers: releases those
+	 * that belong to another worker now, and takes those that belong to this one (if their
+	 * previous owner has let go of them). Must only be called between cycles.
+	 * @throws IOException if the coordinator can't be reached
+	 */
+	public synchronized void rebalance() throws IOException {
+		List<String> live = coordinator.getWorkers();
+		Set<Integer> wanted = assign(live, coordinator.getWorkerId(), partitions);
+		int released = 0, acquired = 0;
+		for (Integer p : new ArrayList<Integer>(owned.keySet())) {
+			if (!wanted.contains(p)) {
+				coordinator.release(p);
+				owned.remove(p);
+				released++;
+			}
+		}
+		int stillWaiting = 0;
+		for (Integer p : wanted) {
+			if (owned.containsKey(p)) {
+				continue;
+			}
+			if (coordinator.tryAcquire(p)) {
+				try {
+					owned.put(p, coordinator.openCheckpoint(p));
+				} catch (IOException e) {
+					coordinator.release(p);
+					throw e;
+				}
+				acquired++;
+			} else {
+				stillWaiting++;
+			}
+		}
+		if (released > 0 || acquired > 0 || stillWaiting != waiting || live.size() != workers) {
+			log(String.format("Shard: %d workers; this one owns %d of %d partitions (%d taken, %d released, %d still held by another worker).",
+					live.size(), owned.size(), partitions, acquired, released, stillWaiting));
+		}
+		workers = live.size();
+		waiting = stillWaiting;
+	}
+
+	/**
+	 * Releases every partition and leaves the workers, so the others take the partitions over.
+	 * Must only be called between cycles.
+	 * @throws IOException if the coordinator can't be reached
+	 */
+	public synchronized void leave() throws IOException {
+		owned.clear();
+		coordinator.leave();
+	}
+
+	/**
+	 * @return true if this worker owns the title's partition
+	 */
+	public synchronized boolean owns(String title) {
+		return owned.containsKey(partition(title, partitions));
+	}
+
+	/**
+	 * @return true if this worker owns no partitions (yet)
+	 */
+	public synchronized boolean isIdle() {
+		return owned.isEmpty();
+	}
+
+	/**
+	 * @return the partitions this worker owns
+	 */
+	public synchronized Set<Integer> getPartitions() {
+		return new TreeSet<Integer>(owned.keySet());
+	}
+
+	/**
+	 * @return number of partitions
+	 */
+	public int getPartitionCount() {
+		return partitions;
+	}
+
+	/**
+	 * @return the checkpoint of the title's partition, or null if this worker doesn't own it
+	 */
+	public synchronized SyncCheckpoint getCheckpoint(String title) {
+		return owned.get(partition(title, partitions));
+	}
+
+	/**
+	 * Returns the time to read changes from: the oldest mark of the partitions this worker owns.
+	 * @param unmarked time to read from for a partition that has no mark yet
+	 * @return oldest mark, or null if this worker owns no partitions
+	 */
+	public synchronized Calendar getTimestamp(Calendar unmarked) {
+		Calendar oldest = null;
+		for (SyncCheckpoint checkpoint : owned.values()) {
+			Calendar mark = checkpoint.getTimestamp();
+			if (mark == null) {
+				mark = unmarked;
+			}
+			if (oldest == null || mark.before(oldest)) {
+				oldest = mark;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Sorts changes by the partition they belong to.
+	 * @param changes changes read this cycle
+	 * @return the checkpoint of every partition this worker owns, with its changes (possibly none)
+	 */
+	public synchronized Map<SyncCheckpoint, List<SourceChange>> group(List<SourceChange> changes) {
+		Map<Integer, List<SourceChange>> byPartition = new LinkedHashMap<Integer, List<SourceChange>>();
+		for (Integer p : owned.keySet()) {
+			byPartition.put(p, new ArrayList<SourceChange>());
+		}
+		for (SourceChange change : changes) {
+			List<SourceChange> list = byPartition.get(partition(change.getTitle(), partitions));
+			if (list != null) {
+				list.add(change);
+			}
+		}
+		Map<SyncCheckpoint, List<SourceChange>> grouped = new LinkedHashMap<SyncCheckpoint, List<SourceChange>>();
+		for (Map.Entry<Integer, List<SourceChange>> entry : byPartition.entrySet()) {
+			grouped.put(owned.get(entry.getKey()), entry.getValue());
+		}
+		return grouped;
+	}
+
+	/**
+	 * Sends the shard's log messages to the specified Sync's log. Called by Sync.setShard().
+	 * @param sync Sync the shard belongs to
+	 */
+	void setSync(Sync sync) {
+		this.sync = sync;
+	}
+
+	private void log(String message) {
+		Sync sync = this.sync;
+		if (sync != null) {
+			sync.log(message);
+		} else {
+			System.out.println(message);
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ShardCoordinator is the backend through which the workers of a sharded sync find each other
+ * and own partitions of the titles. A partition is owned by at most one worker at a time (its
+ * lease), and its checkpoint is kept where every worker can read it, so a partition can move
+ * from one worker to another without missing or repeating changes.
+ * <p>
+ * A lease must outlive pauses of its owner (it is only released by release(), leave(), or the
+ * owner dying), since a worker that lost a lease while syncing could write pages another
+ * worker writes as well.
+ * @author eclarke
+ *
+ */
+public interface ShardCoordinator {
+
+	/**
+	 * @return id of this worker, unique among the workers
+	 */
+	public String getWorkerId();
+
+	/**
+	 * Registers this worker, so the others take it into account.
+	 * @param partitions number of partitions, which every worker must agree on
+	 * @throws IOException if the worker can't register, or the others use another number
+	 * of partitions
+	 */
+	public void join(int partitions) throws IOException;
+
+	/**
+	 * @return ids of the live workers, this one included
+	 * @throws IOException if the workers can't be listed
+	 */
+	public List<String> getWorkers() throws IOException;
+
+	/**
+	 * Takes the lease on a partition, if no other worker holds it.
+	 * @param partition partition number
+	 * @return true if this worker now holds the lease
+	 * @throws IOException if the lease can't be checked
+	 */
+	public boolean tryAcquire(int partition) throws IOException;
+
+	/**
+	 * Gives up the lease on a partition. Does nothing if this worker doesn't hold it.
+	 * @param partition partition number
+	 * @throws IOException if the lease can't be released
+	 */
+	public void release(int partition) throws IOException;
+
+	/**
+	 * Opens the shared checkpoint of a partition. Only called while holding its lease.
+	 * @param partition partition number
+	 * @return the partition's checkpoint, as its last owner left it
+	 * @throws IOException if the checkpoint can't be read
+	 */
+	public SyncCheckpoint openCheckpoint(int partition) throws IOException;
+
+	/**
+	 * Releases every lease and unregisters this worker.
+	 * @throws IOException if the worker can't unregister
+	 */
+	public void leave() throws IOException;
+
+}
@@ -0,0 +1,41 @@
+package edu.scripps.sync;
+
+import java.util.Calendar;
+
+/**
+ * SourceChange is a single revision on the source MediaWiki, as listed by its watchlist:
+ * just enough to know which page changed, and when, to sync it and move the checkpoint.
+ * @author eclarke
+ *
+ */
+public class SourceChange {
+
+	private final String 	title;
+	private final long 		revid;
+	private final Calendar 	timestamp;
+
+	/**
+	 * Creates a new SourceChange.
+	 * @param title page title
+	 * @param revid revision id
+	 * @param timestamp time the revision was saved
+	 */
+	public SourceChange(String title, long revid, Calendar timestamp) {
+		this.title = title;
+		this.revid = revid;
+		this.timestamp = timestamp;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public long getRevid() {
+		return revid;
+	}
+
+	public Calendar getTimestamp() {
+		return timestamp;
+	}
+
+}
@@ -0,0 +1,73 @@
+package edu.scripps.sync;
+
+import java.util.Calendar;
+
+/**
+ * SourcePage holds the text of a page on the source MediaWiki together with the
+ * metadata of the revision that text belongs to. Because both are fetched in the
+ * same request, the text, revid, user and summary always describe the same revision.
+ * @author eclarke
+ *
+ */
+public class SourcePage {
+
+	private final String 	title;
+	private final String 	text;
+	private final long 		revid;
+	private final String 	user;
+	private final String 	summary;
+	private final Calendar 	timestamp;
+
+	/**
+	 * Creates a new SourcePage.
+	 * @param title page title
+	 * @param text wikitext of the revision
+	 * @param revid revision id
+	 * @param user author of the revision
+	 * @param summary edit summary of the revision
+	 * @param timestamp time the revision was saved
+	 */
+	public SourcePage(String title, String text, long revid, String user, String summary, Calendar timestamp) {
+		this.title = title;
+		this.text = text;
+		this.revid = revid;
+		this.user = user;
+		this.summary = summary;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Returns a copy of this page with different text (i.e. after rewriting), keeping the
+	 * revision metadata of the original.
+	 * @param text new text
+	 * @return page with the new text
+	 */
+	public SourcePage withText(String text) {
+		return new SourcePage(title, text, revid, user, summary, timestamp);
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public long getRevid() {
+		return revid;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getSummary() {
+		return summary;
+	}
+
+	public Calendar getTimestamp() {
+		return timestamp;
+	}
+
+}
@@ -3,9 +3,16 @@ package edu.scripps.sync;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.security.auth.login.LoginException;
 
 import org.genewiki.api.Wiki;
@@ -29,6 +36,21 @@ public abstract class Sync implements Runnable {
 	private 	final int 		period;
 	private 	final boolean 	rewrite;
 	
+	private volatile CycleStats lastCycle = new CycleStats();
+	private volatile SyncPipeline pipeline;	// created when first needed
+	private volatile SyncCheckpoint checkpoint;
+	private volatile WriteStore writeStore;
+	private volatile RetryJournal journal;
+	private volatile int streamWindow;
+	private volatile Shard shard;
+	private volatile CycleRecorder recorder;
+	private volatile boolean debug;
+	private volatile String label;
+	private volatile RewriteEngine rules = new RewriteEngine(Collections.<RewriteRule>emptyList());
+	private volatile CycleStats cycle = lastCycle;
+	private final ReentrantLock cycleLock = new ReentrantLock();	// one cycle at a time
+	private final Metrics metrics = new Metrics();
+	
 	/**
 	 * Create a new Sync object with the specified MediaWiki installations
 	 * and the synchronization period (in minutes).
@@ -43,6 +65,7 @@ public abstract class Sync implements Runnable {
 		this.target = target;
 		this.period = period;
 		this.rewrite = rewrite;
+		registerGauges();
 	
 	}
 	
@@ -52,77 +75,936 @@ public abstract class Sync implements Runnable {
 	 * @throws RuntimeException if network error occurs
 	 */
 	public void run() {
+		cycleLock.lock();
+		try {
+			runCycle(null);
+		} finally {
+			cycleLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes the pages changed in the specified revisions to the target Mediawiki installation
+	 * right away, i.e. when a change stream reports them. The checkpoint is left where it is, 
+	 * since these changes don't say anything about the changes before them. If a cycle is
+	 * already running (on another thread), this waits for it to finish.
+	 * @param changes revisions to sync
+	 */
+	public void runChanges(List<SourceChange> changes) {
+		cycleLock.lock();
+		try {
+			runCycle(changes);
+		} finally {
+			cycleLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true while a cycle is running
+	 */
+	public boolean isSyncing() {
+		return cycleLock.isLocked();
+	}
+	
+	/**
+	 * Writes the specified pages to the target, whenever they last changed (i.e. for a backfill).
+	 * Doesn't touch the checkpoint or the retries waiting in the journal.
+	 * @param titles titles of the pages to sync
+	 * @return statistics of the pages synced
+	 */
+	CycleStats syncTitles(List<String> titles) {
+		cycleLock.lock();
+		try {
+			long start = System.currentTimeMillis();
+			CycleStats stats = new CycleStats();
+			cycle = stats;
+			startCycle();
+			stats.addChanges(titles.size());
+			Map<String, SyncOutcome> outcomes = writeChangedArticles(titles, Collections.<RetryJournal.Entry>emptyList(), stats);
+			stats.addOutcomes(outcomes.values());
+			for (Map.Entry<String, SyncOutcome> outcome : outcomes.entrySet()) {
+				if (outcome.getValue() == SyncOutcome.FAILED || outcome.getValue() == SyncOutcome.ABANDONED) {
+					stats.addFailedTitle(outcome.getKey());
+				}
+			}
+			resolveRetries(outcomes);
+			if (writeStore != null) {
+				writeStore.flush();
+			}
+			stats.setDuration(System.currentTimeMillis() - start);
+			recordCycle(stats);
+			finishCycle(stats);
+			return stats;
+		} finally {
+			cycleLock.unlock();
+		}
+	}
+	
+	/**
+	 * Runs a cycle over the specified revisions, or over the watchlist if there are none.
+	 */
+	private void runCycle(List<SourceChange> pushed) {
 		log("Syncing...");
+		long start = System.currentTimeMillis();
+		if (shard != null && pushed == null) {
+			try {
+				shard.rebalance();
+			} catch (IOException e) {
+				log("Could not rebalance the shard; keeping the partitions held: "+e.getMessage());
+			}
+		}
+		CycleStats stats = new CycleStats();
+		cycle = stats;
+		startCycle();
 		try {
-			List<String> changed = getRecentChanges(period);
-			log(String.format("Found %d new changes...", changed.size()));
-			writeChangedArticles(changed);
+			if (shard != null && shard.isIdle()) {
+				log("This worker owns no partitions yet.");
+			} else if (pushed != null) {
+				syncChanges(pushed, stats, false, true);
+			} else if (streamWindow > 0 && source instanceof BatchWiki) {
+				syncStreaming((BatchWiki) source, stats);
+			} else {
+				syncChanges(getRecentChanges(period), stats, true, false);
+			}
+			log(String.format("Fetched %d pages in %d requests (%d requests saved).", 
+					stats.getChanges(), stats.getFetchRequests(), stats.getRequestsSaved()));
+			if (writeStore != null) {
+				writeStore.flush();
+				log(String.format("Skipped %d pages the target already had.", stats.getSkippedEdits()));
+			}
+			log(String.format("%d written, %d skipped, %d missing, %d queued for retry, %d failed, %d given up on.",
+					stats.getOutcomeCount(SyncOutcome.WRITTEN), stats.getOutcomeCount(SyncOutcome.SKIPPED),
+					stats.getOutcomeCount(SyncOutcome.MISSING), stats.getOutcomeCount(SyncOutcome.QUEUED),
+					stats.getOutcomeCount(SyncOutcome.FAILED), stats.getOutcomeCount(SyncOutcome.ABANDONED)));
+			logRate("Source", source);
+			logRate("Target", target);
+			stats.setDuration(System.currentTimeMillis() - start);
+			if (stats.getMaxPropagation() > 0) {
+				log(String.format("Propagation latency: %d s average, %d s max.", 
+						stats.getAveragePropagation() / 1000, stats.getMaxPropagation() / 1000));
+			}
+			log(String.format("Time: watchlist %d ms, fetch %d ms, rewrite %d ms, edit %d ms (summed over workers), %d ms in all.",
+					stats.getWatchlistNanos() / 1000000, stats.getFetchNanos() / 1000000, 
+					stats.getRewriteNanos() / 1000000, stats.getEditNanos() / 1000000, stats.getDuration()));
+			recordCycle(stats);
+			finishCycle(stats);
+			lastCycle = stats;
 		} catch (IOException e) {
 			log("Network error retrieving changes from watchlist.");
 			throw new RuntimeException("Network error retrieving changes from watchlist.");
 		}
 	}
 	
+	private void logRate(String name, Wiki wiki) {
+		if (wiki instanceof BatchWiki && ((BatchWiki) wiki).getRateController() != null) {
+			log(String.format("%s rate: %s.", name, ((BatchWiki) wiki).getRateController()));
+		}
+	}
+	
 	/**
-	 * Returns a list of titles corresponding to pages changed in the 
-	 * time between the moment the method is called and the specified
-	 * number of minutes in the past.
+	 * Syncs the pages changed in the specified revisions, then moves the checkpoint past them.
+	 * @param live revisions to sync
+	 * @param stats statistics for the current cycle
+	 * @param retry if journaled pages that are due should be retried as well
+	 * @param held if an earlier failure this cycle holds the checkpoint where it is
+	 * @return true if the checkpoint is now held back by a page that failed
+	 */
+	private boolean syncChanges(List<SourceChange> live, CycleStats stats, boolean retry, boolean held) {
+		List<String> changed = titlesOf(owned(live));
+		log(String.format("Found %d new changes...", changed.size()));
+		stats.addChanges(changed.size());
+		List<String> titles = new ArrayList<String>(changed);
+		List<RetryJournal.Entry> retries = retry ? dueRetries(changed, titles) : Collections.<RetryJournal.Entry>emptyList();
+		Map<String, SyncOutcome> outcomes = writeChangedArticles(titles, retries, stats);
+		stats.addOutcomes(outcomes.values());
+		Set<String> failed = resolveRetries(outcomes);
+		if (held) {
+			return true;
+		}
+		return advanceCheckpoint(live, failed);
+	}
+	
+	/**
+	 * Reads the watchlist one response at a time (of at most streamWindow changes) and syncs the
+	 * changes in windows of whole responses holding at least streamWindow titles (or whatever is
+	 * left at the end), so the first pages are written as soon as the first window is read,
+	 * and memory use depends on the window rather than on how many changes are waiting. The
+	 * checkpoint moves after every window, so an interrupted backlog resumes where it stopped.
+	 * Changes to a page already synced this cycle at the same or a newer revision are dropped;
+	 * the pages remembered for that are limited too, so a page may now and then be synced twice.
+	 * @param wiki source
+	 * @param stats statistics for the current cycle
+	 * @throws IOException if a network error occurs reading the watchlist
+	 */
+	private void syncStreaming(BatchWiki wiki, CycleStats stats) throws IOException {
+		final int remembered = 4 * streamWindow;
+		Map<String, Long> recent = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > remembered;
+			}
+		};
+		BatchWiki.WatchlistReader watchlist = wiki.getWatchlist(syncStart(period), streamWindow);
+		List<SourceChange> window = new ArrayList<SourceChange>();
+		Set<String> titles = new HashSet<String>();
+		boolean first = true;
+		boolean held = false;
+		List<SourceChange> changes;
+		while ((changes = nextWindow(watchlist, stats)) != null) {
+			for (SourceChange change : changes) {
+				Long synced = recent.get(change.getTitle());
+				if ((synced != null && synced >= change.getRevid()) || isCovered(change)) {
+					continue;
+				}
+				recent.put(change.getTitle(), change.getRevid());
+				window.add(change);
+				titles.add(change.getTitle());
+			}
+			if (titles.size() >= streamWindow) {
+				held = syncChanges(window, stats, first, held);
+				first = false;
+				window.clear();
+				titles.clear();
+			}
+		}
+		if (first || !window.isEmpty()) {
+			syncChanges(window, stats, first, held);
+		}
+	}
+	
+	private List<SourceChange> nextWindow(BatchWiki.WatchlistReader watchlist, CycleStats stats) throws IOException {
+		long start = System.nanoTime();
+		List<SourceChange> changes = watchlist.next();
+		long elapsed = System.nanoTime() - start;
+		stats.addWatchlistTime(elapsed);
+		metrics.time("watchlist.latency", elapsed);
+		return changes;
+	}
+	
+	/**
+	 * Syncs the watchlist in windows of the specified number of titles, read as they are
+	 * needed, instead of reading every change since the last cycle before writing anything.
+	 * Only used if the source is a BatchWiki.
+	 * @param titles titles per window, or 0 to read all changes at once
+	 */
+	public void setStreamWindow(int titles) {
+		this.streamWindow = titles;
+	}
+	
+	/**
+	 * Returns the watchlist revisions that haven't been synced yet. If the Sync has a 
+	 * checkpoint, these are the revisions after its mark; otherwise (or before the first
+	 * checkpoint is saved) they are the revisions made in the time between the moment the
+	 * method is called and the specified number of minutes in the past.
 	 * @param minutesAgo number of minutes ago to form the lower bound of changes
-	 * @return list of page titles
+	 * @return list of revisions
 	 * @throws IOException if network error occurs
 	 */
-	private List<String> getRecentChanges(int minutesAgo) throws IOException {
-		Calendar past = Calendar.getInstance();
-		past.add(Calendar.MINUTE, -minutesAgo);
-		List<Revision> live = source.getChangesFromWatchlist(past, true);
-		Set<String> changed = new HashSet<String>(live.size());
+	private List<SourceChange> getRecentChanges(int minutesAgo) throws IOException {
+		long start = System.nanoTime();
+		List<Revision> live = source.getChangesFromWatchlist(syncStart(minutesAgo), true);
+		long elapsed = System.nanoTime() - start;
+		cycle.addWatchlistTime(elapsed);
+		metrics.time("watchlist.latency", elapsed);
+		List<SourceChange> unsynced = new ArrayList<SourceChange>(live.size());
 		for (Revision rev : live) {
+			SourceChange change = new SourceChange(rev.getTitle(), rev.getRevid(), rev.getTimestamp());
+			if (!isCovered(change)) {
+				unsynced.add(change);
+			}
+		}
+		return unsynced;
+	}
+	
+	/**
+	 * Returns the time to read the watchlist from: the checkpoint's mark, or (without one)
+	 * the specified number of minutes ago.
+	 */
+	private Calendar syncStart(int minutesAgo) {
+		Calendar fallback = Calendar.getInstance();
+		fallback.add(Calendar.MINUTE, -minutesAgo);
+		if (shard != null) {
+			Calendar past = shard.getTimestamp(fallback);
+			return (past == null) ? fallback : past;
+		}
+		Calendar past = (checkpoint == null) ? null : checkpoint.getTimestamp();
+		return (past == null) ? fallback : past;
+	}
+	
+	private boolean isCovered(SourceChange change) {
+		SyncCheckpoint checkpoint = (shard == null) ? this.checkpoint : shard.getCheckpoint(change.getTitle());
+		return checkpoint != null && checkpoint.covers(change.getTimestamp(), change.getRevid());
+	}
+	
+	/**
+	 * Returns the revisions of the pages this Sync is responsible for: all of them, or with
+	 * a shard, those in the partitions it owns.
+	 */
+	private List<SourceChange> owned(List<SourceChange> revisions) {
+		if (shard == null) {
+			return revisions;
+		}
+		List<SourceChange> owned = new ArrayList<SourceChange>(revisions.size());
+		for (SourceChange rev : revisions) {
+			if (shard.owns(rev.getTitle())) {
+				owned.add(rev);
+			}
+		}
+		return owned;
+	}
+	
+	/**
+	 * Returns the distinct titles of the specified revisions.
+	 */
+	private static List<String> titlesOf(List<SourceChange> revisions) {
+		Set<String> changed = new LinkedHashSet<String>(revisions.size());
+		for (SourceChange rev : revisions) {
 			changed.add(rev.getTitle());
 		}
 		return new ArrayList<String>(changed);	
 	}
 	
+	/**
+	 * Returns the journaled pages due for a retry that were already fetched, and adds the titles
+	 * of those that weren't to the titles to fetch. Pages changed again since they failed are
+	 * left to the regular sync, which fetches their new revision.
+	 * @param changed titles changed this cycle
+	 * @param titles titles to fetch this cycle
+	 * @return journaled pages to retry without fetching them
+	 */
+	private List<RetryJournal.Entry> dueRetries(List<String> changed, List<String> titles) {
+		if (journal == null) {
+			return Collections.emptyList();
+		}
+		Set<String> fresh = new HashSet<String>(changed);
+		List<RetryJournal.Entry> retries = new ArrayList<RetryJournal.Entry>();
+		for (RetryJournal.Entry entry : journal.due(System.currentTimeMillis())) {
+			if (fresh.contains(entry.getTitle())) {
+				continue;
+			}
+			if (entry.getStage() == RetryJournal.Stage.FETCH) {
+				titles.add(entry.getTitle());
+			} else {
+				retries.add(entry);
+			}
+		}
+		if (titles.size() > changed.size() || !retries.isEmpty()) {
+			log(String.format("Retrying %d journaled pages (%d still waiting)...", 
+					titles.size() - changed.size() + retries.size(), journal.size()));
+		}
+		return retries;
+	}
+	
+	/**
+	 * Removes the pages that no longer need a retry from the journal.
+	 * @param outcomes outcome of each page this cycle
+	 * @return titles of the pages that failed and could not be journaled
+	 */
+	private Set<String> resolveRetries(Map<String, SyncOutcome> outcomes) {
+		Set<String> failed = new HashSet<String>();
+		for (Map.Entry<String, SyncOutcome> outcome : outcomes.entrySet()) {
+			if (outcome.getValue() == SyncOutcome.FAILED) {
+				failed.add(outcome.getKey());
+			} else if (journal != null && outcome.getValue() != SyncOutcome.QUEUED) {
+				try {
+					journal.resolved(outcome.getKey());
+				} catch (IOException e) {
+					log("Could not update the retry journal: "+e.getMessage());
+				}
+			}
+		}
+		return failed;
+	}
+	
+	/**
+	 * Called by the pipeline when a page can't be synced. Adds the page to the retry journal,
+	 * with whatever was fetched or rewritten so far.
+	 * @param title page title
+	 * @param stage stage the page failed at
+	 * @param page the page as it was when it failed, or null if it wasn't fetched
+	 * @return QUEUED if the page was journaled, ABANDONED if it has failed too often to be
+	 * journaled again, otherwise FAILED
+	 */
+	SyncOutcome pageFailed(String title, RetryJournal.Stage stage, SourcePage page) {
+		RetryJournal journal = this.journal;
+		if (journal == null) {
+			return SyncOutcome.FAILED;
+		}
+		try {
+			RetryJournal.Entry entry = journal.failed(title, stage, page);
+			if (entry == null) {
+				log(String.format("Giving up on %s after %d failed attempts; it is synced again when it next changes.",
+						title, journal.getMaxAttempts()));
+				return SyncOutcome.ABANDONED;
+			}
+			log(String.format("Could not sync %s (attempt %d); retrying in %d minutes.", title, 
+					entry.getAttempts(), (entry.getNextAttempt() - System.currentTimeMillis() + 59999) / 60000));
+			return SyncOutcome.QUEUED;
+		} catch (IOException e) {
+			log("Could not update the retry journal: "+e.getMessage());
+			return SyncOutcome.FAILED;
+		}
+	}
+	
+	/**
+	 * Keeps pages that could not be synced in the specified journal, and retries them in later
+	 * cycles (with a growing backoff per page) from the stage they failed at. Journaled pages no
+	 * longer hold back the checkpoint. Without a journal, a failed page is only retried if the
+	 * checkpoint keeps its revision in the next cycle's changes.
+	 * @param journal retry journal
+	 */
+	public void setRetryJournal(RetryJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Moves the checkpoint's mark past the revisions synced this cycle. If any page failed,
+	 * the mark stops short of that page's oldest revision in this cycle, so the page is picked
+	 * up again next time. With a shard, each partition's checkpoint is moved on its own, so a
+	 * failed page only holds back its own partition.
+	 * @param live revisions handled this cycle
+	 * @param failed titles of the pages that could not be synced or journaled for a retry
+	 * @return true if a failed page held the mark back
+	 */
+	private boolean advanceCheckpoint(List<SourceChange> live, Set<String> failed) {
+		if (live.isEmpty()) {
+			return false;
+		}
+		if (shard == null) {
+			return checkpoint != null && advanceCheckpoint(checkpoint, live, live, failed);
+		}
+		boolean held = false;
+		for (Map.Entry<SyncCheckpoint, List<SourceChange>> partition : shard.group(live).entrySet()) {
+			held |= advanceCheckpoint(partition.getKey(), live, partition.getValue(), failed);
+		}
+		return held;
+	}
+	
+	/**
+	 * Moves a checkpoint's mark up to the newest of the revisions read this cycle, short of the
+	 * oldest revision of a failed page.
+	 * @param checkpoint checkpoint to move
+	 * @param live every revision read this cycle
+	 * @param own the revisions of the pages the checkpoint keeps track of
+	 * @param failed titles of the pages that could not be synced or journaled for a retry
+	 * @return true if a failed page held the mark back
+	 */
+	private boolean advanceCheckpoint(SyncCheckpoint checkpoint, List<SourceChange> live, 
+			List<SourceChange> own, Set<String> failed) {
+		long limit = Long.MAX_VALUE;	// in seconds; the mark must stay before this
+		for (SourceChange rev : own) {
+			if (failed.contains(rev.getTitle())) {
+				limit = Math.min(limit, rev.getTimestamp().getTimeInMillis() / 1000);
+			}
+		}
+		Calendar mark = null;
+		for (SourceChange rev : live) {
+			long seconds = rev.getTimestamp().getTimeInMillis() / 1000;
+			if (seconds < limit && (mark == null || seconds > mark.getTimeInMillis() / 1000)) {
+				mark = rev.getTimestamp();
+			}
+		}
+		if (mark == null) {
+			return true;
+		}
+		List<Long> synced = new ArrayList<Long>();
+		for (SourceChange rev : own) {
+			if (rev.getTimestamp().getTimeInMillis() / 1000 == mark.getTimeInMillis() / 1000) {
+				synced.add(rev.getRevid());
+			}
+		}
+		try {
+			checkpoint.advance(mark, synced);
+		} catch (IOException e) {
+			log("Could not save the sync checkpoint; these changes will be synced again next cycle.");
+		}
+		return limit != Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Keeps track of the newest synced revision in the specified checkpoint, so each
+	 * cycle picks up exactly where the last one stopped. Without a checkpoint, each cycle
+	 * syncs the changes made in the last sync period.
+	 * @param checkpoint checkpoint to read and advance
+	 */
+	public void setCheckpoint(SyncCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	
+	/**
+	 * Syncs only the pages in the partitions of the specified shard, one of several workers
+	 * splitting the watchlist, keeping a checkpoint per partition (in place of the Sync's own).
+	 * Partitions are rebalanced at the start of each watchlist poll. Pages that fail hold back
+	 * their partition's checkpoint, so whichever worker owns it next retries them; a retry
+	 * journal or write store, which are this worker's alone, should not be used with a shard.
+	 * @param shard this worker's shard
+	 */
+	public void setShard(Shard shard) {
+		if (shard != null) {
+			shard.setSync(this);
+		}
+		this.shard = shard;
+	}
+	
+	/**
+	 * Waits for a running cycle to end, then gives up this worker's partitions so the other
+	 * workers take them over. Does nothing without a shard.
+	 * @throws IOException if the coordinator can't be reached
+	 */
+	void leaveShard() throws IOException {
+		cycleLock.lock();
+		try {
+			if (shard != null) {
+				shard.leave();
+			}
+		} finally {
+			cycleLock.unlock();
+		}
+	}
+	
 	/**
 	 * Writes the supplied list of articles to the target MediaWiki, optionally
-	 * performing custom re-writes before uploading. 
-	 * @param changed
-	 * @return
+	 * performing custom re-writes before uploading. The pages are fetched, rewritten
+	 * and written concurrently by the Sync's SyncPipeline.
+	 * @param changed titles of the articles to fetch and write
+	 * @param retries journaled articles to retry without fetching them
+	 * @param stats statistics for the current cycle
+	 * @return what happened to each article
+	 */
+	private Map<String, SyncOutcome> writeChangedArticles(List<String> changed, List<RetryJournal.Entry> retries, 
+			CycleStats stats) {
+		long before = (source instanceof BatchWiki) ? ((BatchWiki) source).getRequestCount() : 0;
+		SyncPipeline pipeline = getPipeline();
+		long fetching = pipeline.getFetchStats().getBusyNanos();
+		long rewriting = pipeline.getRewriteStats().getBusyNanos();
+		long editing = pipeline.getEditStats().getBusyNanos();
+		Map<String, SyncOutcome> outcomes;
+		try {
+			outcomes = pipeline.run(this, changed, retries);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while writing changed articles.");
+		}
+		stats.addStageTimes(pipeline.getFetchStats().getBusyNanos() - fetching,
+				pipeline.getRewriteStats().getBusyNanos() - rewriting, 
+				pipeline.getEditStats().getBusyNanos() - editing);
+		if (source instanceof BatchWiki) {
+			stats.addFetchRequests(((BatchWiki) source).getRequestCount() - before);
+		} else {
+			stats.addFetchRequests(2L * changed.size());
+		}
+		log(pipeline.toString());
+		return outcomes;
+	}
+	
+	/**
+	 * Uses the specified pipeline to write changed articles, replacing the default
+	 * pipeline (one worker per stage).
+	 * @param pipeline pipeline to use
+	 */
+	public synchronized void setPipeline(SyncPipeline pipeline) {
+		if (this.pipeline != null) {
+			this.pipeline.shutdown();
+		}
+		this.pipeline = pipeline;
+	}
+	
+	/**
+	 * @return the pipeline that writes changed articles (the default one is created on the
+	 * first call, if none was set)
+	 */
+	public synchronized SyncPipeline getPipeline() {
+		if (pipeline == null) {
+			pipeline = new SyncPipeline(1, 1, 1, 50);
+		}
+		return pipeline;
+	}
+	
+	/**
+	 * Prints the stack traces of the errors that are logged, as well as their messages.
+	 * @param debug if stack traces should be printed
 	 */
-	private List<String> writeChangedArticles(List<String> changed) {
-		List<String> completed = new ArrayList<String>(changed.size());
-		for (String title : changed) {
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+	
+	/**
+	 * @return true if stack traces are printed
+	 */
+	public boolean isDebug() {
+		return debug;
+	}
+	
+	/**
+	 * Prefixes every message the Sync logs (and its supervisor, change stream, shard and
+	 * backfill log through it) with the label in brackets, so the messages of several jobs
+	 * in one process can be told apart.
+	 * @param label name of the job, or null for no prefix
+	 */
+	public void setLabel(String label) {
+		this.label = label;
+	}
+	
+	/**
+	 * @return the most titles fetchBatch() should be given at once
+	 */
+	int getFetchBatchSize() {
+		return (source instanceof BatchWiki) ? ((BatchWiki) source).getBatchLimit() : 1;
+	}
+	
+	/**
+	 * Fetches the current text and top revision of each title from the source. If the source
+	 * supports it (see BatchWiki), the titles are fetched in a single request, otherwise (or if
+	 * the batch fails) each page costs a getPageText and a getTopRevision request.
+	 * Pages that could not be fetched are left out of the returned list and added to failed;
+	 * pages that don't exist are just left out.
+	 * @param titles titles to fetch
+	 * @param failed collects the titles that could not be fetched
+	 * @return fetched pages
+	 */
+	List<SourcePage> fetchBatch(List<String> titles, Collection<String> failed) {
+		if (source instanceof BatchWiki) {
 			try {
-				String text = source.getPageText(title);
+				return ((BatchWiki) source).getLatestPages(titles);
+			} catch (IOException e) {
+				log(String.format("Batched fetch of %d pages failed, fetching individually...", titles.size()));
+			}
+		}
+		return fetchIndividually(titles, failed);
+	}
+	
+	/**
+	 * Gives the rewrite rules a chance to look up what they need for a batch of pages.
+	 * @param pages freshly fetched pages
+	 */
+	void prepareBatch(List<SourcePage> pages) {
+		if (rewrite) {
+			prepareRewrite(pages);
+		}
+	}
+	
+	/**
+	 * Returns the page as it should be written to the target, or null if the target already has
+	 * it: the write store says this source revision, or this exact text, was the last written.
+	 * @param page page as fetched from the source
+	 * @return page with rewritten text (the original text if rewriting is off), or null to skip it
+	 */
+	SourcePage rewritePage(SourcePage page) {
+		WriteStore store = writeStore;
+		if (store != null && store.isWritten(page.getTitle(), page.getRevid())) {
+			cycle.addSkippedEdit();
+			return null;
+		}
+		SourcePage rewritten = rewrite ? page.withText(rewriteArticleContent(page.getText())) : page;
+		if (store != null && store.isUnchanged(page.getTitle(), rewritten.getText())) {
+			cycle.addSkippedEdit();
+			recordWrite(store, rewritten);	// so the next revision check skips it before rewriting
+			return null;
+		}
+		return rewritten;
+	}
+	
+	/**
+	 * Writes the page to the target, with an edit summary crediting the source revision.
+	 * @param page page with the text to write
+	 * @throws IOException if a network error occurs
+	 * @throws LoginException if the target account may not edit the page
+	 */
+	void writePage(SourcePage page) throws IOException, LoginException {
+		String summary = String.format("{[SYNC | user = %s | revid = %s | summary = %s]}", 
+				page.getUser(), page.getRevid(), page.getSummary()); 
+		target.edit(page.getTitle(), page.getText(), summary, false);
+		if (page.getTimestamp() != null) {
+			long lag = System.currentTimeMillis() - page.getTimestamp().getTimeInMillis();
+			cycle.addPropagation(lag);
+			metrics.histogram("propagation.lag").record(lag * 1000);
+		}
+		if (writeStore != null) {
+			recordWrite(writeStore, page);
+		}
+	}
+	
+	private void recordWrite(WriteStore store, SourcePage page) {
+		try {
+			store.record(page.getTitle(), page.getRevid(), page.getText());
+		} catch (IOException e) {
+			log("Could not update the write store: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Tells the specified recorder when cycles start and end, so the requests the wikis send
+	 * during each cycle are recorded in a segment of their own. The wikis must be given the
+	 * recorder too (see BatchWiki.setRecorder()).
+	 * @param recorder recorder, or null to stop
+	 */
+	public void setRecorder(CycleRecorder recorder) {
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * Remembers what has been written to the target in the specified store, and skips
+	 * pages whose source revision or rewritten text the target already has.
+	 * @param store write store
+	 */
+	public void setWriteStore(WriteStore store) {
+		this.writeStore = store;
+	}
+	
+	private List<SourcePage> fetchIndividually(List<String> titles, Collection<String> failed) {
+		List<SourcePage> pages = new ArrayList<SourcePage>(titles.size());
+		for (String title : titles) {
+			try {
+				// the revision first: text newer than it is only synced again, never lost
 				Revision rev = source.getTopRevision(title);
-				if (rewrite) {
-					text = rewriteArticleContent(text);
+				if (rev == null) {
+					continue;	// deleted on the source, so left out (MISSING), as getLatestPages() does
 				}
-				String summary = rev.getSummary();
-				String author = rev.getUser();
-				String revid = rev.getRevid()+"";
-				summary = String.format("{[SYNC | user = %s | revid = %s | summary = %s]}", author, revid, summary); 
-				target.edit(title, text, summary, false);
+				String text = source.getPageText(title);
+				pages.add(new SourcePage(title, text, rev.getRevid(), rev.getUser(), rev.getSummary(), rev.getTimestamp()));
 			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (LoginException e) {
-				e.printStackTrace();
+				log("Could not fetch "+title+": "+e.getMessage());
+				failed.add(title);
+			}
+		}
+		return pages;
+	}
+	
+	/**
+	 * Returns the statistics of the most recently completed cycle.
+	 * @return cycle statistics
+	 */
+	public CycleStats getLastCycleStats() {
+		return lastCycle;
+	}
+	
+	/**
+	 * @return the metrics of this Sync
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Adds a finished cycle to the metrics.
+	 */
+	private void recordCycle(CycleStats stats) {
+		metrics.counter("cycles").incrementAndGet();
+		metrics.counter("changes").addAndGet(stats.getChanges());
+		metrics.counter("edits.skipped").addAndGet(stats.getSkippedEdits());
+		for (SyncOutcome outcome : SyncOutcome.values()) {
+			metrics.counter("pages." + outcome.name().toLowerCase(Locale.ENGLISH)).addAndGet(stats.getOutcomeCount(outcome));
+		}
+		metrics.histogram("cycle.duration").record(stats.getDuration() * 1000);
+	}
+	
+	/**
+	 * Adds gauges of the last cycle, the pipeline, the wikis and the shard to the metrics.
+	 */
+	private void registerGauges() {
+		metrics.gauge("last.changes", new Metrics.Gauge() {
+			public Number getValue() {
+				return lastCycle.getChanges();
+			}
+		});
+		metrics.gauge("last.duration", new Metrics.Gauge() {
+			public Number getValue() {
+				return lastCycle.getDuration();
+			}
+		});
+		metrics.gauge("last.propagation.max", new Metrics.Gauge() {
+			public Number getValue() {
+				return lastCycle.getMaxPropagation();
+			}
+		});
+		metrics.gauge("queue.rewrite", new Metrics.Gauge() {
+			public Number getValue() {
+				SyncPipeline pipeline = Sync.this.pipeline;
+				return (pipeline == null) ? null : pipeline.getRewriteQueueDepth();
+			}
+		});
+		metrics.gauge("queue.edit", new Metrics.Gauge() {
+			public Number getValue() {
+				SyncPipeline pipeline = Sync.this.pipeline;
+				return (pipeline == null) ? null : pipeline.getEditQueueDepth();
+			}
+		});
+		registerWikiGauges("source", source);
+		registerWikiGauges("target", target);
+		metrics.gauge("shard.partitions", new Metrics.Gauge() {
+			public Number getValue() {
+				Shard shard = Sync.this.shard;
+				return (shard == null) ? null : shard.getPartitions().size();
+			}
+		});
+	}
+	
+	private void registerWikiGauges(String name, Wiki wiki) {
+		if (!(wiki instanceof BatchWiki)) {
+			return;
+		}
+		final BatchWiki batchWiki = (BatchWiki) wiki;
+		metrics.gauge(name + ".requests", new Metrics.Gauge() {
+			public Number getValue() {
+				return batchWiki.getRequestCount();
+			}
+		});
+		metrics.gauge(name + ".chars.sent", new Metrics.Gauge() {
+			public Number getValue() {
+				return batchWiki.getCharsSent();
+			}
+		});
+		metrics.gauge(name + ".chars.received", new Metrics.Gauge() {
+			public Number getValue() {
+				return batchWiki.getCharsReceived();
+			}
+		});
+		metrics.gauge(name + ".latency.p50", new Metrics.Gauge() {
+			public Number getValue() {
+				return batchWiki.getRequestLatency().getPercentile(0.5);
+			}
+		});
+		metrics.gauge(name + ".latency.p99", new Metrics.Gauge() {
+			public Number getValue() {
+				return batchWiki.getRequestLatency().getPercentile(0.99);
+			}
+		});
+		metrics.gauge(name + ".rate", new Metrics.Gauge() {
+			public Number getValue() {
+				RateController rate = batchWiki.getRateController();
+				return (rate == null) ? null : rate.getRate();
+			}
+		});
+		metrics.gauge(name + ".throttled", new Metrics.Gauge() {
+			public Number getValue() {
+				RateController rate = batchWiki.getRateController();
+				return (rate == null) ? null : rate.getThrottledCount();
 			}
-			
+		});
+		metrics.gauge(name + ".bytes.sent", new Metrics.Gauge() {
+			public Number getValue() {
+				PooledTransport transport = pooledTransport(batchWiki);
+				return (transport == null) ? null : transport.getBytesSent();
+			}
+		});
+		metrics.gauge(name + ".bytes.received", new Metrics.Gauge() {
+			public Number getValue() {
+				PooledTransport transport = pooledTransport(batchWiki);
+				return (transport == null) ? null : transport.getBytesReceived();
+			}
+		});
+		metrics.gauge(name + ".connections.opened", new Metrics.Gauge() {
+			public Number getValue() {
+				PooledTransport transport = pooledTransport(batchWiki);
+				return (transport == null) ? null : transport.getConnectionsOpened();
+			}
+		});
+		metrics.gauge(name + ".connections.reused", new Metrics.Gauge() {
+			public Number getValue() {
+				PooledTransport transport = pooledTransport(batchWiki);
+				return (transport == null) ? null : transport.getReusedCount();
+			}
+		});
+		metrics.gauge(name + ".pipelined", new Metrics.Gauge() {
+			public Number getValue() {
+				PooledTransport transport = pooledTransport(batchWiki);
+				return (transport == null) ? null : transport.getPipelinedCount();
+			}
+		});
+		metrics.gauge(name + ".compressed", new Metrics.Gauge() {
+			public Number getValue() {
+				PooledTransport transport = pooledTransport(batchWiki);
+				return (transport == null) ? null : transport.getCompressedCount();
+			}
+		});
+	}
+
+	private static PooledTransport pooledTransport(BatchWiki wiki) {
+		WikiTransport transport = wiki.getTransport();
+		return (transport instanceof PooledTransport) ? (PooledTransport) transport : null;
+	}
+	
+	/**
+	 * Sets the rules that rewrite every article on its way to the target (when rewriting is
+	 * on), in the order they run. There are none by default. The rules log through this Sync.
+	 * @param rules rewrite rules
+	 */
+	public void setRewriteRules(List<? extends RewriteRule> rules) {
+		for (RewriteRule rule : rules) {
+			rule.setSync(this);
 		}
-		return completed;
+		this.rules = new RewriteEngine(rules);
 	}
 	
 	/**
-	 * Subclasses can override this method to provide custom rewriting text, such as link
-	 * modification, or addition of an attribution clause (necessary for Wikipedia mirrors).
+	 * @return the rewrite rules, in the order they run
+	 */
+	public List<RewriteRule> getRewriteRules() {
+		return rules.getRules();
+	}
+	
+	/**
+	 * Rewrites an article with the rewrite rules. Subclasses can override this method to 
+	 * provide custom rewriting text, such as link modification, or addition of an attribution
+	 * clause (necessary for Wikipedia mirrors), though a RewriteRule is usually simpler.
 	 * @param originalText original article text
 	 * @return article text modified
 	 */
-	abstract String rewriteArticleContent(String originalText);
+	String rewriteArticleContent(String originalText) {
+		return rules.rewrite(originalText);
+	}
+	
+	/**
+	 * Called with every batch of fetched pages before any of them is rewritten, so the rewrite
+	 * rules can look up whatever they need for the whole batch at once (i.e. which link targets
+	 * exist on the target MediaWiki). Subclasses overriding this should call the superclass
+	 * method.
+	 * @param pages pages about to be rewritten
+	 */
+	void prepareRewrite(List<SourcePage> pages) {
+		rules.prepare(pages);
+	}
+	
+	/**
+	 * Called at the start of every sync cycle. Subclasses can override this to reset
+	 * anything they cache for the duration of a cycle, and should call the superclass
+	 * method, which tells the rewrite rules (and the recorder, if there is one).
+	 */
+	void startCycle() {
+		CycleRecorder recorder = this.recorder;
+		if (recorder != null) {
+			recorder.startCycle();
+		}
+		rules.startCycle();
+	}
+	
+	/**
+	 * Called at the end of every successful sync cycle, with that cycle's statistics.
+	 * Subclasses can override this to report on their own work, and should call the 
+	 * superclass method, which tells the rewrite rules (and the recorder, if there is one).
+	 * @param stats statistics of the cycle
+	 */
+	void finishCycle(CycleStats stats) {
+		rules.finishCycle();
+		CycleRecorder recorder = this.recorder;
+		if (recorder != null) {
+			recorder.finishCycle();
+		}
+	}
 	
 
 	
-	private void log(String message) {
-		System.out.println(message);
+	void log(String message) {
+		String label = this.label;
+		System.out.println((label == null) ? message : "[" + label + "] " + message);
+	}
+	
+	/**
+	 * Logs a message along with the error, and the error's stack trace in debug mode.
+	 */
+	void log(String message, Exception e) {
+		log(message+": "+e);
+		if (debug)
+			e.printStackTrace();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,130 @@
+package edu.scripps.sync;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+
+/**
+ * SyncCheckpoint persists the high-water mark of a Sync: the timestamp of the newest source
+ * revision that has been fully synced, plus the ids of the revisions synced at exactly that
+ * second (timestamps only have one-second resolution, and more revisions may still arrive
+ * in the same second). Each cycle asks the watchlist for changes from the mark onwards and
+ * drops the revisions it already synced, so no change is missed or processed twice, even
+ * across restarts or after a slow cycle.
+ * <p>
+ * The checkpoint is a small properties file, replaced atomically on every update.
+ * @author eclarke
+ *
+ */
+public class SyncCheckpoint {
+
+	private final File file;
+
+	private Calendar 	timestamp;
+	private Set<Long> 	revids = Collections.emptySet();
+
+	/**
+	 * Opens the checkpoint stored in the specified file. If the file doesn't exist yet,
+	 * the checkpoint starts out empty.
+	 * @param file checkpoint file
+	 * @throws IOException if the file exists but can't be read
+	 */
+	public SyncCheckpoint(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			Properties props = new Properties();
+			Reader in = new FileReader(file);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			String ts = props.getProperty("timestamp");
+			if (ts != null) {
+				timestamp = BatchWiki.parseTimestamp(ts);
+				Set<Long> ids = new HashSet<Long>();
+				for (String id : Splitter.on(',').omitEmptyStrings().trimResults().split(props.getProperty("revids", ""))) {
+					ids.add(Long.parseLong(id));
+				}
+				revids = ids;
+			}
+		}
+	}
+
+	/**
+	 * @return time of the newest synced revision, or null if nothing has been synced yet
+	 */
+	public synchronized Calendar getTimestamp() {
+		return (timestamp == null) ? null : (Calendar) timestamp.clone();
+	}
+
+	/**
+	 * Returns true if the revision is at or before the mark, and so has already been synced.
+	 * @param timestamp revision timestamp
+	 * @param revid revision id
+	 * @return true if the revision can be skipped
+	 */
+	public synchronized boolean covers(Calendar timestamp, long revid) {
+		if (this.timestamp == null) {
+			return false;
+		}
+		long at = seconds(timestamp);
+		long mark = seconds(this.timestamp);
+		return at < mark || (at == mark && revids.contains(revid));
+	}
+
+	/**
+	 * Moves the mark to the specified time and saves it. Revision ids are remembered only for
+	 * the mark's own second; if the mark stays in the same second, the ids are added to the ones
+	 * already remembered.
+	 * @param timestamp time of the newest synced revision
+	 * @param synced ids of the revisions synced at exactly that time
+	 * @throws IOException if the checkpoint can't be written
+	 */
+	public synchronized void advance(Calendar timestamp, Collection<Long> synced) throws IOException {
+		Set<Long> ids = new HashSet<Long>(synced);
+		if (this.timestamp != null) {
+			if (seconds(timestamp) < seconds(this.timestamp)) {
+				return;		// never move backwards
+			}
+			if (seconds(timestamp) == seconds(this.timestamp)) {
+				ids.addAll(revids);
+			}
+		}
+		Properties props = new Properties();
+		props.setProperty("timestamp", BatchWiki.formatTimestamp(timestamp));
+		props.setProperty("revids", Joiner.on(',').join(ids));
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = new FileWriter(tmp);
+		try {
+			props.store(out, "Sync checkpoint: newest synced source revision");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace checkpoint "+file);
+			}
+		}
+		this.timestamp = (Calendar) timestamp.clone();
+		this.revids = ids;
+	}
+
+	private static long seconds(Calendar c) {
+		return c.getTimeInMillis() / 1000;
+	}
+
+}
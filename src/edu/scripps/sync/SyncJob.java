@@ -0,0 +1,609 @@
+package edu.scripps.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import static java.lang.String.format;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.genewiki.api.Wiki;
+import org.genewiki.api.Wiki.User;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+
+/**
+ * SyncJob is one source/target pair of a SyncScheduler: its wikis, its Sync (of the class
+ * named by sync.class, DefaultSync if none), and the supervisor and change stream that run it.
+ * <p>
+ * A job reads its settings from its own view of the configuration, in which
+ * job.&lt;name&gt;.&lt;key&gt; overrides &lt;key&gt;. Settings shared by all jobs (i.e. the alert
+ * email) can so be given once, and the rest per job. A configuration without sync.jobs is
+ * a single job with no name, which reads the keys as they are.
+ * <p>
+ * Each job has its own pipeline and rate controllers, so a slow or throttled wiki only slows
+ * the jobs that use it, and runs one cycle at a time on the executor it is started on.
+ * @author eclarke
+ *
+ */
+public class SyncJob {
+
+	private static final String DEFAULT_SYNC = "edu.scripps.sync.DefaultSync";
+
+	private final String 		name;
+	private final Properties 	properties;
+	private final Wiki 			source;
+	private final Wiki 			target;
+	private final boolean 		debug;
+
+	private Sync 			sync;
+	private SyncSupervisor 	supervisor;
+	private ChangeStream 	stream;
+	private ObjectName 		mbean;
+	private CycleRecorder 	recorder;
+
+	/**
+	 * Creates a new job with the specified wikis. Nothing runs until start() is called.
+	 * @param name name of the job, or null for the single job of a configuration without sync.jobs
+	 * @param properties the job's view of the configuration (see configure())
+	 * @param source source MediaWiki
+	 * @param target target MediaWiki
+	 * @param debug if stack traces should be printed
+	 */
+	public SyncJob(String name, Properties properties, Wiki source, Wiki target, boolean debug) {
+		this.name = name;
+		this.properties = properties;
+		this.source = source;
+		this.target = target;
+		this.debug = debug;
+	}
+
+	/**
+	 * Creates a new job, logging in to its wikis as the configured users. Passwords are read
+	 * from source.password and target.password, if the job's configuration has them. If
+	 * sync.record names a file, every request to the wikis is recorded in it from the start.
+	 * @param name name of the job, or null for the single job of a configuration without sync.jobs
+	 * @param properties the job's view of the configuration (see configure())
+	 * @param sourcePassword password on the source, if the configuration has none
+	 * @param targetPassword password on the target, if the configuration has none
+	 * @param debug if stack traces should be printed
+	 * @throws IOException if a wiki can't be reached
+	 * @throws FailedLoginException if the credentials are invalid
+	 */
+	public static SyncJob connect(String name, Properties properties, String sourcePassword,
+			String targetPassword, boolean debug) throws IOException, FailedLoginException {
+		CycleRecorder recorder = null;
+		String recording = properties.getProperty("sync.record");
+		if (recording != null) {
+			recorder = new CycleRecorder(new File(recording));
+		}
+
+		BatchWiki source = new BatchWiki(
+				properties.getProperty("source.location", "en.wikipedia.org"),
+				properties.getProperty("source.scripts", "/w"));
+		source.setRecorder(recorder, CycleRecording.SOURCE);
+		source.setMaxLag(Integer.parseInt(properties.getProperty("source.maxlag", "5")));
+		source.setRateController(rateController(properties, "source", 5, 20));
+		source.setTransport(transport(properties, "source", name));
+		source.login(
+				checkNotNull(properties.getProperty("source.username")),
+				properties.getProperty("source.password", sourcePassword).toCharArray());
+
+		BatchWiki target = new BatchWiki(
+				checkNotNull(properties.getProperty("target.location")),
+				properties.getProperty("target.scripts", ""));
+		target.setRecorder(recorder, CycleRecording.TARGET);
+		target.setMaxLag(Integer.parseInt(properties.getProperty("target.maxlag", "5")));
+		// pacing is left to the rate controller rather than the client's fixed edit throttle
+		target.setThrottle(0);
+		target.setRateController(rateController(properties, "target", 2, 10));
+		target.setTransport(transport(properties, "target", name));
+		if (target.getTransport() == null) {
+			// the client would send compressed edits to a target that may not read them
+			target.setUsingCompressedRequests(false);
+		}
+		target.login(
+				checkNotNull(properties.getProperty("target.username")),
+				properties.getProperty("target.password", targetPassword).toCharArray());
+
+		SyncJob job = new SyncJob(name, properties, source, target, debug);
+		job.recorder = recorder;
+		return job;
+	}
+
+	/**
+	 * Returns a job's view of the configuration: its job.&lt;name&gt;.* keys, without the prefix,
+	 * backed by the rest of the configuration.
+	 * @param config whole configuration
+	 * @param name name of the job
+	 * @return the job's configuration
+	 */
+	public static Properties configure(Properties config, String name) {
+		Properties view = new Properties(config);
+		String prefix = "job." + name + ".";
+		for (String key : config.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				view.setProperty(key.substring(prefix.length()), config.getProperty(key));
+			}
+		}
+		return view;
+	}
+
+	/**
+	 * @return name of the job, or null if it's the only one
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the job's view of the configuration
+	 */
+	public Properties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return the Sync, once the job has been started (or backfilled)
+	 */
+	public Sync getSync() {
+		return sync;
+	}
+
+	/**
+	 * Starts syncing, with cycles (and the change stream's syncs) on the specified executor.
+	 * @param executor executor shared by the jobs
+	 * @param onStop task to run when the job's supervisor stops or gives up, or null
+	 */
+	public void start(ScheduledExecutorService executor, Runnable onStop) {
+		Integer period = Integer.parseInt(properties.getProperty("sync.period", "5"));
+		String feed = properties.getProperty("sync.push.url");
+		int fallback = Integer.parseInt(properties.getProperty("sync.push.fallback", "30"));
+
+		if (feed != null && properties.getProperty("sync.shard.dir") != null) {
+			// pushed pages don't move a partition's checkpoint, so its next owner would write them again
+			log("The change stream is not used in sharded mode; polling the watchlist only.");
+			feed = null;
+		}
+
+		// (with a change stream, polls only come every fallback minutes, so they look back that far)
+		sync = createSync((feed != null) ? Math.max(period, fallback) : period, true);
+		if (Boolean.parseBoolean(properties.getProperty("metrics.jmx", "true"))) {
+			registerMetrics();
+		}
+
+		if (feed != null && source instanceof BatchWiki) {
+			try {
+				stream = new ChangeStream(sync, (BatchWiki) source, new URL(feed), executor,
+						TimeUnit.SECONDS.toMillis(Integer.parseInt(properties.getProperty("sync.push.debounce", "5"))));
+				stream.start();
+				// the watchlist poll is only the fallback now
+				period = fallback;
+				log(format("Syncing changes from %s as they happen.", feed));
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				log(format("Could not start the change stream from %s; polling the watchlist only.", feed));
+				stream = null;
+			}
+		}
+		supervisor = new SyncSupervisor(sync, TimeUnit.MINUTES.toMillis(period), executor, debug);
+		supervisor.setTerminationListener(onStop);
+		if (Boolean.parseBoolean(properties.getProperty("sync.period.adaptive", "false"))) {
+			int min = Integer.parseInt(properties.getProperty("sync.period.min", "1"));
+			int max = Integer.parseInt(properties.getProperty("sync.period.max", String.valueOf(Math.max(period, 60))));
+			supervisor.setAdaptivePeriod(new AdaptivePeriod(TimeUnit.MINUTES.toMillis(min),
+					TimeUnit.MINUTES.toMillis(max), TimeUnit.MINUTES.toMillis(period)));
+			log(format("Starting adaptive sync with a period of %d to %d minutes...", min, max));
+		} else {
+			log(format("Starting repeating sync with a period of %d minutes...", period));
+		}
+		supervisor.start();
+	}
+
+	/**
+	 * Blocks until the job's supervisor stops or gives up, or the timeout passes.
+	 * @param timeout longest time to wait
+	 * @param unit unit of the timeout
+	 * @return true if the job has stopped
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return supervisor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Stops scheduling cycles. A cycle already running is allowed to finish.
+	 */
+	public void stop() {
+		if (supervisor != null) {
+			supervisor.stop();
+		}
+	}
+
+	/**
+	 * Registers the Sync's metrics as an MBean named edu.scripps.sync:type=Sync,name=&lt;job&gt;
+	 * ("sync" for an unnamed job), for JMX clients such as jconsole.
+	 */
+	private void registerMetrics() {
+		try {
+			ObjectName objectName = new ObjectName("edu.scripps.sync:type=Sync,name="
+					+ ObjectName.quote((name == null) ? "sync" : name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(sync.getMetrics(), objectName);
+			mbean = objectName;
+		} catch (JMException e) {
+			if (debug)
+				e.printStackTrace();
+			log("Could not register the metrics with JMX: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Cleans up after the job has stopped: disconnects the change stream, unregisters the
+	 * metrics and, if the supervisor gave up, sends the alert email.
+	 */
+	public void finish() {
+		if (stream != null) {
+			stream.stop();
+		}
+		try {
+			sync.leaveShard();
+		} catch (IOException e) {
+			if (debug)
+				e.printStackTrace();
+			log("Could not leave the shard; its partitions are freed when this process ends.");
+		}
+		if (mbean != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+			} catch (JMException e) {
+				// already gone
+			}
+			mbean = null;
+		}
+		if (recorder != null) {
+			recorder.close();
+		}
+		if (supervisor.hasGivenUp()) {
+			log("Sync gave up.");
+			if (properties.getProperty("send.alert.email") != null) {
+				sendAlertEmail();
+			}
+		}
+		for (Wiki wiki : new Wiki[] { source, target }) {
+			if (wiki instanceof BatchWiki && ((BatchWiki) wiki).getTransport() != null) {
+				((BatchWiki) wiki).getTransport().close();
+			}
+		}
+	}
+
+	/**
+	 * Copies every page on the watchlist (or in the specified title list) to the target,
+	 * regardless of when it last changed, and returns when done. Progress is saved in the file
+	 * named by sync.backfill.progress, so an interrupted backfill resumes where it stopped.
+	 * @param titleList file with one title per line, or null for the whole watchlist
+	 * @throws IOException if the titles can't be read or the progress can't be saved
+	 */
+	public void backfill(File titleList) throws IOException {
+		Integer period = Integer.parseInt(properties.getProperty("sync.period", "5"));
+		sync = createSync(period, false);
+		List<String> titles;
+		if (titleList != null) {
+			titles = Backfill.readTitles(titleList);
+		} else if (source instanceof BatchWiki) {
+			log("Reading the watchlist...");
+			titles = ((BatchWiki) source).getWatchlistTitles();
+		} else {
+			throw new IOException("The source can't list its watchlist; give a title list instead.");
+		}
+		String progress = (name == null) ? "backfill.progress" : name + ".backfill.progress";
+		Backfill backfill = new Backfill(sync,
+				new File(properties.getProperty("sync.backfill.progress", progress)),
+				Integer.parseInt(properties.getProperty("sync.backfill.chunk", "500")));
+		try {
+			backfill.run(titles);
+		} finally {
+			sync.getPipeline().shutdown();
+		}
+	}
+
+	/**
+	 * Creates the rate controller for the source or target wiki from the configuration.
+	 * @param wiki "source" or "target"
+	 * @param initial default starting rate (in requests per second)
+	 * @param max default maximum rate (in requests per second)
+	 */
+	private static RateController rateController(Properties properties, String wiki, double initial, double max) {
+		return new RateController(
+				Double.parseDouble(properties.getProperty(wiki+".rate", String.valueOf(initial))),
+				Double.parseDouble(properties.getProperty(wiki+".rate.min", "0.1")),
+				Double.parseDouble(properties.getProperty(wiki+".rate.max", String.valueOf(max))));
+	}
+
+	/**
+	 * Creates the transport for the source or target wiki from the configuration, or returns
+	 * null if &lt;wiki&gt;.transport is "client" (the Wiki client's own connections).
+	 * @param wiki "source" or "target"
+	 * @param name name of the job, which prefixes the transport's log messages, or null
+	 * @throws IllegalArgumentException if &lt;wiki&gt;.transport names no transport
+	 */
+	private static WikiTransport transport(Properties properties, String wiki, String name) {
+		String transport = properties.getProperty(wiki+".transport", "pooled").trim();
+		if (transport.equals("client")) {
+			return null;
+		}
+		if (!transport.equals("pooled")) {
+			throw new IllegalArgumentException("Unknown "+wiki+".transport: "+transport);
+		}
+		PooledTransport pooled = new PooledTransport(
+				Integer.parseInt(properties.getProperty(wiki+".connections", String.valueOf(PooledTransport.DEFAULT_CONNECTIONS))),
+				Boolean.parseBoolean(properties.getProperty(wiki+".compress", "true")),
+				Boolean.parseBoolean(properties.getProperty(wiki+".pipelining", "false")));
+		pooled.setLabel(name);
+		return pooled;
+	}
+
+	/**
+	 * Creates an instance of the Sync class named by sync.class, which must have a public
+	 * (Wiki source, Wiki target, int period, boolean rewrite) constructor.
+	 * @param period minutes each poll looks back, without a checkpoint
+	 * @param rewrite if the Sync should change any content before writing
+	 * @throws IllegalArgumentException if the class can't be instantiated
+	 */
+	private Sync instantiateSync(int period, boolean rewrite) {
+		String className = properties.getProperty("sync.class", DEFAULT_SYNC).trim();
+		if (className.indexOf('.') == -1) {
+			className = "edu.scripps.sync." + className;
+		}
+		try {
+			Class<? extends Sync> type = Class.forName(className).asSubclass(Sync.class);
+			Constructor<? extends Sync> constructor =
+					type.getConstructor(Wiki.class, Wiki.class, int.class, boolean.class);
+			return constructor.newInstance(source, target, period, rewrite);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Unknown sync.class "+className, e);
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("sync.class "+className+" is not a Sync", e);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("sync.class "+className+" has no (Wiki, Wiki, int, boolean) constructor", e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalArgumentException("Could not create "+className+": "+e.getCause(), e.getCause());
+		} catch (InstantiationException e) {
+			throw new IllegalArgumentException("Could not create "+className, e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Could not create "+className, e);
+		}
+	}
+
+	/**
+	 * Creates the rewrite rules named in a comma-separated list, in that order. Each must have a
+	 * public (Wiki source, Wiki target) or no-argument constructor.
+	 * @param names class names of the rules (in edu.scripps.sync if no package is given)
+	 * @throws IllegalArgumentException if a rule can't be instantiated
+	 */
+	private List<RewriteRule> instantiateRules(String names) {
+		List<RewriteRule> rules = new ArrayList<RewriteRule>();
+		for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(names)) {
+			String className = (name.indexOf('.') == -1) ? "edu.scripps.sync." + name : name;
+			try {
+				Class<? extends RewriteRule> type = Class.forName(className).asSubclass(RewriteRule.class);
+				try {
+					rules.add(type.getConstructor(Wiki.class, Wiki.class).newInstance(source, target));
+				} catch (NoSuchMethodException e) {
+					rules.add(type.getConstructor().newInstance());
+				}
+			} catch (ClassNotFoundException e) {
+				throw new IllegalArgumentException("Unknown rewrite rule "+className, e);
+			} catch (ClassCastException e) {
+				throw new IllegalArgumentException("Rewrite rule "+className+" is not a RewriteRule", e);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException("Rewrite rule "+className+" has no (Wiki, Wiki) or no-argument constructor", e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalArgumentException("Could not create "+className+": "+e.getCause(), e.getCause());
+			} catch (InstantiationException e) {
+				throw new IllegalArgumentException("Could not create "+className, e);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Could not create "+className, e);
+			}
+		}
+		log(format("Rewrite rules: %s", rules));
+		return rules;
+	}
+
+	/**
+	 * Creates the Sync for replaying recorded cycles (see SyncReplay), set up as the
+	 * configuration says but without the checkpoint, write store, retry journal, shard and
+	 * recording, whose files belong to the running service. A title index is used from a copy
+	 * of its file as it is now, which the recording doesn't hold, so links it answers for may
+	 * be rewritten differently than in the recorded cycle (a warning says so).
+	 * @return the Sync
+	 */
+	Sync replaySync() {
+		sync = newSync(Integer.parseInt(properties.getProperty("sync.period", "5")));
+		return setUpTitleIndex(sync, true);
+	}
+
+	/**
+	 * Creates the Sync, with the rewrite rules, pipeline and watchlist window the configuration
+	 * says, but nothing that keeps state in files.
+	 * @param period minutes each poll looks back, without a checkpoint
+	 */
+	private Sync newSync(int period) {
+		boolean rewrite = Boolean.parseBoolean(properties.getProperty("rewrite.article.content", "false"));
+
+		Sync sync = instantiateSync(period, rewrite);
+		sync.setDebug(debug);
+		sync.setLabel(name);
+		String ruleNames = properties.getProperty("rewrite.rules");
+		if (ruleNames != null) {
+			sync.setRewriteRules(instantiateRules(ruleNames));
+		}
+		sync.setPipeline(new SyncPipeline(
+				Integer.parseInt(properties.getProperty("source.concurrency", "1")),
+				Integer.parseInt(properties.getProperty("rewrite.threads",
+						String.valueOf(Runtime.getRuntime().availableProcessors()))),
+				Integer.parseInt(properties.getProperty("target.concurrency", "1")),
+				Integer.parseInt(properties.getProperty("sync.queue.capacity", "50"))));
+		sync.setStreamWindow(Integer.parseInt(properties.getProperty("sync.stream.window", "0")));
+		return sync;
+	}
+
+	/**
+	 * Creates the Sync and sets it up as the configuration says.
+	 * @param period minutes each poll looks back, without a checkpoint
+	 * @param sharded if the Sync should join the shard, if one is configured
+	 */
+	private Sync createSync(int period, boolean sharded) {
+		Sync sync = newSync(period);
+		if (recorder != null) {
+			sync.setRecorder(recorder);
+		}
+
+		String shardDir = properties.getProperty("sync.shard.dir");
+		if (sharded && shardDir != null) {
+			int partitions = Integer.parseInt(properties.getProperty("sync.shard.partitions", "64"));
+			FileShardCoordinator coordinator = new FileShardCoordinator(
+					new File(shardDir), properties.getProperty("sync.shard.worker"));
+			try {
+				sync.setShard(new Shard(coordinator, partitions));
+			} catch (IOException e) {
+				// running unsharded next to the other workers would write their pages too
+				throw new IllegalStateException(format("Could not join the shard in %s: %s", shardDir, e.getMessage()), e);
+			}
+			log(format("Joined the shard in %s as worker %s.", shardDir, coordinator.getWorkerId()));
+			for (String key : new String[] { "sync.checkpoint", "sync.write.store", "sync.retry.journal" }) {
+				if (properties.getProperty(key) != null) {
+					log(format("%s is not used in sharded mode; each partition keeps its own checkpoint.", key));
+				}
+			}
+			return setUpTitleIndex(sync, false);
+		}
+
+		String checkpointFile = properties.getProperty("sync.checkpoint");
+		if (checkpointFile != null) {
+			try {
+				sync.setCheckpoint(new SyncCheckpoint(new File(checkpointFile)));
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				log(format("Could not read checkpoint %s; syncing the last %d minutes instead.", checkpointFile, period));
+			}
+		}
+
+		String storeFile = properties.getProperty("sync.write.store");
+		if (storeFile != null) {
+			try {
+				sync.setWriteStore(new WriteStore(new File(storeFile)));
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				log(format("Could not open write store %s; every changed page will be written.", storeFile));
+			}
+		}
+
+		String journalFile = properties.getProperty("sync.retry.journal");
+		if (journalFile != null) {
+			try {
+				RetryJournal journal = new RetryJournal(new File(journalFile), Integer.parseInt(
+						properties.getProperty("sync.retry.attempts", String.valueOf(RetryJournal.DEFAULT_MAX_ATTEMPTS))));
+				sync.setRetryJournal(journal);
+				if (journal.size() > 0) {
+					log(format("%d pages are waiting to be retried.", journal.size()));
+				}
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				log(format("Could not open retry journal %s; failed pages will not be retried.", journalFile));
+			}
+		}
+
+		return setUpTitleIndex(sync, false);
+	}
+
+	/**
+	 * Gives the Sync's OutboundLinkRules the title index named by target.title.index, if there 
+	 * is one.
+	 * @param copy if a temporary copy of the index should be used, leaving the file as it is
+	 */
+	private Sync setUpTitleIndex(Sync sync, boolean copy) {
+		String indexFile = properties.getProperty("target.title.index");
+		List<OutboundLinkRule> linkRules = new ArrayList<OutboundLinkRule>();
+		for (RewriteRule rule : sync.getRewriteRules()) {
+			if (rule instanceof OutboundLinkRule) {
+				linkRules.add((OutboundLinkRule) rule);
+			}
+		}
+		if (indexFile != null && !linkRules.isEmpty() && target instanceof BatchWiki) {
+			try {
+				File file = new File(indexFile);
+				if (copy) {
+					log(format("Links are checked against the present title index %s, not the one the recorded cycles used; "
+							+ "edits with links may differ from the recorded ones for that reason alone.", indexFile));
+					File temp = File.createTempFile("titles", ".idx");
+					temp.deleteOnExit();
+					if (file.exists()) {
+						Files.copy(file, temp);
+					} else {
+						temp.delete();
+					}
+					file = temp;
+				}
+				TargetTitleIndex index = new TargetTitleIndex((BatchWiki) target, file);
+				log("Loading target title index...");
+				index.load();
+				log(format("Indexed %d target titles.", index.size()));
+				for (OutboundLinkRule rule : linkRules) {
+					rule.setTitleIndex(index);
+				}
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				log("Could not load the target title index; links will be checked against the target.");
+			}
+		}
+
+		return sync;
+	}
+
+	/**
+	 * Uses MediaWiki's ability to email users to send an alert notifying a user on the source
+	 * mediawiki. The details of the message are specified in the configuration file for the SyncService.
+	 */
+	private void sendAlertEmail() {
+
+		String subject 	= properties.getProperty("alert.email.subject");
+		String body		= properties.getProperty("alert.email.body");
+		User recipient 	= source.new User(properties.getProperty("alert.email.target"));
+
+		try {
+			source.emailUser(recipient, body, subject, true);
+		} catch (IOException e) {
+			if (debug)
+				e.printStackTrace();
+			log(e.getLocalizedMessage());
+		} catch (LoginException e) {
+			if (debug)
+				e.printStackTrace();
+			log(e.getLocalizedMessage());
+		}
+	}
+
+	private void log(String message) {
+		System.out.println((name == null) ? message : "[" + name + "] " + message);
+	}
+
+}
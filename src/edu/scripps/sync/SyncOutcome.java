@@ -0,0 +1,23 @@
+package edu.scripps.sync;
+
+/**
+ * What happened to a page in a sync cycle.
+ * @author eclarke
+ *
+ */
+public enum SyncOutcome {
+
+	/** the page was written to the target */
+	WRITTEN,
+	/** the target already had the page's revision or text, so nothing was written */
+	SKIPPED,
+	/** the page doesn't exist on the source */
+	MISSING,
+	/** the page could not be synced and was added to the retry journal */
+	QUEUED,
+	/** the page could not be synced and there was nowhere to keep it for a retry */
+	FAILED,
+	/** the page could not be synced, and had failed too often to stay in the retry journal */
+	ABANDONED
+
+}
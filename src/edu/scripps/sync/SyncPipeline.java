@@ -0,0 +1,418 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.login.LoginException;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * SyncPipeline writes a cycle's changed pages to the target in three concurrent stages:
+ * <ol>
+ * <li><b>fetch</b>: batches of titles are fetched from the source (and anything the rewrite
+ * rules need for the batch is looked up on the target),
+ * <li><b>rewrite</b>: the page text is rewritten (pages the target already has stop here),
+ * <li><b>edit</b>: the result is written to the target.
+ * </ol>
+ * Each stage has its own worker pool, and the stages are joined by bounded queues, so a slow
+ * stage holds back the stages before it instead of letting pages pile up in memory. The number
+ * of fetch workers caps concurrent requests to the source; a separate limit caps concurrent
+ * requests to the target (edits and lookups alike), so neither wiki is sent more parallel
+ * requests than it allows.
+ * <p>
+ * Pages that fail at any stage are handed back to the Sync with whatever was fetched or rewritten
+ * so far, so they can be retried from there. Per-stage counts, busy time and queue depths are
+ * kept and can be read at any time, and the latency of every batch fetched and page rewritten or
+ * written goes into the Sync's metrics.
+ * @author eclarke
+ *
+ */
+public class SyncPipeline {
+
+	/** Marks the end of a queue's input */
+	private static final SourcePage END = new SourcePage(null, null, 0, null, null, null);
+
+	private final int sourceConcurrency;
+	private final int rewriteThreads;
+	private final int targetConcurrency;
+	private final int queueCapacity;
+
+	private final ExecutorService 	fetchers;
+	private final ExecutorService 	rewriters;
+	private final ExecutorService 	editors;
+	private final Semaphore 		targetPermits;
+
+	private final StageStats fetchStats 	= new StageStats("fetch");
+	private final StageStats rewriteStats 	= new StageStats("rewrite");
+	private final StageStats editStats 		= new StageStats("edit");
+
+	private volatile BlockingQueue<SourcePage> toRewrite 	= new ArrayBlockingQueue<SourcePage>(1);
+	private volatile BlockingQueue<SourcePage> toEdit 		= new ArrayBlockingQueue<SourcePage>(1);
+
+	/**
+	 * Creates a new pipeline and its worker pools.
+	 * @param sourceConcurrency maximum concurrent requests to the source (fetch workers)
+	 * @param rewriteThreads number of rewrite workers
+	 * @param targetConcurrency maximum concurrent requests to the target (edit workers)
+	 * @param queueCapacity number of pages each queue between stages can hold
+	 */
+	public SyncPipeline(int sourceConcurrency, int rewriteThreads, int targetConcurrency, int queueCapacity) {
+		this.sourceConcurrency = sourceConcurrency;
+		this.rewriteThreads = rewriteThreads;
+		this.targetConcurrency = targetConcurrency;
+		this.queueCapacity = queueCapacity;
+		this.fetchers = Executors.newFixedThreadPool(sourceConcurrency,
+				new ThreadFactoryBuilder().setNameFormat("sync-fetch-%d").setDaemon(true).build());
+		this.rewriters = Executors.newFixedThreadPool(rewriteThreads,
+				new ThreadFactoryBuilder().setNameFormat("sync-rewrite-%d").setDaemon(true).build());
+		this.editors = Executors.newFixedThreadPool(targetConcurrency,
+				new ThreadFactoryBuilder().setNameFormat("sync-edit-%d").setDaemon(true).build());
+		this.targetPermits = new Semaphore(targetConcurrency, true);
+	}
+
+	/**
+	 * Runs the specified titles through the pipeline and waits until every page has been written
+	 * (or has failed). Pages that fail at any stage are reported, handed to Sync.pageFailed() and
+	 * skipped. Retries from the journal enter the pipeline at the stage they failed at, so pages
+	 * that were already fetched aren't fetched again.
+	 * @param sync the Sync whose source, rewrite rules and target are used
+	 * @param titles titles of the pages to fetch and sync
+	 * @param retries journaled pages to retry from where they failed (none at the FETCH stage)
+	 * @return what happened to each page
+	 * @throws InterruptedException if interrupted while waiting; the workers are stopped
+	 */
+	Map<String, SyncOutcome> run(final Sync sync, List<String> titles, List<RetryJournal.Entry> retries) 
+			throws InterruptedException {
+		final BlockingQueue<List<String>> batches =
+				new LinkedBlockingQueue<List<String>>(Lists.partition(titles, sync.getFetchBatchSize()));
+		final BlockingQueue<SourcePage> toRewrite = new ArrayBlockingQueue<SourcePage>(queueCapacity);
+		final BlockingQueue<SourcePage> toEdit = new ArrayBlockingQueue<SourcePage>(queueCapacity);
+		final Map<String, SyncOutcome> outcomes = new ConcurrentHashMap<String, SyncOutcome>();
+		final AtomicReference<List<RetryJournal.Entry>> pendingRetries = 
+				new AtomicReference<List<RetryJournal.Entry>>(retries);
+		this.toRewrite = toRewrite;
+		this.toEdit = toEdit;
+
+		Runnable fetch = new Runnable() {
+			public void run() {
+				try {
+					// one worker feeds the journaled pages in before fetching
+					List<RetryJournal.Entry> retrying = pendingRetries.getAndSet(null);
+					if (retrying != null) {
+						feed(sync, retrying, outcomes, toRewrite, toEdit);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				List<String> batch;
+				while ((batch = batches.poll()) != null && !Thread.currentThread().isInterrupted()) {
+					long start = System.nanoTime();
+					List<SourcePage> pages;
+					List<String> failed = new ArrayList<String>();
+					try {
+						pages = sync.fetchBatch(batch, failed);
+					} catch (RuntimeException e) {
+						sync.log("Could not fetch "+batch.size()+" pages", e);
+						pages = Collections.emptyList();
+						failed = batch;
+					}
+					for (String title : failed) {
+						outcomes.put(title, sync.pageFailed(title, RetryJournal.Stage.FETCH, null));
+					}
+					try {
+						List<SourcePage> prepared = prepare(sync, pages, outcomes);
+						long elapsed = System.nanoTime() - start;
+						fetchStats.record(pages.size(), elapsed);
+						sync.getMetrics().time("fetch.latency", elapsed);
+						sync.getMetrics().counter("fetch.pages").addAndGet(pages.size());
+						for (SourcePage page : prepared) {
+							put(toRewrite, page, rewriteStats);
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		Runnable rewrite = new Runnable() {
+			public void run() {
+				try {
+					SourcePage page;
+					while ((page = toRewrite.take()) != END) {
+						long start = System.nanoTime();
+						try {
+							SourcePage rewritten = sync.rewritePage(page);
+							long elapsed = System.nanoTime() - start;
+							rewriteStats.record(1, elapsed);
+							sync.getMetrics().time("rewrite.latency", elapsed);
+							if (rewritten != null) {
+								put(toEdit, rewritten, editStats);
+							} else {
+								outcomes.put(page.getTitle(), SyncOutcome.SKIPPED);
+							}
+						} catch (RuntimeException e) {
+							// a broken rewrite rule shouldn't stop the other pages
+							sync.log("Could not rewrite "+page.getTitle(), e);
+							outcomes.put(page.getTitle(), sync.pageFailed(page.getTitle(), RetryJournal.Stage.REWRITE, page));
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		Runnable edit = new Runnable() {
+			public void run() {
+				try {
+					SourcePage page;
+					while ((page = toEdit.take()) != END) {
+						long start = System.nanoTime();
+						Exception failure = null;
+						targetPermits.acquire();
+						try {
+							sync.writePage(page);
+							outcomes.put(page.getTitle(), SyncOutcome.WRITTEN);
+						} catch (IOException e) {
+							failure = e;
+						} catch (LoginException e) {
+							failure = e;
+						} catch (RuntimeException e) {
+							failure = e;
+						} finally {
+							targetPermits.release();
+						}
+						if (failure != null) {
+							sync.log("Could not write "+page.getTitle(), failure);
+							outcomes.put(page.getTitle(), sync.pageFailed(page.getTitle(), RetryJournal.Stage.EDIT, page));
+						}
+						long elapsed = System.nanoTime() - start;
+						editStats.record(1, elapsed);
+						sync.getMetrics().time("edit.latency", elapsed);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+
+		List<Future<?>> fetching = submit(fetchers, fetch, sourceConcurrency);
+		List<Future<?>> rewriting = submit(rewriters, rewrite, rewriteThreads);
+		List<Future<?>> editing = submit(editors, edit, targetConcurrency);
+		try {
+			// each stage is told to stop once every worker of the stage before it has finished
+			await(fetching);
+			for (int i = 0; i < rewriteThreads; i++) {
+				toRewrite.put(END);
+			}
+			await(rewriting);
+			for (int i = 0; i < targetConcurrency; i++) {
+				toEdit.put(END);
+			}
+			await(editing);
+		} catch (InterruptedException e) {
+			cancel(fetching);
+			cancel(rewriting);
+			cancel(editing);
+			throw e;
+		}
+		// titles the source didn't return (and that didn't fail) don't exist there
+		for (String title : titles) {
+			if (!outcomes.containsKey(title)) {
+				outcomes.put(title, SyncOutcome.MISSING);
+			}
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Puts journaled pages into the queue of the stage they failed at.
+	 */
+	private void feed(Sync sync, List<RetryJournal.Entry> retries, Map<String, SyncOutcome> outcomes,
+			BlockingQueue<SourcePage> toRewrite, BlockingQueue<SourcePage> toEdit) throws InterruptedException {
+		List<SourcePage> fetched = new ArrayList<SourcePage>();
+		for (RetryJournal.Entry entry : retries) {
+			if (entry.getStage() == RetryJournal.Stage.EDIT) {
+				put(toEdit, entry.getPage(), editStats);
+			} else if (entry.getStage() == RetryJournal.Stage.REWRITE) {
+				fetched.add(entry.getPage());
+			}
+		}
+		if (!fetched.isEmpty()) {
+			for (SourcePage page : prepare(sync, fetched, outcomes)) {
+				put(toRewrite, page, rewriteStats);
+			}
+		}
+	}
+
+	/**
+	 * Prepares fetched pages for rewriting, holding a target permit (the rules may query the
+	 * target). If that fails, the pages are failed at the rewrite stage, so the journal retries
+	 * them, and none are returned.
+	 * @return the pages to rewrite
+	 */
+	private List<SourcePage> prepare(Sync sync, List<SourcePage> pages, Map<String, SyncOutcome> outcomes) 
+			throws InterruptedException {
+		targetPermits.acquire();
+		try {
+			sync.prepareBatch(pages);
+			return pages;
+		} catch (RuntimeException e) {
+			sync.log("Could not prepare "+pages.size()+" pages for rewriting", e);
+			for (SourcePage page : pages) {
+				outcomes.put(page.getTitle(), sync.pageFailed(page.getTitle(), RetryJournal.Stage.REWRITE, page));
+			}
+			return Collections.emptyList();
+		} finally {
+			targetPermits.release();
+		}
+	}
+
+	/**
+	 * Stops the worker pools. The pipeline can't be used afterwards.
+	 */
+	public void shutdown() {
+		fetchers.shutdownNow();
+		rewriters.shutdownNow();
+		editors.shutdownNow();
+	}
+
+	public StageStats getFetchStats() {
+		return fetchStats;
+	}
+
+	public StageStats getRewriteStats() {
+		return rewriteStats;
+	}
+
+	public StageStats getEditStats() {
+		return editStats;
+	}
+
+	/**
+	 * @return number of pages currently waiting to be rewritten
+	 */
+	public int getRewriteQueueDepth() {
+		return toRewrite.size();
+	}
+
+	/**
+	 * @return number of pages currently waiting to be written to the target
+	 */
+	public int getEditQueueDepth() {
+		return toEdit.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s; %s; %s; peak queue depth %d/%d (rewrite), %d/%d (edit)",
+				fetchStats, rewriteStats, editStats,
+				rewriteStats.getPeakQueueDepth(), queueCapacity, editStats.getPeakQueueDepth(), queueCapacity);
+	}
+
+	private static void put(BlockingQueue<SourcePage> queue, SourcePage page, StageStats next)
+			throws InterruptedException {
+		queue.put(page);
+		next.sawQueueDepth(queue.size());
+	}
+
+	private static List<Future<?>> submit(ExecutorService pool, Runnable worker, int count) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(count);
+		for (int i = 0; i < count; i++) {
+			futures.add(pool.submit(worker));
+		}
+		return futures;
+	}
+
+	private static void await(List<Future<?>> futures) throws InterruptedException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+	}
+
+	private static void cancel(List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Running totals for one stage of the pipeline.
+	 */
+	public static class StageStats {
+
+		private final String 		name;
+		private final AtomicLong 	items 		= new AtomicLong();
+		private final AtomicLong 	busyNanos 	= new AtomicLong();
+		private volatile int 		peakQueueDepth;
+
+		StageStats(String name) {
+			this.name = name;
+		}
+
+		void record(int count, long nanos) {
+			items.addAndGet(count);
+			busyNanos.addAndGet(nanos);
+		}
+
+		void sawQueueDepth(int depth) {
+			if (depth > peakQueueDepth) {
+				peakQueueDepth = depth;
+			}
+		}
+
+		/**
+		 * @return pages that have passed through this stage
+		 */
+		public long getItems() {
+			return items.get();
+		}
+
+		/**
+		 * @return total time the stage's workers spent working, summed over workers
+		 */
+		public long getBusyNanos() {
+			return busyNanos.get();
+		}
+
+		/**
+		 * @return pages per second of worker time
+		 */
+		public double getThroughput() {
+			long nanos = busyNanos.get();
+			return (nanos == 0) ? 0 : items.get() / (nanos / 1e9);
+		}
+
+		/**
+		 * @return deepest the queue in front of this stage has been
+		 */
+		public int getPeakQueueDepth() {
+			return peakQueueDepth;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d pages, %.1f pages/s per worker", name, items.get(), getThroughput());
+		}
+	}
+
+}
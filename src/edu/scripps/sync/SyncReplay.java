@@ -0,0 +1,211 @@
+package edu.scripps.sync;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import static java.lang.String.format;
+
+import javax.security.auth.login.FailedLoginException;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * SyncReplay runs recorded sync cycles (see CycleRecorder) again, offline: the Sync is set up
+ * from the configuration as the service sets it up (its class, rewrite rules, pipeline and
+ * watchlist window), and its wikis answer from the recording (see ReplayWiki). The checkpoint,
+ * write store, retry journal and shard of the service are never touched.
+ * <p>
+ * Every replayed cycle reports how long it took against how long it took when recorded, how
+ * its requests were answered, and which edits came out differently from the recorded ones,
+ * so a slow cycle can be profiled, and two versions of the rewrite rules compared, on the
+ * same input:
+ * <pre>
+ * java edu.scripps.sync.SyncReplay -f sync.recording [-c SyncService.conf] [-j job] [-n segment]... [-x times]
+ * java edu.scripps.sync.SyncReplay -f sync.recording -l
+ * </pre>
+ * A title index (target.title.index) is not part of the recording: a replay loads a copy of
+ * the index file as it is now, so where the target has changed since the recording, links
+ * are checked against a different set of titles, and their edits differ from the recorded
+ * ones. Leave target.title.index out of the replay's configuration to have links checked
+ * with the requests recorded instead, which is only the same input if the recorded cycle
+ * didn't use an index either.
+ * @author eclarke
+ *
+ */
+public class SyncReplay {
+
+	private static final int SHOWN_CHANGES = 20;
+
+	private static boolean debug = false;
+
+	public static void main(String[] args) throws IOException {
+		OptionParser parser = new OptionParser();
+		OptionSpec<File> recordingOption = parser.accepts("f", "recording (sync.record)")
+				.withRequiredArg().ofType(File.class).describedAs("file");
+		OptionSpec<File> configOption = parser.accepts("c", "configuration file (SyncService.conf by default)")
+				.withRequiredArg().ofType(File.class).describedAs("config file");
+		OptionSpec<String> jobOption = parser.accepts("j", "job whose settings to use")
+				.withRequiredArg().ofType(String.class).describedAs("name");
+		OptionSpec<Integer> segmentOption = parser.accepts("n", "segment to replay (every cycle by default; see -l)")
+				.withRequiredArg().ofType(Integer.class).describedAs("segment");
+		OptionSpec<Integer> timesOption = parser.accepts("x", "times to replay each segment")
+				.withRequiredArg().ofType(Integer.class).describedAs("times");
+		parser.accepts("l", "list the recorded segments");
+		parser.accepts("d", "display stack traces");
+		parser.accepts("h", "display help (this message)");
+
+		OptionSet options = null;
+		try {
+			options = parser.parse(args);
+		} catch (OptionException e) {
+			System.err.println("Invalid options or missing option arguments.");
+			parser.printHelpOn(System.err);
+			System.exit(1);
+		}
+		if (options.has("h") || !options.has(recordingOption)) {
+			parser.printHelpOn(System.err);
+			System.exit(options.has("h") ? 0 : 1);
+		}
+		debug = options.has("d");
+
+		CycleRecording recording = new CycleRecording(options.valueOf(recordingOption));
+		try {
+			if (options.has("l")) {
+				list(recording);
+				return;
+			}
+			Properties properties = new Properties();
+			File config = options.has(configOption) ? options.valueOf(configOption) : new File("SyncService.conf");
+			if (config.exists()) {
+				properties.load(new FileReader(config));
+			} else if (options.has(configOption)) {
+				System.err.println("No configuration file "+config);
+				System.exit(1);
+			}
+			String job = options.valueOf(jobOption);
+			if (job != null) {
+				properties = SyncJob.configure(properties, job);
+			}
+
+			List<CycleRecording.Segment> segments = new ArrayList<CycleRecording.Segment>();
+			if (options.has(segmentOption)) {
+				for (int index : options.valuesOf(segmentOption)) {
+					if (index < 0 || index >= recording.getSegments().size()) {
+						System.err.println(format("No segment %d; the recording has %d.", index, recording.getSegments().size()));
+						System.exit(1);
+					}
+					segments.add(recording.getSegments().get(index));
+				}
+			} else {
+				for (CycleRecording.Segment segment : recording.getSegments()) {
+					if (segment.getCycle() > 0) {
+						segments.add(segment);
+					}
+				}
+			}
+			int times = options.has(timesOption) ? options.valueOf(timesOption) : 1;
+			for (CycleRecording.Segment segment : segments) {
+				List<CycleRecording.Exchange> exchanges = new ArrayList<CycleRecording.Exchange>();
+				CycleRecording.Segment setup = recording.getSetup(segment);
+				if (setup != null) {
+					exchanges.addAll(recording.read(setup));
+				}
+				exchanges.addAll(recording.read(segment));
+				for (int i = 0; i < times; i++) {
+					replay(job, properties, segment, exchanges, setup != null);
+				}
+			}
+		} finally {
+			recording.close();
+		}
+	}
+
+	/**
+	 * Prints the segments of a recording.
+	 */
+	private static void list(CycleRecording recording) {
+		SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		for (CycleRecording.Segment segment : recording.getSegments()) {
+			String kind = (segment.getCycle() > 0) ? "cycle " + segment.getCycle()
+					: (segment.getCycle() == 0) ? "set-up" : "between cycles";
+			System.out.println(format("%4d  %-16s %s  %6d ms  %7d requests  %9d bytes", segment.getIndex(), kind,
+					date.format(new Date(segment.getStart())), segment.getEnd() - segment.getStart(),
+					segment.getRequests(), segment.getCompressedLength()));
+		}
+	}
+
+	/**
+	 * Runs the recorded cycle once against wikis answering from its requests.
+	 */
+	private static void replay(String job, Properties properties, CycleRecording.Segment segment,
+			List<CycleRecording.Exchange> exchanges, boolean login) {
+		ReplayWiki source = new ReplayWiki(properties.getProperty("source.location", "en.wikipedia.org"),
+				properties.getProperty("source.scripts", "/w"), exchanges, CycleRecording.SOURCE);
+		ReplayWiki target = new ReplayWiki(properties.getProperty("target.location", "localhost"),
+				properties.getProperty("target.scripts", ""), exchanges, CycleRecording.TARGET);
+		if (login) {
+			login(source, properties.getProperty("source.username"));
+			login(target, properties.getProperty("target.username"));
+		}
+		long waited = 0;
+		for (CycleRecording.Exchange exchange : exchanges) {
+			waited += exchange.getMicros();
+		}
+
+		Sync sync = new SyncJob(job, properties, source, target, debug).replaySync();
+		long start = System.nanoTime();
+		try {
+			sync.run();
+		} catch (RuntimeException e) {
+			if (debug)
+				e.printStackTrace();
+			log("The replayed cycle failed: "+e.getMessage());
+		} finally {
+			sync.getPipeline().shutdown();
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		log(format("Segment %d (cycle %d): replayed in %d ms; recorded in %d ms, %d ms of it in requests (summed over workers).",
+				segment.getIndex(), segment.getCycle(), elapsed, segment.getEnd() - segment.getStart(), waited / 1000));
+		log(format("Source: %s", requests(source)));
+		log(format("Target: %s", requests(target)));
+		List<String> changed = target.getChangedEdits();
+		log(format("Edits: %d as recorded, %d changed, %d not recorded.",
+				target.getSameEdits(), changed.size(), target.getNewEdits()));
+		if (!changed.isEmpty()) {
+			List<String> shown = changed.subList(0, Math.min(SHOWN_CHANGES, changed.size()));
+			log(format("Changed: %s%s", shown, (changed.size() > shown.size()) ? " and " + (changed.size() - shown.size()) + " more" : ""));
+		}
+	}
+
+	private static void login(ReplayWiki wiki, String username) {
+		if (username == null) {
+			return;
+		}
+		try {
+			wiki.login(username, "replay".toCharArray());
+		} catch (IOException e) {
+			log(format("Could not replay the login of %s: %s", username, e.getMessage()));
+		} catch (FailedLoginException e) {
+			log(format("Could not replay the login of %s: %s", username, e.getMessage()));
+		}
+	}
+
+	private static String requests(ReplayWiki wiki) {
+		return format("%d requests answered as recorded, %d from the pages of other requests, %d not recorded, %d retried failures skipped.",
+				wiki.getAnswered(), wiki.getAssembled(), wiki.getMissed(), wiki.getSkippedFailures());
+	}
+
+	private static void log(String message) {
+		System.out.println(message);
+	}
+
+}
@@ -6,27 +6,31 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Calendar;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import static java.lang.String.format;
 
 import javax.security.auth.login.FailedLoginException;
-import javax.security.auth.login.LoginException;
 
 import org.genewiki.api.Wiki;
-import org.genewiki.api.Wiki.User;
 
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * <p>SyncService manages the persistence and scheduling of the Wikipedia => GeneWiki+ sync.
@@ -42,16 +46,16 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * However, to prevent a non-recoverable situation triggering rapid restart-and-failures, it
  * will exit after 7 such rapid failures, sending an alert email to recipients specified in 
  * the configuration file.
+ * <p> One service can run several source/target pairs, listed by name in sync.jobs. Each job
+ * reads its wikis, Sync class, period and the rest from job.&lt;name&gt;.* keys, falling back
+ * to the plain keys (see SyncJob), and all jobs share one scheduler.
  * @author eclarke
  *
  */
 public class SyncScheduler {
 	
-	private String src_password;
-	private final Wiki source;
-	private String tgt_password;
-	private final Wiki target;
 	private final Properties properties;
+	private final List<SyncJob> jobs = new ArrayList<SyncJob>();
 	
 	private static boolean debug = false;	// this allows stack traces to print to stdout
 	
@@ -71,6 +75,8 @@ public class SyncScheduler {
 				.withRequiredArg().ofType(String.class).describedAs("password");
 		OptionSpec<File> configs = parser.accepts("c", "configuration file")
 				.withRequiredArg().ofType(File.class).describedAs("config file");
+		OptionSpec<File> backfillOption = parser.accepts("b", "copy every watched page (or every page in the title list) to the target, then exit")
+				.withOptionalArg().ofType(File.class).describedAs("title list");
 		parser.accepts("d", "display stack traces");
 		parser.accepts("h", "display help (this message)");
 		
@@ -133,13 +139,19 @@ public class SyncScheduler {
 		}
 
 		SyncScheduler sync = new SyncScheduler(srcPassword, tgtPassword, configFile.getCanonicalPath());
+		if (options.has(backfillOption)) {
+			sync.backfill(options.valueOf(backfillOption));
+			System.exit(0);
+		}
 		sync.start();
 	}
 	
 	/**
 	 * Creates a new SyncService with the specified passwords and configuration options.
 	 * @param sourcePassword password for account with desired watchlist on source MediaWiki
+	 * (for jobs that have no source.password of their own)
 	 * @param targetPassword password for account on target MediaWiki
+	 * (for jobs that have no target.password of their own)
 	 * @param configLocation location of gwsync.conf
 	 * @throws FileNotFoundException if configuration location is invalid
 	 * @throws IOException if configuration cannot be read
@@ -147,30 +159,25 @@ public class SyncScheduler {
 	 */
 	public SyncScheduler(String sourcePassword, String targetPassword, String configLocation) 
 			throws FileNotFoundException, IOException, FailedLoginException {
-		this.src_password  = sourcePassword;
-		this.tgt_password = targetPassword;
 		this.properties = new Properties();
 		properties.load(new FileReader(configLocation));
 		
-		this.source = new Wiki();
-		source.setMaxLag(0);
-		source.login(
-				checkNotNull(properties.getProperty("source.username")), 
-				src_password.toCharArray());
-		
-		this.target = new Wiki(
-				checkNotNull(properties.getProperty("target.location")), "");
-		target.setMaxLag(0);
-		target.setThrottle(0);
-		target.setUsingCompressedRequests(false);
-		target.login(
-				checkNotNull(properties.getProperty("target.username")), 
-				tgt_password.toCharArray());
+		List<String> names = jobNames();
+		if (names.isEmpty()) {
+			jobs.add(SyncJob.connect(null, properties, sourcePassword, targetPassword, debug));
+		} else {
+			for (String name : names) {
+				log(format("Connecting job %s...", name));
+				jobs.add(SyncJob.connect(name, SyncJob.configure(properties, name), 
+						sourcePassword, targetPassword, debug));
+			}
+		}
+		checkJobFiles();
 	}
 	
 	/**
 	 * Creates a new SyncService with the specified Wiki objects and configuration file
-	 * location.
+	 * location, running a single job.
 	 * @param wp Wikipedia Wiki
 	 * @param gwp GeneWiki+ Wiki
 	 * @param configLocation path to the configs file
@@ -178,113 +185,146 @@ public class SyncScheduler {
 	 * @throws IOException if the configuration cannot be read
 	 */
 	public SyncScheduler(Wiki wp, Wiki gwp, String configLocation) throws FileNotFoundException, IOException {
-		this.source = wp;
-		this.target = gwp;
 		this.properties = new Properties();
 		properties.load(new FileReader(configLocation));
+		jobs.add(new SyncJob(null, properties, wp, gwp, debug));
 	}
 	
 	/**
-	 * Starts the synchronization with a predefined period (in the config file). If none is defined,
-	 * a default period of 5 minutes is used. 
-	 * <p> This method attempts to be fail- and fault-safe by monitoring the results
-	 * of each Sync thread. If the thread exited with an exception, it will be restarted,
-	 * unless it has failed almost immediately after restart (a "quickfail"), multiple times. 
-	 * In that case, an alert email will be sent to the recipient specified in the config file, and the
-	 * method will return and must be manually restarted. Restarts are throttled so as to not
-	 * overwhelm external resources by an incrementing counter (++5s for each quickfail).
-	 * This throttle is reset the first time a thread does not quickfail.
+	 * @return the jobs this service runs
+	 */
+	public List<SyncJob> getJobs() {
+		return Collections.unmodifiableList(jobs);
+	}
+	
+	/**
+	 * Starts the synchronization of every job, each with a predefined period (in the config file).
+	 * If none is defined, a default period of 5 minutes is used. 
+	 * <p> The jobs share one pool of sync.threads threads (by default, one per job). Each job
+	 * runs one cycle at a time, so a job whose target is slow holds at most one thread and the
+	 * others keep their pace. Cycles that are due run in the order they fell due, so a job that
+	 * is catching up (starting each cycle as soon as the last one ends) queues behind the jobs
+	 * already waiting, rather than taking the pool over.
+	 * <p> This method attempts to be fail- and fault-safe: a SyncSupervisor schedules each
+	 * cycle when the previous one completes, so cycles never overlap. If a cycle exited with an
+	 * exception, it will be retried after an exponential backoff, unless it has failed almost 
+	 * immediately after launch (a "quickfail") multiple times in a row. In that case, an alert
+	 * email will be sent to the recipient specified in the config file, and the job stops and 
+	 * must be manually restarted; the other jobs carry on. This method blocks for as long as
+	 * any job runs.
+	 * <p> The metrics of every job are registered with JMX, and served over HTTP if 
+	 * metrics.http.port is set (see MetricsServer).
 	 */
 	public void start() {
-		Integer period = Integer.parseInt(properties.getProperty("sync.period", "5"));
-		boolean rewrite = Boolean.parseBoolean(properties.getProperty("rewrite.article.content", "false"));
-
-		// FIXME replace DefaultSync with your custom Sync implementation!
-		Sync sync = new DefaultSync(source, target, period, rewrite);
-
-		ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
-		ScheduledFuture<?> future = executor.scheduleAtFixedRate(sync, 0, period, TimeUnit.MINUTES);
-		long launchTime = Calendar.getInstance().getTimeInMillis();
-		int quickfail = 0; 
-		log(String.format("Starting repeating sync with a period of %d minutes...", period));
-		while (true) {
-			if (future.isDone()) {
-				try {
-					// If the process exited in any non-normal way, it'll throw the corresponding exception
-					future.get();
-				
-				} catch (ExecutionException e) {
-					
-					log(format("Exception encountered: %s", e.getCause().getMessage()));
-					if (debug) 
-						e.printStackTrace();
-					
-					long failTime = Calendar.getInstance().getTimeInMillis();
-					
-					/* If the failure time is within 1.1s of the launchtime, it is likely that something is wrong
-					   in the outside environment (network error, etc). We put a throttle on this fail-fast
-					   behavior to prevent it from going crazy and overwhelming the JVM
-					 */ 
-					if (failTime - launchTime < 1100) {
-						quickfail++;
-						
-						// Failing multiple times in this manner is a good indicator that we should just abort
-						if (quickfail > 7) {
-							log("Failed immediately 7 consecutive times. Bailing out...");
-							if (properties.getProperty("send.alert.email") != null);
-								sendAlertEmail();
-							return;
-							
-						} else {
-							// throttle
-							log(format("Failed immediately after launch. Sleeping for %d seconds...", 5*quickfail));
-							pause(5000*quickfail);
-						}
-					} else {
-						// if we've recovered, reset the quickfail counter
-						quickfail = 0;	
-					}
-					
-					// Relaunches the sync task using the same executor and assigns it to the same future object
-					future = executor.scheduleWithFixedDelay(sync, 0, period, TimeUnit.MINUTES);
-					// Notes the launch time for comparison against a possible failure time
-					launchTime = Calendar.getInstance().getTimeInMillis();
-					
-				} catch (InterruptedException e) {
-					if (debug)
-						e.printStackTrace();
-					return;
+		int threads = Integer.parseInt(properties.getProperty("sync.threads", String.valueOf(jobs.size())));
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(threads, 
+				new ThreadFactoryBuilder().setNameFormat("sync-%d").build());
+		final BlockingQueue<SyncJob> stopped = new LinkedBlockingQueue<SyncJob>();
+		for (final SyncJob job : jobs) {
+			job.start(executor, new Runnable() {
+				public void run() {
+					stopped.add(job);
 				}
-			} else {
-				
-				// The while loop doesn't need to poll with too high of a frequency
-				pause(500);
+			});
+		}
+		MetricsServer metrics = startMetricsServer();
+		List<SyncJob> running = new ArrayList<SyncJob>(jobs);
+		try {
+			while (!running.isEmpty()) {
+				SyncJob job = stopped.take();
+				running.remove(job);
+				job.finish();
+			}
+		} catch (InterruptedException e) {
+			if (debug)
+				e.printStackTrace();
+			for (SyncJob job : running) {
+				job.stop();
+				job.finish();
 			}
 		}
+		if (metrics != null) {
+			metrics.stop();
+		}
+		executor.shutdownNow();
 	}
 	
-	
-	
 	/**
-	 * Uses MediaWiki's ability to email users to send an alert notifying a user on the source
-	 * mediawiki. The details of the message are specified in the configuration file for the SyncService.
+	 * Starts serving the jobs' metrics on metrics.http.port, if it is set.
+	 * @return the server, or null if there is none
 	 */
-	private void sendAlertEmail() {
-		
-		String subject 	= properties.getProperty("alert.email.subject");
-		String body		= properties.getProperty("alert.email.body");
-		User recipient 	= source.new User(properties.getProperty("alert.email.target"));
-		
+	private MetricsServer startMetricsServer() {
+		String port = properties.getProperty("metrics.http.port");
+		if (port == null) {
+			return null;
+		}
+		String address = properties.getProperty("metrics.http.address", "127.0.0.1");
+		Map<String, Metrics> metrics = new LinkedHashMap<String, Metrics>();
+		for (SyncJob job : jobs) {
+			metrics.put(job.getName(), job.getSync().getMetrics());
+		}
 		try {
-			source.emailUser(recipient, body, subject, true);
+			MetricsServer server = new MetricsServer(new InetSocketAddress(address, Integer.parseInt(port.trim())), metrics);
+			log(format("Serving metrics at http://%s:%d/metrics", address, server.getPort()));
+			return server;
 		} catch (IOException e) {
 			if (debug)
 				e.printStackTrace();
-			log(e.getLocalizedMessage());
-		} catch (LoginException e) {
-			if (debug)
-				e.printStackTrace();
-			log(e.getLocalizedMessage());
+			log(format("Could not serve metrics on %s:%s: %s", address, port, e.getMessage()));
+			return null;
+		}
+	}
+	
+	/**
+	 * Copies every page on the watchlist (or in the specified title list) to the target of
+	 * every job, regardless of when it last changed, and returns when done. Progress is saved
+	 * in the file named by sync.backfill.progress, so an interrupted backfill resumes where
+	 * it stopped.
+	 * @param titleList file with one title per line, or null for the whole watchlist
+	 * @throws IOException if the titles can't be read or the progress can't be saved
+	 */
+	public void backfill(File titleList) throws IOException {
+		for (SyncJob job : jobs) {
+			job.backfill(titleList);
+		}
+	}
+	
+	/**
+	 * @return the names listed in sync.jobs
+	 */
+	private List<String> jobNames() {
+		List<String> names = new ArrayList<String>();
+		for (String name : Splitter.on(',').trimResults().omitEmptyStrings()
+				.split(properties.getProperty("sync.jobs", ""))) {
+			if (names.contains(name)) {
+				throw new IllegalArgumentException("Job "+name+" is declared twice in sync.jobs");
+			}
+			names.add(name);
+		}
+		return names;
+	}
+	
+	/**
+	 * Makes sure no two jobs keep their state in the same file.
+	 * @throws IllegalArgumentException if two jobs name the same file
+	 */
+	private void checkJobFiles() {
+		String[] keys = { "sync.checkpoint", "sync.write.store", "sync.retry.journal", 
+				"target.title.index", "sync.backfill.progress", "sync.shard.dir" };
+		for (String key : keys) {
+			Map<String, String> owners = new HashMap<String, String>();
+			for (SyncJob job : jobs) {
+				String file = job.getProperties().getProperty(key);
+				if (file == null) {
+					continue;
+				}
+				String path = new File(file).getAbsolutePath();
+				String owner = owners.put(path, job.getName());
+				if (owner != null) {
+					throw new IllegalArgumentException(format(
+							"Jobs %s and %s both use %s for %s; give each job its own file.", owner, job.getName(), file, key));
+				}
+			}
 		}
 	}
 	
@@ -304,9 +344,4 @@ public class SyncScheduler {
 		System.out.println(message);
 	}
 	
-	private static void pause(long duration) {
-		try { Thread.sleep(duration); }
-		catch (InterruptedException e) {}
-	}
-	
 }
@@ -0,0 +1,223 @@
+package edu.scripps.sync;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncSupervisor runs a Sync repeatedly, scheduling each cycle from the completion of the
+ * one before it, so cycles never overlap and nothing has to poll for their results.
+ * <p>
+ * After a successful cycle, the next one starts one period after the previous one started.
+ * If a cycle took longer than the period, the next one starts right away (catch-up mode).
+ * After a failed cycle, the next attempt waits an exponentially growing, jittered backoff
+ * (5s, 10s, 20s, ... up to 5 minutes). If cycles keep failing almost immediately after
+ * launch (a "quickfail", which usually means something is wrong outside the program), the
+ * supervisor gives up after 7 consecutive quickfails.
+ * <p>
+ * With an AdaptivePeriod, the period is recomputed after every successful cycle from the
+ * number of changes the cycle found and how long it took.
+ * <p>
+ * Failures, quickfails and the retries scheduled after them are counted in the Sync's metrics.
+ * @author eclarke
+ *
+ */
+public class SyncSupervisor {
+
+	private static final long QUICKFAIL 	= 1100;				// failures this soon after launch are quickfails
+	private static final int  MAX_QUICKFAILS = 7;
+	private static final long MIN_BACKOFF 	= 5000;
+	private static final long MAX_BACKOFF 	= 5 * 60 * 1000;
+
+	private final Sync 						sync;
+	private volatile long 					period;
+	private AdaptivePeriod 					adaptive;
+	private final ScheduledExecutorService 	executor;
+	private final boolean 					debug;
+	private final Random 					random = new Random();
+	private final CountDownLatch 			terminated = new CountDownLatch(1);
+	private Runnable 						terminationListener;
+
+	private volatile boolean 	stopped;
+	private volatile boolean 	gaveUp;
+	private int 				failures;	// consecutive
+	private int 				quickfails;	// consecutive
+
+	/**
+	 * Creates a new supervisor. Nothing runs until start() is called.
+	 * @param sync Sync to run
+	 * @param period time from the start of one cycle to the start of the next (in milliseconds)
+	 * @param executor executor the cycles run on
+	 * @param debug if stack traces of failed cycles should be printed
+	 */
+	public SyncSupervisor(Sync sync, long period, ScheduledExecutorService executor, boolean debug) {
+		this.sync = sync;
+		this.period = period;
+		this.executor = executor;
+		this.debug = debug;
+		sync.getMetrics().gauge("supervisor.period", new Metrics.Gauge() {
+			public Number getValue() {
+				return SyncSupervisor.this.period;
+			}
+		});
+	}
+
+	/**
+	 * Lets the period adapt to the observed change volume and cycle duration, instead of
+	 * staying fixed. Must be called before start().
+	 * @param adaptive adaptive period
+	 */
+	public void setAdaptivePeriod(AdaptivePeriod adaptive) {
+		this.adaptive = adaptive;
+		this.period = adaptive.getPeriod();
+	}
+
+	/**
+	 * @return the current time between the starts of cycles (in milliseconds)
+	 */
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Runs the specified task once, when the supervisor is stopped or gives up (on the thread
+	 * that stopped it). Must be called before start().
+	 * @param listener task to run
+	 */
+	public void setTerminationListener(Runnable listener) {
+		this.terminationListener = listener;
+	}
+
+	/**
+	 * Launches the first cycle immediately.
+	 */
+	public void start() {
+		schedule(0);
+	}
+
+	/**
+	 * Stops scheduling cycles. A cycle already running is allowed to finish.
+	 */
+	public synchronized void stop() {
+		if (stopped) {
+			return;
+		}
+		stopped = true;
+		terminated.countDown();
+		if (terminationListener != null) {
+			terminationListener.run();
+		}
+	}
+
+	/**
+	 * Blocks until the supervisor is stopped or gives up.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+
+	/**
+	 * Blocks until the supervisor is stopped or gives up, or the timeout passes.
+	 * @param timeout longest time to wait
+	 * @param unit unit of the timeout
+	 * @return true if the supervisor has terminated
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * @return true if the supervisor stopped because cycles kept failing
+	 */
+	public boolean hasGivenUp() {
+		return gaveUp;
+	}
+
+	private void schedule(long delay) {
+		if (stopped) {
+			return;
+		}
+		executor.schedule(new Runnable() {
+			public void run() {
+				runCycle();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs one cycle and schedules the next from its outcome.
+	 */
+	private void runCycle() {
+		if (stopped) {
+			return;
+		}
+		long launchTime = System.currentTimeMillis();
+		Throwable failure = null;
+		try {
+			sync.run();
+		} catch (Throwable t) {
+			failure = t;
+		}
+		long elapsed = System.currentTimeMillis() - launchTime;
+
+		if (failure == null) {
+			failures = 0;
+			quickfails = 0;
+			if (adaptive != null) {
+				long previous = period;
+				period = adaptive.next(sync.getLastCycleStats().getChanges(), elapsed);
+				if (period != previous) {
+					log(String.format("Sync period is now %d seconds.", period / 1000));
+				}
+			}
+			long delay = Math.max(0, period - elapsed);
+			if (delay == 0) {
+				log(String.format("Sync took %d seconds, longer than the period; starting the next one now.", elapsed / 1000));
+			}
+			schedule(delay);
+			return;
+		}
+
+		log(String.format("Exception encountered: %s", failure.getMessage()));
+		if (debug)
+			failure.printStackTrace();
+		failures++;
+		sync.getMetrics().counter("supervisor.failures").incrementAndGet();
+		if (elapsed < QUICKFAIL) {
+			quickfails++;
+			sync.getMetrics().counter("supervisor.quickfails").incrementAndGet();
+			// Failing multiple times in this manner is a good indicator that we should just abort
+			if (quickfails > MAX_QUICKFAILS) {
+				log(String.format("Failed immediately %d consecutive times. Bailing out...", MAX_QUICKFAILS));
+				gaveUp = true;
+				stop();
+				return;
+			}
+		} else {
+			// if we've recovered, reset the quickfail counter
+			quickfails = 0;
+		}
+		long delay = backoff(failures);
+		log(String.format("Retrying in %d seconds...", delay / 1000));
+		sync.getMetrics().counter("supervisor.restarts").incrementAndGet();
+		schedule(delay);
+	}
+
+	/**
+	 * Returns the wait before the next attempt after the given number of consecutive failures:
+	 * exponential growth from MIN_BACKOFF, capped at MAX_BACKOFF, with "equal jitter" (somewhere
+	 * between half and all of it) so several failing processes don't retry in lockstep.
+	 */
+	private long backoff(int failures) {
+		long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 16));
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+
+	private void log(String message) {
+		sync.log(message);
+	}
+
+}
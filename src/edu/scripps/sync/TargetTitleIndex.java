@@ -0,0 +1,393 @@
+package edu.scripps.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Charsets;
+
+import edu.scripps.sync.BatchWiki.TitleChange;
+
+/**
+ * TargetTitleIndex keeps a local copy of every article title on the target MediaWiki, so
+ * link fixing can check whether a page exists without asking the target over the network.
+ * <p>
+ * The index is built once from a full allpages listing and then kept current from the
+ * target's recent changes (creations, deletions, undeletions and moves). Titles are stored
+ * in a sorted string table: the UTF-8 bytes of all titles packed into one array, with an
+ * offset per title, searched by binary search. Changes since the table was built are kept
+ * in small add/remove sets and folded into the table when the index is saved.
+ * <p>
+ * The index is saved to a local file, so a restart only has to catch up on the changes made
+ * since it was last saved. If the file is older than the target's recent changes are kept,
+ * the index is rebuilt from scratch.
+ * <p>
+ * Only the main (article) namespace is indexed; titles with a namespace prefix (or any colon)
+ * are not covered, and callers should ask the target about those as before.
+ * @author eclarke
+ *
+ */
+public class TargetTitleIndex {
+
+	private static final int 	MAGIC 			= 0x54544931;			// "TTI1"
+	private static final long 	MAX_AGE 		= 30L * 24 * 3600 * 1000;	// default recent changes retention
+	private static final long 	SAVE_INTERVAL 	= 10L * 60 * 1000;		// don't rewrite the file more often than this
+
+	private final BatchWiki wiki;
+	private final File 		file;
+
+	private volatile Table 		table 		= new Table(new byte[0], new int[] { 0 });
+	private final Set<String> 	added 		= Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> 	removed 	= Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile boolean 	current 	= false;	// false until loaded, and whenever a refresh fails
+	private long 				since;			// changes up to this time (millis) are in the index
+	private long 				lastSaved;
+
+	/**
+	 * Creates a new, empty index of the target. Call load() before using it.
+	 * @param wiki target MediaWiki
+	 * @param file where the index is saved between runs
+	 */
+	public TargetTitleIndex(BatchWiki wiki, File file) {
+		this.wiki = wiki;
+		this.file = file;
+	}
+
+	/**
+	 * Loads the index from its file and catches up on the changes since it was saved, or, if there
+	 * is no usable file, builds it from a full listing of the target's articles.
+	 * @throws IOException if a network error occurs
+	 */
+	public synchronized void load() throws IOException {
+		if (file.exists()) {
+			try {
+				read();
+				if (System.currentTimeMillis() - since < MAX_AGE) {
+					current = true;
+					refresh();
+					return;
+				}
+			} catch (IOException e) {
+				// corrupt or unreadable; fall through and rebuild
+			}
+		}
+		rebuild();
+	}
+
+	/**
+	 * Lists every article on the target and replaces the index with the result.
+	 * @throws IOException if a network error occurs
+	 */
+	public synchronized void rebuild() throws IOException {
+		// note the time first, so changes made while listing are picked up by the next refresh
+		long start = System.currentTimeMillis();
+		build(wiki.getAllTitles(0));
+		added.clear();
+		removed.clear();
+		since = start;
+		current = true;
+		save();
+	}
+
+	/**
+	 * Applies the creations, deletions and moves on the target since the last refresh, and saves
+	 * the index if it hasn't been saved for a while. If the changes can't be retrieved, the index
+	 * reports that it covers nothing until a later refresh succeeds.
+	 * @throws IOException if a network error occurs
+	 */
+	public synchronized void refresh() throws IOException {
+		Calendar from = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		from.setTimeInMillis(since);
+		List<TitleChange> changes;
+		try {
+			changes = wiki.getTitleChanges(from, 0);
+		} catch (IOException e) {
+			current = false;
+			throw e;
+		}
+		for (TitleChange change : changes) {
+			switch (change.getType()) {
+			case CREATE:
+				add(change.getTitle());
+				break;
+			case DELETE:
+				remove(change.getTitle());
+				break;
+			case MOVE_WITHOUT_REDIRECT:
+				remove(change.getTitle());
+				add(change.getNewTitle());
+				break;
+			case MOVE:
+				add(change.getNewTitle());
+				break;
+			}
+			since = Math.max(since, change.getTimestamp().getTimeInMillis());
+		}
+		current = true;
+		if (!(added.isEmpty() && removed.isEmpty()) && System.currentTimeMillis() - lastSaved > SAVE_INTERVAL) {
+			save();
+		}
+	}
+
+	/**
+	 * Returns true if this index can answer whether the title exists: the index is up to date,
+	 * and the title is in the main namespace.
+	 * @param title page title, as written in a link
+	 * @return true if contains() is authoritative for this title
+	 */
+	public boolean covers(String title) {
+		if (!current) {
+			return false;
+		}
+		String normalized = normalize(title);
+		return normalized.length() > 0 && normalized.indexOf(':') == -1;
+	}
+
+	/**
+	 * Returns true if the title exists on the target, as of the last refresh.
+	 * @param title page title, as written in a link
+	 * @return true if the page exists
+	 */
+	public boolean contains(String title) {
+		String normalized = normalize(title);
+		if (added.contains(normalized)) {
+			return true;
+		}
+		if (removed.contains(normalized)) {
+			return false;
+		}
+		return find(normalized.getBytes(Charsets.UTF_8)) >= 0;
+	}
+
+	/**
+	 * @return number of titles in the index
+	 */
+	public int size() {
+		return table.size() + added.size() - removed.size();
+	}
+
+	/**
+	 * Converts a link target into the form MediaWiki stores titles in: no section fragment,
+	 * underscores as spaces, no surrounding or repeated whitespace, and a capital first letter.
+	 * @param title title as written in a link
+	 * @return normalized title
+	 */
+	static String normalize(String title) {
+		int hash = title.indexOf('#');
+		if (hash != -1) {
+			title = title.substring(0, hash);
+		}
+		title = title.replace('_', ' ').trim();
+		if (title.indexOf("  ") != -1) {
+			title = title.replaceAll(" {2,}", " ");
+		}
+		if (title.length() > 0 && Character.isLowerCase(title.charAt(0))) {
+			title = title.substring(0, 1).toUpperCase() + title.substring(1);
+		}
+		return title;
+	}
+
+	/* ---- Table maintenance ---- */
+
+	private void add(String title) {
+		String normalized = normalize(title);
+		removed.remove(normalized);
+		if (find(normalized.getBytes(Charsets.UTF_8)) < 0) {
+			added.add(normalized);
+		}
+	}
+
+	private void remove(String title) {
+		String normalized = normalize(title);
+		added.remove(normalized);
+		if (find(normalized.getBytes(Charsets.UTF_8)) >= 0) {
+			removed.add(normalized);
+		}
+	}
+
+	/**
+	 * Binary search for a title's UTF-8 bytes in the table.
+	 * @return index of the title, or a negative number if it isn't there
+	 */
+	private int find(byte[] key) {
+		byte[] table = this.table.bytes;
+		int[] offsets = this.table.offsets;
+		int lo = 0;
+		int hi = offsets.length - 2;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(table, offsets[mid], offsets[mid+1], key);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	private static int compare(byte[] table, int from, int to, byte[] key) {
+		int len = Math.min(to - from, key.length);
+		for (int i = 0; i < len; i++) {
+			int cmp = (table[from + i] & 0xff) - (key[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return (to - from) - key.length;
+	}
+
+	private static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			return TargetTitleIndex.compare(a, 0, a.length, b);
+		}
+	};
+
+	/**
+	 * Replaces the table with the given titles.
+	 */
+	private void build(Collection<String> titles) {
+		byte[][] sorted = new byte[titles.size()][];
+		int i = 0;
+		int total = 0;
+		for (String title : titles) {
+			sorted[i] = normalize(title).getBytes(Charsets.UTF_8);
+			total += sorted[i++].length;
+		}
+		Arrays.sort(sorted, UNSIGNED);
+		byte[] table = new byte[total];
+		int[] offsets = new int[sorted.length + 1];
+		int n = 0;
+		int pos = 0;
+		for (i = 0; i < sorted.length; i++) {
+			if (i > 0 && UNSIGNED.compare(sorted[i-1], sorted[i]) == 0) {
+				continue;
+			}
+			offsets[n++] = pos;
+			System.arraycopy(sorted[i], 0, table, pos, sorted[i].length);
+			pos += sorted[i].length;
+		}
+		offsets[n] = pos;
+		this.table = new Table(table, (n + 1 == offsets.length) ? offsets : Arrays.copyOf(offsets, n + 1));
+	}
+
+	/* ---- Persistence ---- */
+
+	/**
+	 * Folds pending changes into the table and writes it to the index file (via a temporary
+	 * file, so a crash never leaves a half-written index behind).
+	 */
+	private void save() throws IOException {
+		if (!added.isEmpty() || !removed.isEmpty()) {
+			List<String> titles = new ArrayList<String>(size());
+			for (int i = 0; i < table.size(); i++) {
+				String title = table.get(i);
+				if (!removed.contains(title)) {
+					titles.add(title);
+				}
+			}
+			titles.addAll(added);
+			build(titles);
+			added.clear();
+			removed.clear();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(tmp))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(since);
+			int[] offsets = table.offsets;
+			out.writeInt(offsets.length - 1);
+			for (int i = 0; i < offsets.length - 1; i++) {
+				out.writeShort(offsets[i+1] - offsets[i]);
+				out.write(table.bytes, offsets[i], offsets[i+1] - offsets[i]);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace title index "+file);
+			}
+		}
+		lastSaved = System.currentTimeMillis();
+	}
+
+	private void read() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a title index: "+file);
+			}
+			long since = in.readLong();
+			int count = in.readInt();
+			int[] offsets = new int[count + 1];
+			byte[] table = new byte[Math.max(16, (int) Math.min(file.length() * 4, Integer.MAX_VALUE / 2))];
+			int pos = 0;
+			for (int i = 0; i < count; i++) {
+				int len = in.readUnsignedShort();
+				if (pos + len > table.length) {
+					table = Arrays.copyOf(table, Math.max(table.length * 2, pos + len));
+				}
+				in.readFully(table, pos, len);
+				offsets[i] = pos;
+				pos += len;
+			}
+			offsets[count] = pos;
+			this.table = new Table(Arrays.copyOf(table, pos), offsets);
+			this.since = since;
+			this.lastSaved = file.lastModified();
+			added.clear();
+			removed.clear();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The sorted titles: their UTF-8 bytes packed into one array, title i running from
+	 * offsets[i] to offsets[i+1]. Replaced as a whole, so readers always see a consistent pair.
+	 */
+	private static final class Table {
+
+		final byte[] 	bytes;
+		final int[] 	offsets;
+
+		Table(byte[] bytes, int[] offsets) {
+			this.bytes = bytes;
+			this.offsets = offsets;
+		}
+
+		int size() {
+			return offsets.length - 1;
+		}
+
+		String get(int i) {
+			return new String(bytes, offsets[i], offsets[i+1] - offsets[i], Charsets.UTF_8);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.genewiki.api.Wiki;
+
+import com.google.common.collect.Lists;
+
+/**
+ * TitleExistenceCache remembers which titles exist on a wiki, and looks up the ones it doesn't
+ * know yet with as few batched exists() queries as possible (sent together, where a BatchWiki's
+ * transport pipelines them). Entries are kept until clear() is called, so a Sync clears it at the
+ * start of every cycle.
+ * <p>
+ * If a TargetTitleIndex is set, titles it covers are answered from the index and
+ * never sent to the wiki.
+ * @author eclarke
+ *
+ */
+public class TitleExistenceCache {
+
+	private final Wiki wiki;
+	private final ConcurrentMap<String, Boolean> known = new ConcurrentHashMap<String, Boolean>();
+	private volatile TargetTitleIndex index;
+
+	/**
+	 * Creates a new, empty cache for the specified wiki.
+	 * @param wiki wiki to query
+	 */
+	public TitleExistenceCache(Wiki wiki) {
+		this.wiki = wiki;
+	}
+
+	/**
+	 * Answers existence queries from the specified local index wherever it can.
+	 * @param index local index of the wiki's titles, or null to always ask the wiki
+	 */
+	public void setIndex(TargetTitleIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Looks up every title not already in the cache, as many per request as the wiki allows.
+	 * @param titles titles to resolve (duplicates are fine)
+	 * @throws IOException if a network error occurs
+	 */
+	public void resolve(Collection<String> titles) throws IOException {
+		TargetTitleIndex index = this.index;
+		Set<String> unknown = new LinkedHashSet<String>();
+		for (String title : titles) {
+			if (known.containsKey(title)) {
+				continue;
+			}
+			if (index != null && index.covers(title)) {
+				known.put(title, index.contains(title));
+			} else {
+				unknown.add(title);
+			}
+		}
+		if (unknown.isEmpty()) {
+			return;
+		}
+		if (wiki instanceof BatchWiki) {
+			List<String> batch = new ArrayList<String>(unknown);
+			boolean[] exists = ((BatchWiki) wiki).exists(batch);
+			for (int i = 0; i < exists.length; i++) {
+				known.put(batch.get(i), exists[i]);
+			}
+			return;
+		}
+		for (List<String> chunk : Lists.partition(new ArrayList<String>(unknown), BatchWiki.SLOW_MAX)) {
+			boolean[] exists = wiki.exists(chunk.toArray(new String[chunk.size()]));
+			for (int i = 0; i < exists.length; i++) {
+				known.put(chunk.get(i), exists[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the title exists, querying the wiki only if it hasn't been resolved yet.
+	 * @param title page title
+	 * @return true if the page exists
+	 * @throws IOException if a network error occurs
+	 */
+	public boolean exists(String title) throws IOException {
+		Boolean exists = known.get(title);
+		if (exists == null) {
+			TargetTitleIndex index = this.index;
+			exists = (index != null && index.covers(title)) ? index.contains(title) : wiki.exists(title)[0];
+			known.put(title, exists);
+		}
+		return exists;
+	}
+
+	/**
+	 * @return number of titles currently cached
+	 */
+	public int size() {
+		return known.size();
+	}
+
+	/**
+	 * Forgets everything, so the next lookups go to the wiki again.
+	 */
+	public void clear() {
+		known.clear();
+	}
+
+}
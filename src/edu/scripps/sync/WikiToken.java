@@ -0,0 +1,91 @@
+package edu.scripps.sync;
+
+/**
+ * WikiToken is one construct found in an article's wikitext, as handed to the RewriteRules
+ * that asked for its kind. A rule reads the token and may replace its text; the RewriteEngine
+ * puts the replacements together into the rewritten article.
+ * <p>
+ * A token's span is:
+ * <ul>
+ * <li>for a LINK, the link's title: from after the "[[" up to the first '|' or "]]";</li>
+ * <li>for a TEMPLATE, the whole template: from "{{" up to and including the first "}}";</li>
+ * <li>for a HEADING, the whole line, i.e. "== Function ==" (without the line break).</li>
+ * </ul>
+ * Tokens nested in a token (i.e. links in a template) are handed to the rules first, so
+ * getText() of the outer token already holds whatever the rules made of them.
+ * @author eclarke
+ *
+ */
+public final class WikiToken {
+
+	/** The kinds of construct a rule can ask for */
+	public enum Kind {
+		LINK,
+		TEMPLATE,
+		HEADING
+	}
+
+	private final Kind 				kind;
+	private final String 			source;
+	private final int 				start;
+	private final int 				end;
+	private RewriteEngine.Edits 	edits;
+
+	WikiToken(Kind kind, String source, int start, int end) {
+		this.kind = kind;
+		this.source = source;
+		this.start = start;
+		this.end = end;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the token's span as it is in the source text
+	 */
+	public String getOriginal() {
+		return source.substring(start, end);
+	}
+
+	/**
+	 * @return the token's span as the rules have rewritten it so far
+	 */
+	public String getText() {
+		return (edits == null) ? getOriginal() : edits.text(start, end);
+	}
+
+	/**
+	 * Replaces the token's span in the rewritten article. The rules after this one (and the
+	 * rules of any token around this one) see the new text.
+	 * @param text new text of the span
+	 */
+	public void setText(String text) {
+		edits.replace(start, end, text);
+	}
+
+	/**
+	 * @return index of the start of the span in the source text
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return index of the end of the span in the source text (exclusive)
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	void bind(RewriteEngine.Edits edits) {
+		this.edits = edits;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + getOriginal();
+	}
+
+}
@@ -0,0 +1,50 @@
+package edu.scripps.sync;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * WikiTransport sends a BatchWiki's requests over the network in place of the Wiki client's own
+ * connections (see BatchWiki.setTransport()), so how requests get to a wiki (connection reuse,
+ * compression, pipelining) can change without touching the client.
+ * <p>
+ * A transport reports an HTTP error status as an IOException whose message contains "response
+ * code: " and the status, as the client does, so overloaded wikis are still recognized and their
+ * requests retried. An HTTP 503 or 429 should be an OverloadedException carrying the wiki's
+ * Retry-After, so the retry waits as long as the wiki asked rather than a fixed time.
+ * @author eclarke
+ *
+ */
+public interface WikiTransport {
+
+	/**
+	 * Sends a GET request.
+	 * @param url request URL
+	 * @return the response body, decoded
+	 * @throws IOException if a network error occurs or the server returns an error status
+	 */
+	public String get(String url) throws IOException;
+
+	/**
+	 * Sends a POST request with a form-encoded body.
+	 * @param url request URL
+	 * @param text form-encoded body
+	 * @return the response body, decoded
+	 * @throws IOException if a network error occurs or the server returns an error status
+	 */
+	public String post(String url, String text) throws IOException;
+
+	/**
+	 * Sends several independent GET requests, which the transport may have in flight at once.
+	 * @param urls request URLs
+	 * @return the response bodies, in the order of the URLs
+	 * @throws IOException if any of the requests fails
+	 */
+	public List<String> getAll(List<String> urls) throws IOException;
+
+	/**
+	 * Closes every connection the transport holds open.
+	 */
+	public void close();
+
+}
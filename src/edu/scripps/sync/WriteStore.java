@@ -0,0 +1,219 @@
+package edu.scripps.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.common.base.Charsets;
+
+/**
+ * WriteStore remembers, for every title written to the target, the source revision it was
+ * written from and a hash of the text that was written. A Sync uses it to skip pages it has
+ * already written: if the source revision is the one last written, or the rewritten text
+ * hashes the same as what was last written, no edit request is needed.
+ * <p>
+ * The store is an open-addressing hash table in a memory-mapped file, so it survives restarts,
+ * lives outside the Java heap, and costs 24 bytes per slot (a 64-bit hash of the title, the
+ * revision id and a 64-bit hash of the text) no matter how long titles or pages are. Hundreds
+ * of thousands of titles fit in a few megabytes. The table doubles in size when it gets more
+ * than two-thirds full.
+ * @author eclarke
+ *
+ */
+public class WriteStore {
+
+	private static final int MAGIC 		= 0x57535431;	// "WST1"
+	private static final int HEADER 	= 16;			// magic, capacity, size, reserved
+	private static final int SLOT 		= 24;			// title hash, revid, text hash
+	private static final int MIN_CAPACITY = 1 << 16;
+
+	private final File file;
+
+	private RandomAccessFile 	raf;
+	private MappedByteBuffer 	map;
+	private int 				capacity;	// always a power of two
+	private int 				size;
+
+	/**
+	 * Opens the store in the specified file, creating it if it doesn't exist.
+	 * @param file store file
+	 * @throws IOException if the file can't be opened or isn't a store
+	 */
+	public WriteStore(File file) throws IOException {
+		this.file = file;
+		if (file.exists() && file.length() > 0) {
+			open(file);
+			if (map.getInt(0) != MAGIC) {
+				close();
+				throw new IOException("Not a write store: "+file);
+			}
+			capacity = map.getInt(4);
+			size = map.getInt(8);
+		} else {
+			create(file, MIN_CAPACITY);
+		}
+	}
+
+	/**
+	 * Returns true if the specified source revision of the page is the one last written.
+	 * @param title page title
+	 * @param revid source revision id
+	 * @return true if writing this revision again can be skipped
+	 */
+	public synchronized boolean isWritten(String title, long revid) {
+		int slot = find(hash(title));
+		return slot >= 0 && map.getLong(offset(slot) + 8) == revid;
+	}
+
+	/**
+	 * Returns true if the specified text is the text last written to the page.
+	 * @param title page title
+	 * @param text text about to be written
+	 * @return true if writing this text can be skipped
+	 */
+	public synchronized boolean isUnchanged(String title, String text) {
+		int slot = find(hash(title));
+		return slot >= 0 && map.getLong(offset(slot) + 16) == hash(text);
+	}
+
+	/**
+	 * Records that the specified revision and text have been written to the page.
+	 * @param title page title
+	 * @param revid source revision id
+	 * @param text text written to the target
+	 * @throws IOException if the store needs to grow and can't
+	 */
+	public synchronized void record(String title, long revid, String text) throws IOException {
+		long key = hash(title);
+		int slot = find(key);
+		if (slot < 0) {
+			if ((size + 1) * 3L > capacity * 2L) {
+				grow();
+			}
+			slot = -(find(key) + 1);
+			map.putLong(offset(slot), key);
+			size++;
+			map.putInt(8, size);
+		}
+		map.putLong(offset(slot) + 8, revid);
+		map.putLong(offset(slot) + 16, hash(text));
+	}
+
+	/**
+	 * @return number of titles in the store
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Writes any changes still in memory to disk.
+	 */
+	public synchronized void flush() {
+		map.force();
+	}
+
+	/**
+	 * Flushes and closes the store.
+	 * @throws IOException if the file can't be closed
+	 */
+	public synchronized void close() throws IOException {
+		map.force();
+		raf.close();
+	}
+
+	/* ---- Hash table ---- */
+
+	/**
+	 * Finds the slot holding the key, by linear probing from the key's home slot.
+	 * @return the slot, or -(slot + 1) for the empty slot where the key would go
+	 */
+	private int find(long key) {
+		int mask = capacity - 1;
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		while (true) {
+			long k = map.getLong(offset(slot));
+			if (k == key) {
+				return slot;
+			}
+			if (k == 0) {
+				return -(slot + 1);
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static int offset(int slot) {
+		return HEADER + slot * SLOT;
+	}
+
+	/**
+	 * Copies every entry into a table twice the size, in a new file that then replaces the old one.
+	 */
+	private void grow() throws IOException {
+		MappedByteBuffer old = map;
+		RandomAccessFile oldRaf = raf;
+		int oldCapacity = capacity;
+		File tmp = new File(file.getPath() + ".tmp");
+		create(tmp, oldCapacity * 2);
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			long key = old.getLong(offset(slot));
+			if (key != 0) {
+				int into = -(find(key) + 1);
+				map.putLong(offset(into), key);
+				map.putLong(offset(into) + 8, old.getLong(offset(slot) + 8));
+				map.putLong(offset(into) + 16, old.getLong(offset(slot) + 16));
+			}
+		}
+		map.putInt(8, size);
+		map.force();
+		oldRaf.close();
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace write store "+file);
+			}
+		}
+	}
+
+	private void create(File f, int capacity) throws IOException {
+		open(f, HEADER + (long) capacity * SLOT);
+		this.capacity = capacity;
+		map.putInt(0, MAGIC);
+		map.putInt(4, capacity);
+		map.putInt(8, size);
+	}
+
+	private void open(File f) throws IOException {
+		open(f, f.length());
+	}
+
+	private void open(File f, long length) throws IOException {
+		raf = new RandomAccessFile(f, "rw");
+		raf.setLength(length);
+		map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+	}
+
+	/**
+	 * Returns a 64-bit hash of the text (the first 8 bytes of its MD5 digest), never 0,
+	 * since 0 marks an empty slot.
+	 */
+	static long hash(String text) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(text.getBytes(Charsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e); // every JVM has MD5
+		}
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (digest[i] & 0xff);
+		}
+		return (h == 0) ? 1 : h;
+	}
+
+}